@@ -0,0 +1,97 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.File;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Сравнение построения дерева каталогов: прежний рекурсивный алгоритм против {@link DirectoryTreeBuilder}.
+ * Синтетическое дерево: родитель каждой папки выбирается случайно среди ранее созданных папок.
+ * Прежний алгоритм квадратичный, поэтому для него размеры ограничены 100k.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DirectoryTreeBenchmark {
+
+    public static class Dirs {
+        List<File> dirs;
+        Directory root;
+
+        void generate(int size) {
+            Random random = new Random(42);
+            dirs = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                String parent = i == 0 ? "root" : (random.nextInt(8) == 0 ? "root" : "d" + random.nextInt(i));
+                dirs.add(new File().setId("d" + i).setName("dir" + i)
+                        .setParents(Collections.singletonList(parent)));
+            }
+            Collections.shuffle(dirs, random);
+            root = new Directory();
+            root.setPath("/restore/");
+            root.setFile(new File().setId("root"));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Small extends Dirs {
+        @Param({"10000", "100000"})
+        int size;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            generate(size);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Large extends Dirs {
+        @Param({"10000", "100000", "1000000"})
+        int size;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            generate(size);
+        }
+    }
+
+    @Benchmark
+    public List<Directory> recursive(Small state) {
+        List<Directory> result = new ArrayList<>();
+        generateDirectoryTreeRecursive(state.root, new ArrayList<>(state.dirs), result);
+        return result;
+    }
+
+    @Benchmark
+    public Tree<Directory> breadthFirst(Large state) {
+        return new DirectoryTreeBuilder().build(state.root, state.dirs);
+    }
+
+    /** Прежняя реализация Quickstart.generateDirectoryTree. */
+    private static void generateDirectoryTreeRecursive(final Directory root, List<File> dirs, List<Directory> result) {
+        List<File> files = dirs.stream().filter((s) ->
+                s.getParents().contains(root.getFile().getId())).collect(Collectors.<File>toList());
+        for (File f : files) {
+            Directory d = new Directory();
+            d.setFile(f);
+            d.setPath(root.getPath() + f.getName() + '/');
+            result.add(d);
+            dirs.remove(f);
+
+            if (dirs.size() >= 0) generateDirectoryTreeRecursive(d, dirs, result);
+        }
+    }
+}
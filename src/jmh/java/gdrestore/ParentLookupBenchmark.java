@@ -0,0 +1,93 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.File;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Определение каталогов файла по parents: {@link DirectoryIndex} (с путями и над {@link MetadataStore}, где
+ * пути вычисляются при обращении) против HashMap идентификатор -> путь.
+ * Синтетическое дерево как в {@link DirectoryTreeBenchmark}, каждый восьмой файл имеет двух родителей.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ParentLookupBenchmark {
+
+    private static final int FILES = 1 << 16;
+
+    @Param({"10000", "100000", "1000000"})
+    int dirs;
+
+    private DirectoryIndex index;
+    private DirectoryIndex storeIndex;
+    private Map<String, String> map;
+    private File[] files;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        List<File> folders = new ArrayList<>(dirs);
+        for (int i = 0; i < dirs; i++) {
+            String parent = i == 0 ? "root" : (random.nextInt(8) == 0 ? "root" : "d" + random.nextInt(i));
+            folders.add(new File().setId("d" + i).setName("dir" + i).setParents(Collections.singletonList(parent)));
+        }
+        Directory root = new Directory();
+        root.setPath("/restore/");
+        root.setFile(new File().setId("root"));
+        List<Directory> tree = new ArrayList<>(dirs);
+        Quickstart.generateDirectoryTree(root, folders, tree);
+
+        index = new DirectoryIndex(root, tree);
+        MetadataStore store = MetadataStore.offHeap();
+        for (File f : folders) store.put(f.setMimeType(MetadataCache.FOLDER_MIME_TYPE));
+        store.buildTree(store.indexOf("root"));
+        storeIndex = new DirectoryIndex("/restore/", "root", store);
+        map = new HashMap<>();
+        for (Directory d : tree) map.put(d.getFile().getId(), d.getPath());
+        files = new File[FILES];
+        for (int i = 0; i < FILES; i++) {
+            String parent = "d" + random.nextInt(dirs);
+            files[i] = new File().setId("f" + i).setParents(random.nextInt(8) == 0
+                    ? Arrays.asList(parent, "d" + random.nextInt(dirs)) : Collections.singletonList(parent));
+        }
+    }
+
+    @Benchmark
+    public List<String> index() {
+        return index.resolve(files[next++ & (FILES - 1)]);
+    }
+
+    @Benchmark
+    public List<String> store() {
+        return storeIndex.resolve(files[next++ & (FILES - 1)]);
+    }
+
+    @Benchmark
+    public List<String> hashMap() {
+        File f = files[next++ & (FILES - 1)];
+        List<String> result = new ArrayList<>(f.getParents().size());
+        for (String parent : f.getParents()) {
+            String path = map.get(parent);
+            if (path != null && !result.contains(path)) result.add(path);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,94 @@
+package gdrestore;
+
+import com.google.api.client.util.Sleeper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Восстановление целиком (список файлов, дерево каталогов, выбор ревизий, загрузка и запись) с
+ * синтетического диска {@link FakeDrive} в процессе: размер диска, глубина истории ревизий, задержка ответа
+ * и доля ошибок задаются параметрами. Каждый замер - восстановление в новый пустой каталог.
+ * <p>
+ * Запуск: {@code gradle jmh -Pjmh.include=RestoreBenchmark}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class RestoreBenchmark {
+
+    private static final LocalDateTime TO_DATE = LocalDateTime.of(2017, 1, 10, 12, 0);
+
+    @Param({"1000", "10000"})
+    int files;
+
+    @Param({"1", "20"})
+    int revisions;
+
+    @Param({"4096"})
+    int contentSize;
+
+    /** Задержка ответа, мс; разброс - половина задержки. */
+    @Param({"0", "20"})
+    long latency;
+
+    @Param({"0", "0.01"})
+    double errorRate;
+
+    @Param({"8"})
+    int workers;
+
+    private FakeDrive drive;
+    private Path root;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        drive = FakeDrive.synthetic(files / 20, files, revisions, contentSize, 42)
+                .latency(latency, latency / 2)
+                .errorRate(errorRate, 503);
+    }
+
+    @Setup(Level.Invocation)
+    public void createRoot() throws IOException {
+        root = Files.createTempDirectory("restore-benchmark");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteRoot() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public RestoreReport restore() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(10000, workers * 2, 8, 10, 100, Sleeper.DEFAULT);
+        RestoreJob job = new RestoreJob("benchmark", drive.service(), scheduler, root.toString(), TO_DATE);
+        RestoreOrchestrator orchestrator = new RestoreOrchestrator(1, workers, new BandwidthLimiter(0));
+        RestoreReport report = orchestrator.restore(job, new BandwidthLimiter(0).lane("benchmark"));
+        if (!report.getFailures().isEmpty()) {
+            throw new IllegalStateException(report.getFailures().size() + " files failed, first: "
+                    + report.getFailures().get(0));
+        }
+        return report;
+    }
+}
@@ -0,0 +1,90 @@
+package gdrestore;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.Revision;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение выбора ревизии на дату: прежний алгоритм (разбор строки RFC3339 для каждой ревизии) против
+ * {@link RevisionResolver#select} (сравнение миллисекунд) и повторного выбора из кеша {@link RevisionResolver}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class RevisionSelectionBenchmark {
+
+    private static final LocalDateTime CUTOFF = LocalDateTime.of(2017, 5, 12, 0, 0);
+
+    @Param({"1000", "10000"})
+    int revisions;
+
+    List<Revision> revs;
+    RevisionResolver cache;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        long cutoff = RevisionResolver.toEpochMillis(CUTOFF);
+        revs = new ArrayList<>(revisions);
+        for (int i = 0; i < revisions; i++) {
+            // Ревизии за год до и месяц после даты восстановления
+            long time = cutoff - 365L * 24 * 3600 * 1000 + (long) (random.nextDouble() * 395 * 24 * 3600 * 1000);
+            revs.add(new Revision().setId("r" + i).setModifiedTime(new DateTime(time)));
+        }
+        Collections.shuffle(revs, random);
+        cache = new RevisionResolver(null, null);
+        cache.put("f1", CUTOFF, RevisionResolver.select(revs, cutoff));
+    }
+
+    @Benchmark
+    public Revision parseRfc3339() {
+        return selectRevisionByDateLegacy(revs, CUTOFF);
+    }
+
+    @Benchmark
+    public Revision epochMillis() {
+        return RevisionResolver.select(revs, RevisionResolver.toEpochMillis(CUTOFF));
+    }
+
+    @Benchmark
+    public Revision cached() {
+        return cache.get("f1", CUTOFF);
+    }
+
+    /** Прежняя реализация Quickstart.selectRevisionByDate. */
+    private static Revision selectRevisionByDateLegacy(List<Revision> revs, LocalDateTime dateTime) {
+        Revision rev = null;
+        LocalDateTime last = LocalDateTime.MIN;
+        for (Revision r : revs) {
+            LocalDateTime revDate = fromRFC3339Legacy(r.getModifiedTime().toStringRfc3339());
+            if (revDate.isBefore(dateTime) && revDate.isAfter(last)) {
+                last = revDate;
+                rev = r;
+            }
+        }
+        return rev;
+    }
+
+    /** Прежняя реализация Quickstart.fromRFC3339. */
+    private static LocalDateTime fromRFC3339Legacy(String dateTimeStr) {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+        return LocalDateTime.parse(dateTimeStr.substring(0, dateTimeStr.indexOf(".")), formatter);
+    }
+}
@@ -1,22 +0,0 @@
-import java.util.ArrayList;
-import java.util.List;
-
-/**
- * Created by lexover on 22.05.17.
- */
-public class Tree<T> {
-
-    private Node<T> root;
-
-    public Tree(T rootData) {
-        root = new Node<T>();
-        root.data = rootData;
-        root.children = new ArrayList<Node<T>>();
-    }
-
-    public static class Node<T> {
-        private T data;
-        private Node<T> parent;
-        private List<Node<T>> children;
-    }
-}
@@ -0,0 +1,106 @@
+package gdrestore;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Общий для нескольких заданий восстановления бюджет скорости загрузки (token bucket, байт в секунду).
+ * <p>
+ * Каждое задание получает свою полосу ({@link #lane}). Ожидающие полосы обслуживаются по кругу: после
+ * выдачи байт полоса встает в конец очереди, поэтому задание с большим количеством потоков не вытесняет
+ * остальные, а скорость делится между заданиями поровну. Выданное количество может превысить остаток
+ * бюджета (долг), следующая выдача ждет пока долг не будет погашен.
+ */
+public class BandwidthLimiter {
+
+    /**
+     * Полоса одного задания.
+     */
+    public class Lane {
+        private final String name;
+        private final AtomicLong bytes = new AtomicLong();
+        /** Количество потоков ожидающих выдачи, защищено BandwidthLimiter.this. */
+        private int waiting;
+
+        private Lane(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Ожидает разрешения передать bytes байт.
+         */
+        public void acquire(int bytes) throws InterruptedIOException {
+            if (bytesPerSecond > 0) BandwidthLimiter.this.acquire(this, bytes);
+            this.bytes.addAndGet(bytes);
+        }
+
+        /** @return количество байт переданных через полосу */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final double bytesPerSecond;
+    /** Максимальный запас бюджета: 100 мс загрузки. */
+    private final double burst;
+
+    // Состояние token bucket и очередь полос, защищены this
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private final ArrayDeque<Lane> turns = new ArrayDeque<>();
+
+    /**
+     * @param bytesPerSecond общая скорость загрузки; 0 - без ограничения (только учет)
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        if (bytesPerSecond < 0) throw new IllegalArgumentException("Bandwidth must not be negative");
+        this.bytesPerSecond = bytesPerSecond;
+        this.burst = bytesPerSecond / 10.0;
+        this.tokens = 0;
+    }
+
+    /** @return новая полоса для задания name */
+    public Lane lane(String name) {
+        return new Lane(name);
+    }
+
+    private synchronized void acquire(Lane lane, int bytes) throws InterruptedIOException {
+        if (lane.waiting++ == 0) turns.addLast(lane);
+        try {
+            while (true) {
+                refill();
+                boolean turn = turns.peekFirst() == lane;
+                if (turn && tokens >= 0) {
+                    tokens -= bytes;
+                    return;
+                }
+                // Полоса на очереди ждет погашения долга, остальные - своей очереди
+                wait(turn ? Math.max(1, (long) Math.ceil(-tokens * 1000 / bytesPerSecond)) : 0);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for bandwidth");
+        } finally {
+            turns.remove(lane);
+            if (--lane.waiting > 0) turns.addLast(lane);
+            notifyAll();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * bytesPerSecond);
+        refilledAt = now;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return bytesPerSecond > 0 ? "Bandwidth " + (long) bytesPerSecond + " B/s" : "Bandwidth unlimited";
+    }
+}
@@ -0,0 +1,384 @@
+package gdrestore;
+
+import com.google.api.client.googleapis.media.MediaHttpDownloader;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.Drive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Загрузка содержимого ревизий частями (HTTP Range) с продолжением после обрыва соединения.
+ * <ul>
+ *     <li>Файл загружается во временный файл part через {@link MediaHttpDownloader} частями по chunkSize
+ *     байт. Данные пишутся в {@link FileChannel} блоками через {@link WriteScheduler} (в том числе при
+ *     обрыве), поэтому длина part - это смещение, с которого загрузка продолжится при повторной попытке
+ *     или следующем запуске. Малые файлы загружаются в память и записываются целиком.</li>
+ *     <li>Большие файлы (не меньше parallelThreshold) загружаются несколькими диапазонами параллельно.
+ *     Файл part сразу получает полную длину, каждый диапазон пишется в свою область, а достигнутые
+ *     смещения диапазонов сохраняются после каждой части в файл part + {@link #RANGES_SUFFIX}.</li>
+ * </ul>
+ * Все запросы выполняются через {@link RequestScheduler}, повтор запроса продолжает загрузку с последнего
+ * записанного байта. Md5 малых файлов и файлов, загруженных последовательно с начала, вычисляется по мере
+ * загрузки.
+ */
+public class ChunkedDownloader {
+
+    /** Размер части по умолчанию. */
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /** Размер файла, начиная с которого он загружается параллельными диапазонами, по умолчанию. */
+    public static final long DEFAULT_PARALLEL_THRESHOLD = 64L * 1024 * 1024;
+
+    /** Количество параллельных диапазонов одного файла по умолчанию. */
+    public static final int DEFAULT_RANGES = 4;
+
+    /** Суффикс файла со смещениями параллельных диапазонов. */
+    public static final String RANGES_SUFFIX = ".ranges";
+
+    /** Тип запросов загрузки содержимого в показателях. */
+    public static final String MEDIA = "media";
+
+    private static final ExecutorService RANGES = Executors.newCachedThreadPool((r) -> {
+        Thread t = new Thread(r, "download-range");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Диапазон [next, end] файла, который еще осталось загрузить.
+     */
+    private static class Range {
+        private volatile long next;
+        private final long end;
+
+        private Range(long next, long end) {
+            this.next = next;
+            this.end = end;
+        }
+    }
+
+    private final HttpRequestFactory requestFactory;
+    private final RequestScheduler scheduler;
+    private final int chunkSize;
+    private final long parallelThreshold;
+    private final int ranges;
+    private BandwidthLimiter.Lane bandwidth;
+    private RestoreMetrics metrics;
+    private WriteScheduler writes = WriteScheduler.UNLIMITED;
+
+    public ChunkedDownloader(Drive service, RequestScheduler scheduler) {
+        this(service, scheduler, DEFAULT_CHUNK_SIZE, DEFAULT_PARALLEL_THRESHOLD, DEFAULT_RANGES);
+    }
+
+    /**
+     * @param service GoogleDrive сервис
+     * @param scheduler планировщик через который выполняются запросы
+     * @param chunkSize размер части, не больше {@link MediaHttpDownloader#MAXIMUM_CHUNK_SIZE}
+     * @param parallelThreshold размер файла, начиная с которого он загружается параллельными диапазонами
+     * @param ranges количество параллельных диапазонов одного файла (1 - без параллельной загрузки)
+     */
+    public ChunkedDownloader(Drive service, RequestScheduler scheduler, int chunkSize, long parallelThreshold,
+                             int ranges) {
+        if (chunkSize < 1 || chunkSize > MediaHttpDownloader.MAXIMUM_CHUNK_SIZE || ranges < 1)
+            throw new IllegalArgumentException("Invalid chunk size or ranges count");
+        this.requestFactory = service.getRequestFactory();
+        this.scheduler = scheduler;
+        this.chunkSize = chunkSize;
+        this.parallelThreshold = parallelThreshold;
+        this.ranges = ranges;
+    }
+
+    /**
+     * Устанавливает полосу общего бюджета скорости, через которую проходят все загружаемые байты.
+     */
+    public void setBandwidth(BandwidthLimiter.Lane bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Устанавливает планировщик записи на диск: блоки записи, количество пишущих потоков, загрузка малых
+     * файлов в память.
+     */
+    public void setWriteScheduler(WriteScheduler writes) {
+        this.writes = writes;
+    }
+
+    /**
+     * Устанавливает показатели, в которых учитываются полученные байты и задержки запросов.
+     */
+    public void setMetrics(RestoreMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Загружает содержимое запроса request (alt=media) в файл part, продолжая ранее начатую загрузку.
+     * @param request запрос ресурса, например revisions().get(fileId, revisionId)
+     * @param size размер содержимого или -1 если неизвестен
+     * @param part временный файл
+     * @return md5 содержимого part или null если оно загружено не целиком в этом вызове (параллельными
+     * диапазонами или продолжением) и md5 нужно вычислить по файлу
+     */
+    public String download(AbstractGoogleClientRequest<?> request, long size, Path part) throws IOException {
+        GenericUrl url = request.buildHttpRequestUrl();
+        url.put("alt", "media");
+        Path rangesFile = rangesFile(part);
+        List<Range> state = null;
+        if (Files.exists(rangesFile)) {
+            state = readRanges(rangesFile, size);
+            // Смещения диапазонов потеряны - содержимое part не является непрерывным началом файла
+            if (state == null) discard(part);
+        }
+        if (state == null) {
+            long offset = Files.exists(part) ? Files.size(part) : 0;
+            if (size >= 0 && offset > size) {
+                Files.delete(part);
+                offset = 0;
+            }
+            if (size >= 0 && offset == size && Files.exists(part)) return null;
+            if (offset == 0 && writes.isSmall(size)) return downloadSmall(url, size, part);
+            if (size < parallelThreshold || ranges == 1 || size - offset < 2L * chunkSize) {
+                return downloadSequential(url, part);
+            }
+            state = split(offset, size);
+            writeRanges(rangesFile, state);
+        }
+        downloadParallel(url, size, part, state, rangesFile);
+        Files.delete(rangesFile);
+        return null;
+    }
+
+    /**
+     * Удаляет временные файлы незавершенной загрузки.
+     */
+    public static void discard(Path part) throws IOException {
+        Files.deleteIfExists(part);
+        Files.deleteIfExists(rangesFile(part));
+    }
+
+    private static Path rangesFile(Path part) {
+        return part.resolveSibling(part.getFileName() + RANGES_SUFFIX);
+    }
+
+    /**
+     * @return md5 содержимого или null если загрузка продолжена с ранее записанного смещения
+     */
+    private String downloadSequential(GenericUrl url, Path part) throws IOException {
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            StreamDigest digest = channel.size() == 0 ? new StreamDigest() : null;
+            scheduler.call(MEDIA, 1, () -> {
+                // Повторная попытка продолжает с уже записанного смещения
+                long offset = channel.size();
+                MediaHttpDownloader downloader = new MediaHttpDownloader(requestFactory.getTransport(),
+                        requestFactory.getInitializer()).setChunkSize(chunkSize);
+                if (offset > 0) downloader.setBytesDownloaded(offset);
+                channel.position(offset);
+                // Хеш продолжается, только если все записанные байты прошли через него
+                if (digest != null && digest.length != offset) digest.md5 = null;
+                // Полученные блоки записываются и при обрыве - следующая попытка их не загружает
+                try (OutputStream out = new ReceivedOutputStream(writes.open(channel), digest)) {
+                    downloader.download(url.clone(), out);
+                }
+                return null;
+            });
+            return digest == null || digest.md5 == null || digest.length != channel.size() ? null
+                    : Checksums.hex(digest.md5.digest());
+        }
+    }
+
+    /**
+     * Загружает малый файл в память и записывает его целиком. Прерванная загрузка начинается заново.
+     */
+    private String downloadSmall(GenericUrl url, long size, Path part) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int) size);
+        scheduler.call(MEDIA, 1, () -> {
+            content.reset();
+            MediaHttpDownloader downloader = new MediaHttpDownloader(requestFactory.getTransport(),
+                    requestFactory.getInitializer()).setChunkSize(chunkSize);
+            downloader.download(url.clone(), new ReceivedOutputStream(content, null));
+            return null;
+        });
+        byte[] bytes = content.toByteArray();
+        writes.write(part, bytes, bytes.length);
+        return Checksums.hex(Checksums.md5().digest(bytes));
+    }
+
+    private List<Range> split(long offset, long size) {
+        List<Range> result = new ArrayList<>(ranges);
+        long length = (size - offset + ranges - 1) / ranges;
+        for (long from = offset; from < size; from += length) {
+            result.add(new Range(from, Math.min(size, from + length) - 1));
+        }
+        return result;
+    }
+
+    private void downloadParallel(GenericUrl url, long size, Path part, List<Range> state, Path rangesFile)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Файл сразу получает полную длину, диапазоны пишутся каждый в свою область
+            writes.extend(channel, size);
+            List<Future<?>> futures = new ArrayList<>(state.size());
+            for (Range range : state) {
+                futures.add(RANGES.submit(() -> {
+                    while (range.next <= range.end) {
+                        long to = Math.min(range.end, range.next + chunkSize - 1);
+                        scheduler.call(MEDIA, 1, () -> fetch(url, range, to, channel));
+                        synchronized (state) {
+                            writeRanges(rangesFile, state);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            IOException error = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (Future<?> f : futures) f.cancel(true);
+                    throw new InterruptedIOException("Download interrupted");
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                : new IOException(e.getCause());
+                    }
+                }
+            }
+            if (error != null) throw error;
+        }
+    }
+
+    /**
+     * Загружает байты [range.next, to] в channel. Смещение range.next сдвигается по мере записи, поэтому
+     * повтор после обрыва запрашивает только недостающую часть. Ответ не с запрошенного смещения (сервер
+     * проигнорировал Range) не записывается.
+     */
+    private Void fetch(GenericUrl url, Range range, long to, FileChannel channel) throws IOException {
+        HttpRequest request = requestFactory.buildGetRequest(url.clone());
+        request.getHeaders().setRange("bytes=" + range.next + "-" + to);
+        HttpResponse response = request.execute();
+        String contentRange = response.getHeaders().getContentRange();
+        if (response.getStatusCode() != 206 || contentRange == null
+                || !contentRange.startsWith("bytes " + range.next + "-")) {
+            response.disconnect();
+            throw new IOException("Unexpected response to range " + range.next + "-" + to + ": "
+                    + response.getStatusCode() + ", Content-Range " + contentRange);
+        }
+        byte[] buffer = new byte[(int) Math.min(writes.getBufferSize(), to - range.next + 1)];
+        int length = 0;
+        try (InputStream in = response.getContent()) {
+            int n;
+            while (range.next + length <= to && (n = in.read(buffer, length,
+                    (int) Math.min(buffer.length - length, to - range.next - length + 1))) > 0) {
+                received(n);
+                length += n;
+                if (length == buffer.length) {
+                    range.next += writes.write(channel, buffer, length, range.next);
+                    length = 0;
+                }
+            }
+        } finally {
+            response.disconnect();
+            // Полученные байты записываются и при обрыве - повтор их не запрашивает
+            if (length > 0) range.next += writes.write(channel, buffer, length, range.next);
+        }
+        if (range.next <= to) throw new EOFException("Unexpected end of range, got up to " + range.next + " of " + to);
+        return null;
+    }
+
+    private static void writeRanges(Path file, List<Range> state) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (Range range : state) content.append(range.next).append(' ').append(range.end).append('\n');
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return диапазоны прерванной параллельной загрузки или null если файл поврежден */
+    private static List<Range> readRanges(Path file, long size) throws IOException {
+        List<Range> result = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] parts = line.split(" ");
+                Range range = new Range(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+                if (range.end >= size) return null;
+                result.add(range);
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Учитывает n полученных байт: ожидает бюджета скорости и добавляет их в показатели.
+     */
+    private void received(int n) throws InterruptedIOException {
+        if (bandwidth != null) bandwidth.acquire(n);
+        if (metrics != null) metrics.bytes(n);
+    }
+
+    /**
+     * Md5 последовательно загружаемого содержимого: length - количество учтенных байт, md5 - null если
+     * часть байт прошла мимо хеша.
+     */
+    private static class StreamDigest {
+        private MessageDigest md5 = Checksums.md5();
+        private long length;
+    }
+
+    /**
+     * Учитывает получаемые байты (см. {@link #received}), добавляет записанные в digest и передает их в out.
+     */
+    private class ReceivedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final StreamDigest digest;
+
+        private ReceivedOutputStream(OutputStream out, StreamDigest digest) {
+            this.out = out;
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            received(len);
+            out.write(b, off, len);
+            if (digest != null && digest.md5 != null) {
+                digest.md5.update(b, off, len);
+                digest.length += len;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package gdrestore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Индекс восстановленного содержимого по md5Checksum: для каждого содержимого запоминается путь первого
+ * восстановленного с ним файла (источника). Файлы с тем же md5 создаются копией источника или, если
+ * включены ссылки, жесткой ссылкой на него (копией, если ссылка невозможна - другая файловая система).
+ * Содержимое не копируется в отдельный каталог: загруженные байты записываются на диск один раз, копии
+ * создаются только для повторяющегося содержимого.
+ * <p>
+ * Индекс (md5, размер, время изменения и путь источника, необязательный ключ) дописывается в файл
+ * {@link #FILE_NAME} каталога индекса, поэтому он используется повторными восстановлениями на другую дату.
+ * Перед использованием источника проверяются его размер и время изменения: файл, измененный или удаленный
+ * после восстановления, удаляется из индекса.
+ * <p>
+ * Одно и то же содержимое, нужное нескольким потокам одновременно, загружается один раз (см. {@link #acquire}).
+ * <p>
+ * Содержимое, md5 которого заранее неизвестен (выгрузка Google Документов), дополнительно находится по
+ * ключу (см. {@link #put(String, Path, String)}).
+ */
+public class ContentStore implements Closeable {
+
+    /** Имя файла индекса в каталоге индекса (по умолчанию - каталог восстановления задания). */
+    public static final String FILE_NAME = ".gdrestore-content";
+
+    /**
+     * Источник содержимого: восстановленный файл, его размер и время изменения на момент восстановления.
+     */
+    private static final class Source {
+        private final Path path;
+        private final long size;
+        private final long modified;
+
+        private Source(Path path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /** @return true если файл не изменился после восстановления */
+        private boolean isValid() {
+            try {
+                return Files.isRegularFile(path) && Files.size(path) == size
+                        && Files.getLastModifiedTime(path).toMillis() == modified;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    private final boolean links;
+    private final Map<String, Source> index = new ConcurrentHashMap<>();
+    /** md5 содержимого по ключу. */
+    private final Map<String, String> keys = new ConcurrentHashMap<>();
+    /** Содержимое, которое сейчас загружается одним из потоков. */
+    private final Map<String, CountDownLatch> loading = new ConcurrentHashMap<>();
+    private final BufferedWriter writer;
+
+    private ContentStore(boolean links, BufferedWriter writer) {
+        this.links = links;
+        this.writer = writer;
+    }
+
+    /**
+     * Открывает (создает) индекс в каталоге dir.
+     * @param links создавать файлы жесткими ссылками на источник; false - всегда копировать
+     */
+    public static ContentStore open(Path dir, boolean links) throws IOException {
+        Files.createDirectories(dir);
+        Path file = dir.resolve(FILE_NAME);
+        ContentStore previous = new ContentStore(links, null);
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) previous.apply(line);
+            }
+        }
+        ContentStore store = new ContentStore(links, Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        store.index.putAll(previous.index);
+        store.keys.putAll(previous.keys);
+        return store;
+    }
+
+    /**
+     * Создает файл target (существующий заменяется) с содержимым md5 из источника.
+     * @return false если содержимое неизвестно, его размер не равен size или источник изменен
+     */
+    public boolean restore(String md5, long size, Path target) throws IOException {
+        Source source = index.get(md5);
+        if (source == null) return false;
+        if (source.size != size || !source.isValid()) {
+            index.remove(md5, source);
+            return false;
+        }
+        link(source.path, target);
+        return true;
+    }
+
+    /**
+     * Создает файл target (существующий заменяется) с содержимым сохраненным по ключу key.
+     * @return md5 содержимого или null если содержимого с таким ключом нет
+     */
+    public String restore(String key, Path target) throws IOException {
+        String md5 = keys.get(key);
+        Source source = md5 == null ? null : index.get(md5);
+        return source != null && restore(md5, source.size, target) ? md5 : null;
+    }
+
+    /**
+     * Запоминает восстановленный файл file источником содержимого md5 (если действующего источника еще нет).
+     */
+    public void put(String md5, Path file) throws IOException {
+        put(md5, file, null);
+    }
+
+    /**
+     * Запоминает восстановленный файл file источником содержимого md5 и запоминает содержимое по ключу key.
+     * Файл не копируется.
+     * @param key ключ содержимого или null
+     */
+    public void put(String md5, Path file, String key) throws IOException {
+        Source source = index.get(md5);
+        boolean stored = source != null && source.isValid();
+        if (stored && (key == null || md5.equals(keys.get(key)))) return;
+        if (!stored) {
+            Path path = file.toAbsolutePath();
+            // Путь с разделителями строк индекса не сохраняется - содержимое будет загружено заново
+            if (path.toString().indexOf('\t') >= 0 || path.toString().indexOf('\n') >= 0) return;
+            source = new Source(path, Files.size(path), Files.getLastModifiedTime(path).toMillis());
+        }
+        synchronized (writer) {
+            writer.write(md5 + "\t" + source.size + "\t" + source.modified + "\t" + source.path
+                    + (key == null ? "" : "\t" + key));
+            writer.newLine();
+            writer.flush();
+        }
+        index.put(md5, source);
+        if (key != null) keys.put(key, md5);
+    }
+
+    /**
+     * Захватывает загрузку содержимого md5. Если содержимое уже загружается другим потоком - дожидается
+     * окончания этой загрузки и возвращает false (содержимое можно взять через {@link #restore}).
+     * @return true если загрузку должен выполнить текущий поток, после загрузки необходимо вызвать
+     * {@link #release}
+     */
+    public boolean acquire(String md5) throws InterruptedIOException {
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch other = loading.putIfAbsent(md5, latch);
+        if (other == null) return true;
+        try {
+            other.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + md5);
+        }
+        return false;
+    }
+
+    /**
+     * Завершает загрузку содержимого md5 захваченную {@link #acquire} (успешную или нет).
+     */
+    public void release(String md5) {
+        CountDownLatch latch = loading.remove(md5);
+        if (latch != null) latch.countDown();
+    }
+
+    /**
+     * Создает target жесткой ссылкой на source (или копией, если ссылки отключены или невозможны).
+     */
+    public void link(Path source, Path target) throws IOException {
+        if (links) {
+            Path tmp = Paths.get(target + ".link");
+            try {
+                Files.deleteIfExists(tmp);
+                Files.createLink(tmp, source);
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** @return количество содержимого в индексе */
+    public int size() {
+        return index.size();
+    }
+
+    private void apply(String line) {
+        String[] parts = line.split("\t", -1);
+        // Оборванная при сбое последняя строка и строки прежнего формата игнорируются
+        if (parts.length < 4 || parts.length > 5 || parts[0].length() < 2) return;
+        try {
+            index.put(parts[0], new Source(Paths.get(parts[3]), Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+            if (parts.length == 5) keys.put(parts[4], parts[0]);
+        } catch (NumberFormatException | InvalidPathException e) {
+            // Поврежденная строка - содержимое будет загружено заново
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) writer.close();
+    }
+}
@@ -1,3 +1,5 @@
+package gdrestore;
+
 import com.google.api.services.drive.model.File;
 
 /**
@@ -0,0 +1,163 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Индекс идентификатор папки -> локальный путь. Строится один раз после построения дерева каталогов
+ * и используется везде где нужно определить каталог файла по его parents.
+ * <p>
+ * Хранение компактное: открытая адресация в двух параллельных массивах (идентификаторы и пути), без
+ * объектов-записей и упаковки, сами строки идентификаторов разделяются с объектами File.
+ * <p>
+ * Индекс над {@link MetadataStore} путей не хранит: путь папки вычисляется по ссылкам на родителей при
+ * каждом обращении. Пополняемый индекс ({@link #add}) используется при обходе поддеревьев, когда файлы
+ * восстанавливаются до окончания обхода.
+ */
+public class DirectoryIndex {
+
+    private final String rootId;
+    private final String rootPath;
+    private final String[] ids;
+    private final String[] paths;
+    private final int mask;
+    private final MetadataStore store;
+    private final Map<String, String> added;
+    private int size;
+
+    /**
+     * @param root корневая директория восстановления
+     * @param dirs дерево каталогов построенное {@link Quickstart#generateDirectoryTree}
+     */
+    public DirectoryIndex(Directory root, List<Directory> dirs) {
+        this.rootId = root.getFile() == null ? null : root.getFile().getId();
+        this.rootPath = root.getPath();
+        int capacity = Integer.highestOneBit(Math.max(2, dirs.size() * 2 - 1)) << 1;
+        this.ids = new String[capacity];
+        this.paths = new String[capacity];
+        this.mask = capacity - 1;
+        this.store = null;
+        this.added = null;
+        for (Directory d : dirs) {
+            put(d.getFile().getId(), d.getPath());
+        }
+    }
+
+    /**
+     * @param rootPath локальный путь корня восстановления
+     * @param rootId идентификатор корневой папки GoogleDrive
+     * @param store хранилище метаданных с размещенными папками ({@link MetadataStore#buildTree})
+     */
+    public DirectoryIndex(String rootPath, String rootId, MetadataStore store) {
+        this.rootId = rootId;
+        this.rootPath = rootPath;
+        this.ids = null;
+        this.paths = null;
+        this.mask = 0;
+        this.store = store;
+        this.added = null;
+        this.size = store.getPlacedFolders();
+    }
+
+    /**
+     * Пополняемый индекс: папки добавляются {@link #add} по мере обхода, чтение возможно одновременно.
+     * @param root корневая директория восстановления
+     */
+    public DirectoryIndex(Directory root) {
+        this.rootId = root.getFile() == null ? null : root.getFile().getId();
+        this.rootPath = root.getPath();
+        this.ids = null;
+        this.paths = null;
+        this.mask = 0;
+        this.store = null;
+        this.added = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Добавляет папку d в пополняемый индекс.
+     */
+    public void add(Directory d) {
+        if (added == null) throw new IllegalStateException("Directory index is not growable");
+        added.put(d.getFile().getId(), d.getPath());
+    }
+
+    private void put(String id, String path) {
+        int i = slot(id);
+        if (ids[i] == null) {
+            ids[i] = id;
+            size++;
+        }
+        paths[i] = path;
+    }
+
+    private int slot(String id) {
+        int h = id.hashCode();
+        int i = (h ^ (h >>> 16)) & mask;
+        while (ids[i] != null && !ids[i].equals(id)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @param folderId идентификатор папки GoogleDrive
+     * @return локальный путь к папке (с завершающим '/') или null если папка неизвестна
+     */
+    public String getPath(String folderId) {
+        if (folderId == null) return null;
+        if (folderId.equals(rootId)) return rootPath;
+        if (store != null) return store.getPath(store.indexOf(folderId), rootPath);
+        if (added != null) return added.get(folderId);
+        return paths[slot(folderId)];
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    /**
+     * Возвращает локальные пути всех известных родителей файла f в порядке f.getParents().
+     * @param f файл GoogleDrive с заполненным полем parents
+     * @return список путей; пустой если ни один из родителей не найден
+     */
+    public List<String> resolve(File f) {
+        List<String> parents = f.getParents();
+        if (parents == null || parents.isEmpty()) return Collections.emptyList();
+        if (parents.size() == 1) {
+            String path = getPath(parents.get(0));
+            return path == null ? Collections.<String>emptyList() : Collections.singletonList(path);
+        }
+        List<String> result = new ArrayList<>(parents.size());
+        for (String parent : parents) {
+            String path = getPath(parent);
+            if (path != null && !result.contains(path)) result.add(path);
+        }
+        return result;
+    }
+
+    /** @return локальные пути всех папок индекса (без корня) */
+    public List<String> getPaths() {
+        if (added != null) return new ArrayList<>(added.values());
+        List<String> result = new ArrayList<>(size);
+        if (store != null) {
+            for (int i = 0; i < store.records(); i++) {
+                if (store.isPlaced(i)) result.add(store.getPath(i, rootPath));
+            }
+        } else {
+            for (String path : paths) {
+                if (path != null) result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /** @return количество папок в индексе (без корня) */
+    public int size() {
+        return added != null ? added.size() : size;
+    }
+}
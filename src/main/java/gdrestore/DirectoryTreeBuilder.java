@@ -0,0 +1,162 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Строит дерево каталогов GoogleDrive за линейное время. Сначала за один проход строится индекс
+ * родитель -> потомки (в виде массивов, без коллекций на каждую папку), затем пути каталогов вычисляются
+ * обходом в ширину от корня, без рекурсии.
+ * <p>
+ * Особые случаи обрабатываются явно:
+ * <ul>
+ *     <li>папки с несколькими родителями размещаются один раз - под родителем ближайшим к корню;</li>
+ *     <li>папки, родители которых отсутствуют на диске (orphans), размещаются в {@link #ORPHANED_DIR};</li>
+ *     <li>папки недостижимые из корня из-за циклов в parents также размещаются в {@link #ORPHANED_DIR},
+ *     цикл разрывается на первой встреченной папке.</li>
+ * </ul>
+ */
+public class DirectoryTreeBuilder {
+
+    /** Каталог внутри корня, куда помещаются папки не достижимые из корня GoogleDrive. */
+    public static final String ORPHANED_DIR = "_orphaned/";
+
+    private final List<File> orphans = new ArrayList<>();
+    private final List<File> cycles = new ArrayList<>();
+    private final List<File> multiParent = new ArrayList<>();
+
+    /**
+     * Строит дерево каталогов dirs относительно корневой директории root.
+     * @param root корневая директория (путь и File с идентификатором корня GoogleDrive)
+     * @param dirs список каталогов полученный с GoogleDrive
+     * @return дерево каталогов, корнем которого является root
+     */
+    public Tree<Directory> build(Directory root, List<File> dirs) {
+        int n = dirs.size();
+        int rootIdx = n;
+        String rootId = root.getFile() == null ? null : root.getFile().getId();
+
+        Map<String, Integer> index = new HashMap<>(n * 4 / 3 + 1);
+        for (int i = 0; i < n; i++) {
+            index.putIfAbsent(dirs.get(i).getId(), i);
+        }
+
+        // Индекс родитель -> потомки в формате CSR: потомки узла p лежат в children[start[p]..start[p+1])
+        int[] start = new int[n + 3];
+        boolean[] hasKnownParent = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            List<String> parents = dirs.get(i).getParents();
+            if (parents == null) continue;
+            if (parents.size() > 1) multiParent.add(dirs.get(i));
+            for (String p : parents) {
+                int pi = parentIndex(p, rootId, rootIdx, index);
+                if (pi >= 0) {
+                    start[pi + 2]++;
+                    hasKnownParent[i] = true;
+                }
+            }
+        }
+        for (int i = 2; i < start.length; i++) start[i] += start[i - 1];
+        int[] children = new int[start[n + 2]];
+        for (int i = 0; i < n; i++) {
+            List<String> parents = dirs.get(i).getParents();
+            if (parents == null) continue;
+            for (String p : parents) {
+                int pi = parentIndex(p, rootId, rootIdx, index);
+                if (pi >= 0) children[start[pi + 1]++] = i;
+            }
+        }
+
+        Tree<Directory> tree = new Tree<>(root);
+        boolean[] visited = new boolean[n];
+        int[] queue = new int[n];
+        Tree.Node<Directory>[] nodes = nodes(n + 1);
+        nodes[rootIdx] = tree.getRoot();
+
+        walk(tree, rootIdx, dirs, start, children, visited, queue, nodes);
+
+        String orphanPath = root.getPath() + ORPHANED_DIR;
+        for (int i = 0; i < n; i++) {
+            if (!visited[i] && !hasKnownParent[i]) {
+                orphans.add(dirs.get(i));
+                attach(tree, i, orphanPath, dirs, start, children, visited, queue, nodes);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (!visited[i]) {
+                cycles.add(dirs.get(i));
+                attach(tree, i, orphanPath, dirs, start, children, visited, queue, nodes);
+            }
+        }
+        return tree;
+    }
+
+    /** @return папки, родители которых отсутствуют среди каталогов диска */
+    public List<File> getOrphans() {
+        return orphans;
+    }
+
+    /** @return папки, на которых были разорваны циклы в parents */
+    public List<File> getCycles() {
+        return cycles;
+    }
+
+    /** @return папки имеющие более одного родителя */
+    public List<File> getMultiParent() {
+        return multiParent;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Tree.Node<Directory>[] nodes(int size) {
+        return new Tree.Node[size];
+    }
+
+    private static int parentIndex(String parent, String rootId, int rootIdx, Map<String, Integer> index) {
+        if (parent.equals(rootId)) return rootIdx;
+        Integer i = index.get(parent);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * Добавляет папку i непосредственно под корень дерева с путем basePath и обходит ее поддерево.
+     */
+    private static void attach(Tree<Directory> tree, int i, String basePath, List<File> dirs, int[] start,
+                               int[] children, boolean[] visited, int[] queue, Tree.Node<Directory>[] nodes) {
+        visited[i] = true;
+        nodes[i] = tree.addChild(tree.getRoot(), directory(dirs.get(i), basePath));
+        walk(tree, i, dirs, start, children, visited, queue, nodes);
+    }
+
+    /**
+     * Обход в ширину от узла from: каждому еще не посещенному потомку назначается путь родителя + имя.
+     */
+    private static void walk(Tree<Directory> tree, int from, List<File> dirs, int[] start, int[] children,
+                             boolean[] visited, int[] queue, Tree.Node<Directory>[] nodes) {
+        int head = 0;
+        int tail = 0;
+        int current = from;
+        while (true) {
+            Tree.Node<Directory> parent = nodes[current];
+            for (int c = start[current]; c < start[current + 1]; c++) {
+                int child = children[c];
+                if (visited[child]) continue;
+                visited[child] = true;
+                nodes[child] = tree.addChild(parent, directory(dirs.get(child), parent.getData().getPath()));
+                queue[tail++] = child;
+            }
+            if (head == tail) break;
+            current = queue[head++];
+        }
+    }
+
+    private static Directory directory(File f, String parentPath) {
+        Directory d = new Directory();
+        d.setFile(f);
+        d.setPath(parentPath + f.getName() + '/');
+        return d;
+    }
+}
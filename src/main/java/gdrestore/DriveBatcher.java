@@ -0,0 +1,267 @@
+package gdrestore;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.Revision;
+import com.google.api.services.drive.model.RevisionList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Группирует запросы к GoogleDrive в пакеты (HTTP batch) до {@link #MAX_BATCH_SIZE} запросов на один
+ * HTTP запрос и раздает результаты обратно в обработчики по каждому запросу.
+ * Пакеты выполняются через {@link RequestScheduler}, каждая часть пакета расходует один запрос бюджета.
+ * Части завершившиеся временной ошибкой (превышение квоты, 5xx) повторяются в следующих пакетах
+ * с экспоненциальной задержкой, не более {@link #MAX_ATTEMPTS} раз. Если ответ на пакет оборвался,
+ * повторяются только части, на которые ответ не получен; ошибки обработчиков не повторяются.
+ * <p>
+ * Экземпляр не потокобезопасен: каждый поток использует свой. Обработчики вызываются в потоке,
+ * выполняющем {@link #flush()}, и могут ставить в очередь новые запросы.
+ */
+public class DriveBatcher {
+
+    /** Максимальное количество запросов в одном пакете допустимое для Drive API. */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    /** Максимальное количество попыток выполнения одного запроса. */
+    public static final int MAX_ATTEMPTS = 5;
+
+    /** Тип пакетных запросов в показателях. */
+    public static final String BATCH = "batch";
+
+    /**
+     * Обработчик результата одного запроса пакета.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result) throws IOException;
+
+        void onFailure(GoogleJsonError error) throws IOException;
+    }
+
+    private static class Entry<T> {
+        private final DriveRequest<T> request;
+        private final Callback<T> callback;
+        private int attempts;
+
+        private Entry(DriveRequest<T> request, Callback<T> callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+    }
+
+    private final Drive service;
+    private final RequestScheduler scheduler;
+    private final List<Entry<?>> pending = new ArrayList<>();
+    private boolean executing;
+    private int batches;
+
+    /**
+     * @param service GoogleDrive сервис
+     * @param scheduler планировщик через который выполняются пакеты
+     */
+    public DriveBatcher(Drive service, RequestScheduler scheduler) {
+        this.service = service;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Ставит запрос в очередь. Как только набирается полный пакет он сразу отправляется.
+     */
+    public <T> void queue(DriveRequest<T> request, Callback<T> callback) throws IOException {
+        pending.add(new Entry<>(request, callback));
+        if (pending.size() >= MAX_BATCH_SIZE && !executing) executeRound();
+    }
+
+    /**
+     * Выполняет все запросы стоящие в очереди, включая повторы и запросы поставленные обработчиками.
+     */
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            executeRound();
+        }
+    }
+
+    /**
+     * Отбрасывает запросы, оставшиеся в очереди после ошибки {@link #queue} или {@link #flush}: их
+     * обработчики не вызываются.
+     */
+    public void clear() {
+        pending.clear();
+    }
+
+    /** @return количество выполненных HTTP запросов-пакетов */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * Получает все ревизии (со всех страниц) для каждого из файлов fileIds.
+     * @param fileIds идентификаторы файлов
+     * @param fields поля ревизий, например "revisions(id, modifiedTime)"
+     * @param callback обработчик, вызывается один раз на файл с полным списком ревизий
+     */
+    public void listRevisions(Collection<String> fileIds, String fields, Callback<RevisionPage> callback)
+            throws IOException {
+        for (String fileId : fileIds) {
+            queueRevisionPage(new RevisionPage(fileId), null, fields, callback);
+        }
+    }
+
+    /**
+     * Накопленный список ревизий одного файла.
+     */
+    public static class RevisionPage {
+        private final String fileId;
+        private final List<Revision> revisions = new ArrayList<>();
+
+        private RevisionPage(String fileId) {
+            this.fileId = fileId;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public List<Revision> getRevisions() {
+            return revisions;
+        }
+    }
+
+    private void queueRevisionPage(RevisionPage page, String pageToken, String fields,
+                                   Callback<RevisionPage> callback) throws IOException {
+        Drive.Revisions.List request = service.revisions().list(page.fileId)
+                .setPageSize(RevisionResolver.PAGE_SIZE)
+                .setFields("nextPageToken, " + fields)
+                .setPageToken(pageToken);
+        queue(request, new Callback<RevisionList>() {
+            @Override
+            public void onSuccess(RevisionList result) throws IOException {
+                if (result.getRevisions() != null) page.revisions.addAll(result.getRevisions());
+                if (result.getNextPageToken() != null) {
+                    queueRevisionPage(page, result.getNextPageToken(), fields, callback);
+                } else {
+                    callback.onSuccess(page);
+                }
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError error) throws IOException {
+                callback.onFailure(error);
+            }
+        });
+    }
+
+    private void executeRound() throws IOException {
+        int n = Math.min(pending.size(), MAX_BATCH_SIZE);
+        List<Entry<?>> round = new ArrayList<>(pending.subList(0, n));
+        pending.subList(0, n).clear();
+
+        // Части, на которые получен ответ: при повторе пакета после обрыва они не отправляются заново,
+        // иначе их обработчики были бы вызваны повторно
+        Set<Entry<?>> answered = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Entry<?>> retry = new ArrayList<>();
+        IOException failure = null;
+        try {
+            executing = true;
+            batches++;
+            scheduler.call(BATCH, round.size(), () -> {
+                BatchRequest batch = service.batch();
+                batch.setBatchUrl(new GenericUrl(service.getRootUrl() + "batch/drive/v3"));
+                for (Entry<?> entry : round) {
+                    if (!answered.contains(entry)) add(batch, entry, answered, retry);
+                }
+                if (batch.size() > 0) batch.execute();
+                return null;
+            });
+        } catch (CallbackException e) {
+            // Ошибка обработчика - не ошибка передачи, пакет не повторяется
+            throw e.getCause();
+        } catch (IOException e) {
+            // Пакет не выполнен до конца и повторы планировщика не помогли - повторяем части без ответа
+            failure = e;
+            for (Entry<?> entry : round) {
+                if (!answered.contains(entry)) retry.add(entry);
+            }
+        } finally {
+            executing = false;
+        }
+
+        int maxAttempts = 0;
+        for (Entry<?> entry : retry) {
+            entry.attempts++;
+            if (entry.attempts >= MAX_ATTEMPTS) {
+                GoogleJsonError error = new GoogleJsonError();
+                error.setMessage(String.valueOf(failure));
+                entry.callback.onFailure(error);
+            } else {
+                pending.add(entry);
+                maxAttempts = Math.max(maxAttempts, entry.attempts);
+            }
+        }
+        if (maxAttempts > 0) scheduler.backoff(maxAttempts);
+    }
+
+    private <T> void add(BatchRequest batch, Entry<T> entry, Set<Entry<?>> answered, List<Entry<?>> retry)
+            throws IOException {
+        entry.request.queue(batch, new JsonBatchCallback<T>() {
+            @Override
+            public void onSuccess(T t, HttpHeaders responseHeaders) {
+                answered.add(entry);
+                try {
+                    entry.callback.onSuccess(t);
+                } catch (IOException e) {
+                    throw new CallbackException(e);
+                }
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                answered.add(entry);
+                if (RequestScheduler.isRateLimit(e)) scheduler.onThrottle();
+                if (isRetryable(e) && entry.attempts + 1 < MAX_ATTEMPTS) {
+                    retry.add(entry);
+                } else {
+                    try {
+                        entry.callback.onFailure(e);
+                    } catch (IOException ex) {
+                        throw new CallbackException(ex);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Исключение обработчика части пакета, передаваемое мимо повторов {@link RequestScheduler}.
+     */
+    private static class CallbackException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private CallbackException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * @return true если ошибка временная и запрос имеет смысл повторить
+     */
+    static boolean isRetryable(GoogleJsonError e) {
+        return e == null || e.getCode() >= 500 || RequestScheduler.isRateLimit(e);
+    }
+}
@@ -0,0 +1,117 @@
+package gdrestore;
+
+import com.google.api.client.util.DateTime;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Построитель строки фильтра q для files().list. Условия соединяются через "and", значения
+ * экранируются (обратная косая черта и одинарная кавычка), поэтому имена с кавычками не ломают запрос.
+ * <pre>
+ * new DriveQuery().files().nameContains("CTB-Locker").trashed(false).build()
+ * // mimeType != 'application/vnd.google-apps.folder' and name contains 'CTB-Locker' and trashed = false
+ * </pre>
+ * Условие name contains на стороне GoogleDrive ищет префиксы слов имени, поэтому результат стоит
+ * дополнительно проверять на клиенте.
+ */
+public class DriveQuery {
+
+    private final List<String> terms = new ArrayList<>();
+
+    public DriveQuery() {
+    }
+
+    private DriveQuery(List<String> terms) {
+        this.terms.addAll(terms);
+    }
+
+    /** @return значение в кавычках для строки фильтра */
+    public static String quote(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    /** Имя равно name. */
+    public DriveQuery nameIs(String name) {
+        return term("name = " + quote(name));
+    }
+
+    /** Имя содержит text. */
+    public DriveQuery nameContains(String text) {
+        return term("name contains " + quote(text));
+    }
+
+    /** Изменен позже time. */
+    public DriveQuery modifiedAfter(DateTime time) {
+        return term("modifiedTime > " + quote(time.toStringRfc3339()));
+    }
+
+    /** Изменен позже time (без часового пояса, как UTC). */
+    public DriveQuery modifiedAfter(LocalDateTime time) {
+        return modifiedAfter(new DateTime(RevisionResolver.toEpochMillis(time)));
+    }
+
+    public DriveQuery mimeType(String mimeType) {
+        return term("mimeType = " + quote(mimeType));
+    }
+
+    public DriveQuery notMimeType(String mimeType) {
+        return term("mimeType != " + quote(mimeType));
+    }
+
+    /** Только папки. */
+    public DriveQuery folders() {
+        return mimeType(MetadataCache.FOLDER_MIME_TYPE);
+    }
+
+    /** Все кроме папок. */
+    public DriveQuery files() {
+        return notMimeType(MetadataCache.FOLDER_MIME_TYPE);
+    }
+
+    /** Находится (или нет) в корзине. */
+    public DriveQuery trashed(boolean trashed) {
+        return term("trashed = " + trashed);
+    }
+
+    /** Непосредственный потомок хотя бы одной из папок parentIds. */
+    public DriveQuery inParents(Collection<String> parentIds) {
+        if (parentIds.isEmpty()) throw new IllegalArgumentException("No parents");
+        StringBuilder term = new StringBuilder("(");
+        for (String id : parentIds) {
+            if (term.length() > 1) term.append(" or ");
+            term.append(quote(id)).append(" in parents");
+        }
+        return term(term.append(')').toString());
+    }
+
+    /**
+     * Разбивает запрос на независимые запросы по группам родительских папок (не более parentsPerQuery
+     * папок в одном запросе), которые можно выполнять параллельно.
+     */
+    public List<DriveQuery> partitionByParents(List<String> parentIds, int parentsPerQuery) {
+        List<DriveQuery> result = new ArrayList<>();
+        for (int i = 0; i < parentIds.size(); i += parentsPerQuery) {
+            result.add(new DriveQuery(terms)
+                    .inParents(parentIds.subList(i, Math.min(parentIds.size(), i + parentsPerQuery))));
+        }
+        return result;
+    }
+
+    /** @return строка фильтра или null если условий нет */
+    public String build() {
+        return terms.isEmpty() ? null : String.join(" and ", terms);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(build());
+    }
+
+    private DriveQuery term(String term) {
+        terms.add(term);
+        return this;
+    }
+}
@@ -0,0 +1,92 @@
+package gdrestore;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Формат, в который выгружается файл Google Документов (Документ, Таблица, Презентация, Рисунок):
+ * такие файлы не имеют содержимого и восстанавливаются через export.
+ * <p>
+ * Форматы загружаются из properties-файла ({@link #load}) вида
+ * <pre>
+ * application/vnd.google-apps.document = application/pdf .pdf
+ * </pre>
+ * Типы, не указанные в файле, выгружаются в форматы по умолчанию ({@link #defaults()}).
+ */
+public class ExportFormat {
+
+    /** Префикс типов файлов Google Документов. */
+    public static final String NATIVE_PREFIX = "application/vnd.google-apps.";
+
+    private final String mimeType;
+    private final String extension;
+
+    /**
+     * @param mimeType тип выгружаемого содержимого
+     * @param extension расширение имени восстановленного файла (с точкой)
+     */
+    public ExportFormat(String mimeType, String extension) {
+        this.mimeType = mimeType;
+        this.extension = extension;
+    }
+
+    /** @return форматы по умолчанию (Office и PNG) по типам Google Документов */
+    public static Map<String, ExportFormat> defaults() {
+        Map<String, ExportFormat> result = new HashMap<>();
+        result.put(NATIVE_PREFIX + "document", new ExportFormat(
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.document", ".docx"));
+        result.put(NATIVE_PREFIX + "spreadsheet", new ExportFormat(
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", ".xlsx"));
+        result.put(NATIVE_PREFIX + "presentation", new ExportFormat(
+                "application/vnd.openxmlformats-officedocument.presentationml.presentation", ".pptx"));
+        result.put(NATIVE_PREFIX + "drawing", new ExportFormat("image/png", ".png"));
+        return result;
+    }
+
+    /**
+     * Загружает форматы из properties-файла file поверх форматов по умолчанию.
+     */
+    public static Map<String, ExportFormat> load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<String, ExportFormat> result = defaults();
+        for (String key : properties.stringPropertyNames()) {
+            String[] value = properties.getProperty(key).trim().split("\\s+");
+            if (value.length != 2) throw new IOException("Invalid export format for " + key + " in " + file);
+            result.put(key, new ExportFormat(value[0], value[1]));
+        }
+        return result;
+    }
+
+    /** @return true если файл типа mimeType является файлом Google Документов (кроме папок) */
+    public static boolean isNative(String mimeType) {
+        return mimeType != null && mimeType.startsWith(NATIVE_PREFIX)
+                && !MetadataCache.FOLDER_MIME_TYPE.equals(mimeType);
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /** @return имя восстановленного файла: name с расширением формата */
+    public String fileName(String name) {
+        return name.toLowerCase().endsWith(extension.toLowerCase()) ? name : name + extension;
+    }
+
+    @Override
+    public String toString() {
+        return mimeType;
+    }
+}
@@ -0,0 +1,117 @@
+package gdrestore;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.Revision;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+
+/**
+ * Выгрузка файлов Google Документов в обычные форматы (см. {@link ExportFormat}).
+ * <p>
+ * Ревизия выгружается по ее exportLinks. Если ссылки для формата нет, выгружается текущая версия
+ * файла через files().export - в этом случае {@link #export} возвращает false. Выгрузка не продолжается
+ * после обрыва, а выполняется заново.
+ */
+public class Exporter {
+
+    /** Поля ревизии необходимые для выгрузки. */
+    public static final String REVISION_FIELDS = "id, exportLinks";
+
+    /** Тип запросов выгрузки в показателях. */
+    public static final String EXPORT = "export";
+
+    private final Drive service;
+    private final RequestScheduler scheduler;
+    private final HttpRequestFactory requestFactory;
+    private final Map<String, ExportFormat> formats;
+
+    public Exporter(Drive service, RequestScheduler scheduler) {
+        this(service, scheduler, ExportFormat.defaults());
+    }
+
+    /**
+     * @param service GoogleDrive сервис
+     * @param scheduler планировщик через который выполняются все запросы
+     * @param formats форматы выгрузки по типам Google Документов
+     */
+    public Exporter(Drive service, RequestScheduler scheduler, Map<String, ExportFormat> formats) {
+        this.service = service;
+        this.scheduler = scheduler;
+        this.requestFactory = service.getRequestFactory();
+        this.formats = formats;
+    }
+
+    /** @return формат выгрузки файлов типа mimeType или null если такие файлы не выгружаются */
+    public ExportFormat getFormat(String mimeType) {
+        return formats.get(mimeType);
+    }
+
+    /**
+     * Ссылки на выгрузку ревизии по типам содержимого. Поля exportLinks нет в модели Revision используемой
+     * версии библиотеки, поэтому оно читается как неизвестное поле ответа.
+     * @return ссылки или null если их нет
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, String> exportLinks(Revision revision) {
+        Object links = revision.get("exportLinks");
+        return links instanceof Map ? (Map<String, String>) links : null;
+    }
+
+    /**
+     * Выгружает ревизию revision файла file в формате format в файл part (существующий перезаписывается).
+     * @return true если выгружена именно ревизия revision, false - текущая версия файла
+     */
+    public boolean export(File file, Revision revision, ExportFormat format, Path part) throws IOException {
+        return export(file, revision, format, part, Checksums.md5());
+    }
+
+    /**
+     * Выгружает ревизию как {@link #export(File, Revision, ExportFormat, Path)}, вычисляя md5 выгруженного
+     * содержимого в md5 по мере записи (без повторного чтения part).
+     */
+    public boolean export(File file, Revision revision, ExportFormat format, Path part, MessageDigest md5)
+            throws IOException {
+        Map<String, String> links = exportLinks(revision);
+        if (links == null) {
+            // Ревизия из журнала или кеша - ссылки запрашиваются отдельно
+            links = exportLinks(scheduler.execute(service.revisions().get(file.getId(), revision.getId())
+                    .setFields(REVISION_FIELDS)));
+        }
+        String link = links == null ? null : links.get(format.getMimeType());
+        if (link != null) {
+            scheduler.call(EXPORT, 1, () -> {
+                HttpResponse response = requestFactory.buildGetRequest(new GenericUrl(link)).execute();
+                md5.reset();
+                try (InputStream in = response.getContent();
+                     OutputStream out = new DigestOutputStream(Files.newOutputStream(part), md5)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+                } finally {
+                    response.disconnect();
+                }
+                return null;
+            });
+            return true;
+        }
+        scheduler.call(EXPORT, 1, () -> {
+            md5.reset();
+            try (OutputStream out = new DigestOutputStream(Files.newOutputStream(part), md5)) {
+                service.files().export(file.getId(), format.getMimeType()).executeMediaAndDownloadTo(out);
+            }
+            return null;
+        });
+        return false;
+    }
+}
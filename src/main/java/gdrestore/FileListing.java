@@ -0,0 +1,143 @@
+package gdrestore;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Постраничный ленивый перечень файлов GoogleDrive. Следующая страница (по nextPageToken) запрашивается
+ * в фоне пока вызывающий код обрабатывает текущую, поэтому обработка первой страницы начинается сразу,
+ * а в памяти одновременно находится не более двух страниц.
+ * <p>
+ * Ошибки запроса страницы выбрасываются из {@link #hasNext()} как {@link UncheckedIOException}; после
+ * ошибки перечень не продолжается и не начинается заново - каждый следующий вызов выбрасывает ту же ошибку.
+ */
+public class FileListing implements Iterator<File> {
+
+    /** Максимальный размер страницы допустимый для files().list. */
+    public static final int PAGE_SIZE = 1000;
+
+    private static final ExecutorService PREFETCH = Executors.newCachedThreadPool((r) -> {
+        Thread t = new Thread(r, "listing-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Drive service;
+    private final RequestScheduler scheduler;
+    private final String filter;
+    private final String fields;
+    private Consumer<List<File>> pageListener;
+    private String teamDriveId;
+
+    private Iterator<File> page = Collections.emptyIterator();
+    private CompletableFuture<FileList> next;
+    private int pages;
+    private RuntimeException failure;
+
+    /**
+     * @param service GoogleDrive сервис
+     * @param scheduler планировщик через который выполняются запросы страниц
+     * @param filter строка фильтра (см. {@link Quickstart#getAllFiles})
+     * @param fields поля файлов, например "files(id, name, parents)"
+     */
+    public FileListing(Drive service, RequestScheduler scheduler, String filter, String fields) {
+        this.service = service;
+        this.scheduler = scheduler;
+        this.filter = filter;
+        this.fields = fields;
+    }
+
+    /**
+     * Устанавливает обработчик вызываемый при получении каждой страницы.
+     */
+    public FileListing onPage(Consumer<List<File>> pageListener) {
+        this.pageListener = pageListener;
+        return this;
+    }
+
+    /**
+     * Ограничивает перечень файлами общего диска (Team Drive) teamDriveId.
+     */
+    public FileListing teamDrive(String teamDriveId) {
+        this.teamDriveId = teamDriveId;
+        return this;
+    }
+
+    /** @return количество полученных страниц */
+    public int getPages() {
+        return pages;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (failure != null) throw failure;
+        if (next == null && pages == 0) next = fetch(null);
+        while (!page.hasNext() && next != null) {
+            FileList fileList;
+            try {
+                fileList = next.join();
+            } catch (CompletionException e) {
+                next = null;
+                failure = e.getCause() instanceof IOException
+                        ? new UncheckedIOException((IOException) e.getCause()) : e;
+                throw failure;
+            }
+            pages++;
+            String token = fileList.getNextPageToken();
+            next = token == null ? null : fetch(token);
+            List<File> files = fileList.getFiles() == null ? Collections.<File>emptyList() : fileList.getFiles();
+            if (pageListener != null) pageListener.accept(files);
+            page = files.iterator();
+        }
+        return page.hasNext();
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return page.next();
+    }
+
+    /** @return последовательный поток файлов поверх этого перечня */
+    public Stream<File> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private CompletableFuture<FileList> fetch(String pageToken) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Drive.Files.List list = service.files().list()
+                        .setQ(filter)
+                        .setSpaces("drive")
+                        .setPageSize(PAGE_SIZE)
+                        .setFields("nextPageToken, " + fields)
+                        .setPageToken(pageToken);
+                if (teamDriveId != null) {
+                    list.setCorpora("teamDrive").setTeamDriveId(teamDriveId)
+                            .setIncludeTeamDriveItems(true).setSupportsTeamDrives(true);
+                }
+                return scheduler.execute(list);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, PREFETCH);
+    }
+}
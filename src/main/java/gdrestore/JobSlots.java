@@ -0,0 +1,84 @@
+package gdrestore;
+
+import java.util.ArrayDeque;
+
+/**
+ * Общие для нескольких заданий восстановления места для загрузки файлов: одновременно загружается
+ * (выгружается) не более slots файлов всех заданий.
+ * <p>
+ * Каждое задание получает свою полосу ({@link #lane}). Освободившееся место получает следующая по кругу
+ * ожидающая полоса (как в {@link BandwidthLimiter}), поэтому задание с большим количеством файлов не
+ * занимает все места: остальные задания получают места по очереди с ним и завершаются, не дожидаясь
+ * окончания большого.
+ */
+public class JobSlots {
+
+    /**
+     * Полоса одного задания.
+     */
+    public class Lane {
+        private final String name;
+        /** Количество потоков ожидающих места, защищено JobSlots.this. */
+        private int waiting;
+
+        private Lane(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Ожидает свободного места. После обработки файла место необходимо вернуть {@link #release}.
+         */
+        public void acquire() throws InterruptedException {
+            JobSlots.this.acquire(this);
+        }
+
+        /** Возвращает место, занятое {@link #acquire}. */
+        public void release() {
+            JobSlots.this.release();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    // Свободные места и очередь полос, защищены this
+    private int free;
+    private final ArrayDeque<Lane> turns = new ArrayDeque<>();
+
+    /**
+     * @param slots количество файлов, загружаемых одновременно
+     */
+    public JobSlots(int slots) {
+        if (slots < 1) throw new IllegalArgumentException("Slots must be positive");
+        this.free = slots;
+    }
+
+    /** @return новая полоса для задания name */
+    public Lane lane(String name) {
+        return new Lane(name);
+    }
+
+    private synchronized void acquire(Lane lane) throws InterruptedException {
+        if (lane.waiting++ == 0) turns.addLast(lane);
+        try {
+            while (turns.peekFirst() != lane || free == 0) wait();
+            free--;
+        } finally {
+            turns.remove(lane);
+            if (--lane.waiting > 0) turns.addLast(lane);
+            notifyAll();
+        }
+    }
+
+    private synchronized void release() {
+        free++;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Slots " + free + " free, " + turns.size() + " jobs waiting";
+    }
+}
@@ -0,0 +1,64 @@
+package gdrestore;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма задержек с фиксированными границами корзин (мс). Запись не создает объектов и не
+ * блокирует потоки (счетчики {@link LongAdder}), поэтому ее можно вызывать на каждый запрос.
+ */
+public class LatencyHistogram {
+
+    /** Верхние границы корзин включительно (как le в Prometheus), мс; последняя корзина - все что больше. */
+    public static final long[] BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000,
+            60000};
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_MILLIS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Учитывает одно значение nanos наносекунд.
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS_MILLIS.length && nanos > BOUNDS_MILLIS[i] * 1000000) i++;
+        buckets[i].increment();
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /** @return количество значений в корзине i (не накопительно) */
+    public long bucket(int i) {
+        return buckets[i].sum();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * @return оценка квантиля q (0..1) - верхняя граница корзины в которую он попадает, мс;
+     * {@link Long#MAX_VALUE} если квантиль больше последней границы, -1 если значений нет
+     */
+    public long quantileMillis(double q) {
+        long total = 0;
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) total += counts[i] = buckets[i].sum();
+        if (total == 0) return -1;
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return BOUNDS_MILLIS[i];
+        }
+        return Long.MAX_VALUE;
+    }
+}
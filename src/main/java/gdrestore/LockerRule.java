@@ -0,0 +1,116 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.Revision;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Правило распознавания файлов зашифрованных вымогателем одного семейства.
+ * <ul>
+ *     <li>Файл считается зашифрованным если его имя содержит pattern.</li>
+ *     <li>Ревизия считается зашифрованной если ее originalFilename содержит pattern.</li>
+ *     <li>Имя восстановленного файла - текущее имя с заменой pattern на replacement.</li>
+ *     <li>contains (необязательно) - фрагмент имени для отбора кандидатов на стороне GoogleDrive
+ *     (name contains, см. {@link DriveQuery#nameContains}).</li>
+ * </ul>
+ * Правила загружаются из properties-файла ({@link #load}) вида
+ * <pre>
+ * CTB-Locker.pattern = \\.CTB-Locker
+ * CTB-Locker.replacement =
+ * CTB-Locker.contains = CTB-Locker
+ * </pre>
+ */
+public class LockerRule {
+
+    /** Правило для CTB-Locker: к имени файла добавляется ".CTB-Locker". */
+    public static final LockerRule CTB_LOCKER =
+            new LockerRule("CTB-Locker", Pattern.quote(".CTB-Locker"), "", "CTB-Locker");
+
+    private final String name;
+    private final Pattern pattern;
+    private final String replacement;
+    private final String contains;
+
+    public LockerRule(String name, String regex, String replacement) {
+        this(name, regex, replacement, null);
+    }
+
+    /**
+     * @param name название семейства (для отчета)
+     * @param regex регулярное выражение признака шифрования в имени файла
+     * @param replacement замена признака в имени восстановленного файла
+     * @param contains фрагмент имени для отбора кандидатов на стороне GoogleDrive или null
+     */
+    public LockerRule(String name, String regex, String replacement, String contains) {
+        this.name = name;
+        this.pattern = Pattern.compile(regex);
+        this.replacement = replacement;
+        this.contains = contains;
+    }
+
+    /**
+     * Загружает правила из properties-файла file: для каждого семейства name ключи name.pattern и
+     * (необязательно) name.replacement, name.contains.
+     */
+    public static List<LockerRule> load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        List<LockerRule> result = new ArrayList<>();
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            if (!key.endsWith(".pattern")) continue;
+            String name = key.substring(0, key.length() - ".pattern".length());
+            result.add(new LockerRule(name, properties.getProperty(key),
+                    properties.getProperty(name + ".replacement", ""), properties.getProperty(name + ".contains")));
+        }
+        if (result.isEmpty()) throw new IOException("No locker rules in " + file);
+        return result;
+    }
+
+    /** @return первое правило, которому соответствует имя файла, или null */
+    public static LockerRule match(List<LockerRule> rules, String fileName) {
+        for (LockerRule rule : rules) {
+            if (rule.matches(fileName)) return rule;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** @return фрагмент имени для фильтра на стороне GoogleDrive или null */
+    public String getContains() {
+        return contains;
+    }
+
+    /** @return true если имя файла содержит признак шифрования */
+    public boolean matches(String fileName) {
+        return fileName != null && pattern.matcher(fileName).find();
+    }
+
+    /** @return true если ревизия создана вымогателем */
+    public boolean isEncrypted(Revision revision) {
+        return matches(revision.getOriginalFilename());
+    }
+
+    /** @return имя файла без признака шифрования */
+    public String restoredName(String fileName) {
+        return pattern.matcher(fileName).replaceAll(replacement);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
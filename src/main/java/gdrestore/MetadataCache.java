@@ -0,0 +1,324 @@
+package gdrestore;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Локальная копия метаданных GoogleDrive: папки и файлы (id, имя, mimeType, родители, размер, md5Checksum).
+ * <p>
+ * Первый вызов {@link #sync} выполняет полный обход диска, последующие - получают только изменения
+ * через Changes API начиная с сохраненного pageToken. Снимок сохраняется на диск ({@link #save}) и
+ * загружается при следующем запуске ({@link #load}), поэтому повторный запуск не перечисляет весь диск.
+ * <p>
+ * Метаданные хранятся в колоночном {@link MetadataStore} вне кучи, объекты File создаются только при
+ * чтении ({@link #files}), пути каталогов вычисляются по ссылкам на родителей ({@link #getDirectoryIndex}).
+ */
+public class MetadataCache implements Closeable {
+
+    /** Имя файла снимка в корневом каталоге восстановления. */
+    public static final String FILE_NAME = ".gdrestore-metadata";
+
+    /** Поля файлов сохраняемые в снимке. */
+    public static final String FIELDS = "id, name, mimeType, parents, size, md5Checksum, modifiedTime, trashed";
+
+    /** Тип GoogleDrive для папок. */
+    public static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    private static final int MAGIC = 0x47444d43;
+    private static final int VERSION = 2;
+    private static final int CHANGES_PAGE_SIZE = 1000;
+
+    private final MetadataStore store;
+    private String rootId;
+    private String pageToken;
+
+    private MetadataCache(MetadataStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Загружает снимок из файла file в хранилище в direct буферах.
+     * @return снимок или пустой кеш (потребуется полный обход), если файла нет или он поврежден
+     */
+    public static MetadataCache load(Path file) {
+        return new MetadataCache(MetadataStore.offHeap()).read(file);
+    }
+
+    /**
+     * Загружает снимок из файла file в хранилище в отображаемых в память файлах каталога columnsDir.
+     * @see #load(Path)
+     */
+    public static MetadataCache load(Path file, Path columnsDir) throws IOException {
+        return new MetadataCache(MetadataStore.mapped(columnsDir)).read(file);
+    }
+
+    private MetadataCache read(Path file) {
+        if (!Files.exists(file)) return this;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return this;
+            String rootId = in.readUTF();
+            String pageToken = in.readUTF();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                File f = new File().setId(in.readUTF()).setName(in.readUTF()).setMimeType(in.readUTF());
+                int parents = in.readInt();
+                if (parents >= 0) {
+                    List<String> list = new ArrayList<>(parents);
+                    for (int j = 0; j < parents; j++) list.add(in.readUTF());
+                    f.setParents(list);
+                }
+                long size = in.readLong();
+                if (size >= 0) f.setSize(size);
+                String md5 = in.readUTF();
+                if (!md5.isEmpty()) f.setMd5Checksum(md5);
+                long modifiedTime = in.readLong();
+                if (modifiedTime != MetadataStore.NO_TIME) f.setModifiedTime(new DateTime(modifiedTime));
+                f.setTrashed(in.readBoolean());
+                store.put(f);
+            }
+            this.rootId = rootId;
+            this.pageToken = pageToken;
+        } catch (IOException | RuntimeException e) {
+            // Поврежденный снимок - начинаем с полного обхода
+            store.clear();
+        }
+        return this;
+    }
+
+    /**
+     * Сохраняет снимок в файл file. Запись идет во временный файл, который затем заменяет прежний снимок.
+     */
+    public void save(Path file) throws IOException {
+        if (pageToken == null) throw new IllegalStateException("Cache is not synchronized");
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(rootId);
+            out.writeUTF(pageToken);
+            out.writeInt(store.size());
+            for (int i = 0; i < store.records(); i++) {
+                if (!store.isPresent(i)) continue;
+                out.writeUTF(store.getId(i));
+                out.writeUTF(store.getName(i) == null ? "" : store.getName(i));
+                out.writeUTF(store.getMimeType(i) == null ? "" : store.getMimeType(i));
+                int[] parents = store.getParents(i);
+                out.writeInt(parents.length == 0 ? -1 : parents.length);
+                for (int p : parents) out.writeUTF(store.getId(p));
+                out.writeLong(store.getSize(i));
+                out.writeUTF(store.getMd5(i) == null ? "" : store.getMd5(i));
+                out.writeLong(store.getModifiedTime(i));
+                out.writeBoolean(store.isTrashed(i));
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Приводит снимок в соответствие с GoogleDrive: при первом вызове (или если сохраненный pageToken
+     * больше не принимается) выполняет полный обход, иначе применяет изменения с момента прошлой синхронизации.
+     * @return количество примененных изменений или -1 если выполнен полный обход
+     */
+    public int sync(Drive service, RequestScheduler scheduler) throws IOException {
+        return sync(service, scheduler, null);
+    }
+
+    /**
+     * Синхронизирует снимок общего диска (Team Drive) teamDriveId, корневая папка снимка - сам общий диск.
+     * @param teamDriveId идентификатор общего диска или null для диска пользователя
+     * @see #sync(Drive, RequestScheduler)
+     */
+    public int sync(Drive service, RequestScheduler scheduler, String teamDriveId) throws IOException {
+        if (pageToken != null) {
+            try {
+                return applyChanges(service, scheduler, teamDriveId);
+            } catch (HttpResponseException e) {
+                // Токен устарел - изменения недоступны, нужен полный обход
+                if (e.getStatusCode() != 400 && e.getStatusCode() != 404 && e.getStatusCode() != 410) throw e;
+            }
+        }
+        crawl(service, scheduler, teamDriveId);
+        return -1;
+    }
+
+    /**
+     * @return текущая позиция журнала изменений диска (общего диска teamDriveId, если не null); совпадает с
+     * {@link #getPageToken} синхронизированного снимка, пока на диске нет изменений
+     */
+    public static String startPageToken(Drive service, RequestScheduler scheduler, String teamDriveId)
+            throws IOException {
+        Drive.Changes.GetStartPageToken start = service.changes().getStartPageToken();
+        if (teamDriveId != null) start.setTeamDriveId(teamDriveId).setSupportsTeamDrives(true);
+        return scheduler.execute(start).getStartPageToken();
+    }
+
+    private void crawl(Drive service, RequestScheduler scheduler, String teamDriveId) throws IOException {
+        // Токен берется до обхода: изменения сделанные во время обхода будут получены при следующей синхронизации
+        String token = startPageToken(service, scheduler, teamDriveId);
+        rootId = teamDriveId != null ? teamDriveId
+                : scheduler.execute(service.files().get("root").setFields("id")).getId();
+        store.clear();
+        try {
+            new FileListing(service, scheduler, null, "files(" + FIELDS + ")").teamDrive(teamDriveId)
+                    .forEachRemaining(store::put);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        pageToken = token;
+    }
+
+    private int applyChanges(Drive service, RequestScheduler scheduler, String teamDriveId) throws IOException {
+        int applied = 0;
+        String token = pageToken;
+        while (true) {
+            Drive.Changes.List list = service.changes().list(token)
+                    .setPageSize(CHANGES_PAGE_SIZE)
+                    .setIncludeRemoved(true)
+                    .setSpaces("drive")
+                    .setFields("nextPageToken, newStartPageToken, changes(fileId, removed, file(" + FIELDS + "))");
+            if (teamDriveId != null) {
+                list.setTeamDriveId(teamDriveId).setIncludeTeamDriveItems(true).setSupportsTeamDrives(true);
+            }
+            ChangeList changes = scheduler.execute(list);
+            if (changes.getChanges() != null) {
+                for (Change change : changes.getChanges()) {
+                    if (Boolean.TRUE.equals(change.getRemoved()) || change.getFile() == null) {
+                        store.remove(change.getFileId());
+                    } else {
+                        store.put(change.getFile());
+                    }
+                    applied++;
+                }
+            }
+            if (changes.getNewStartPageToken() != null) {
+                pageToken = changes.getNewStartPageToken();
+                return applied;
+            }
+            token = changes.getNextPageToken();
+        }
+    }
+
+    /** @return File с идентификатором корневой папки GoogleDrive */
+    public File getRoot() {
+        return new File().setId(rootId);
+    }
+
+    /** @return все папки (в формате {@link Quickstart#getDirectories}) */
+    public List<File> getDirectories() {
+        return select(true);
+    }
+
+    /**
+     * @return все файлы кроме папок (в формате {@link Quickstart#getFiles}); для больших дисков
+     * используйте {@link #files}
+     */
+    public List<File> getFiles() {
+        return select(false);
+    }
+
+    /**
+     * @return файлы кроме папок в порядке получения; объекты File создаются по мере перебора
+     */
+    public Iterator<File> files() {
+        return new Iterator<File>() {
+            private int next = nextFile(0);
+
+            @Override
+            public boolean hasNext() {
+                return next < store.records();
+            }
+
+            @Override
+            public File next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                File f = store.toFile(next);
+                next = nextFile(next + 1);
+                return f;
+            }
+        };
+    }
+
+    /** @return количество файлов кроме папок */
+    public int getFileCount() {
+        int count = 0;
+        for (int i = nextFile(0); i < store.records(); i = nextFile(i + 1)) count++;
+        return count;
+    }
+
+    /** @return суммарный известный размер файлов */
+    public long getFileBytes() {
+        long bytes = 0;
+        for (int i = nextFile(0); i < store.records(); i = nextFile(i + 1)) bytes += Math.max(0, store.getSize(i));
+        return bytes;
+    }
+
+    /**
+     * Размещает папки снимка в дереве каталогов (по правилам {@link DirectoryTreeBuilder}) с корнем rootPath.
+     * @return индекс каталогов, пути которого вычисляются по снимку
+     */
+    public DirectoryIndex getDirectoryIndex(String rootPath) {
+        store.buildTree(rootId == null ? MetadataStore.NONE : store.indexOf(rootId));
+        return new DirectoryIndex(rootPath, rootId, store);
+    }
+
+    /** @return хранилище метаданных снимка */
+    public MetadataStore getStore() {
+        return store;
+    }
+
+    /** @return количество папок и файлов в снимке */
+    public int size() {
+        return store.size();
+    }
+
+    /** @return pageToken с которого начнется следующая синхронизация или null если синхронизации не было */
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+    private List<File> select(boolean folders) {
+        if (rootId == null) return Collections.emptyList();
+        List<File> result = new ArrayList<>();
+        for (int i = 0; i < store.records(); i++) {
+            if (store.isPresent(i) && store.isFolder(i) == folders) result.add(store.toFile(i));
+        }
+        return result;
+    }
+
+    /** @return номер первого файла (не папки) начиная с from или store.records() */
+    private int nextFile(int from) {
+        if (rootId == null) return store.records();
+        int i = from;
+        while (i < store.records() && (!store.isPresent(i) || store.isFolder(i))) i++;
+        return i;
+    }
+}
@@ -0,0 +1,614 @@
+package gdrestore;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Колоночное хранилище метаданных диска вне кучи Java, рассчитанное на миллионы файлов.
+ * <p>
+ * Каждая папка и файл - номер записи. Идентификаторы кодируются словарем (id -> номер записи, хеш-таблица с
+ * открытой адресацией), родители хранятся номерами записей. Размер, время изменения, md5 (16 байт) и признаки
+ * лежат в колонках примитивов, строки (id и имя) - в общей области UTF-8, mimeType - номером в словаре.
+ * Объекты File создаются только на время обработки ({@link #toFile}), пути каталогов не хранятся, а
+ * вычисляются по ссылкам на родителей ({@link #getPath}).
+ * <p>
+ * Колонки размещаются в direct буферах ({@link #offHeap}) или в отображаемых в память файлах
+ * ({@link #mapped}) - тогда объем метаданных ограничен диском, а не памятью процесса. Запись выполняется из
+ * одного потока; заполненное хранилище читается из любого количества потоков.
+ */
+public class MetadataStore implements Closeable {
+
+    /** Номер отсутствующей записи. */
+    public static final int NONE = -1;
+
+    /** Время изменения не известно. */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    /** Папка размещена в {@link DirectoryTreeBuilder#ORPHANED_DIR}. */
+    private static final int ORPHANED = -2;
+    /** Запись не размещена в дереве каталогов. */
+    private static final int UNPLACED = -3;
+
+    private static final byte PRESENT = 1;
+    private static final byte FOLDER = 2;
+    private static final byte TRASHED = 4;
+    private static final byte HAS_MD5 = 8;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MD5_LENGTH = 16;
+
+    private final Path dir;
+    private final Column ids = new Column("ids", 4);
+    private final Column names = new Column("names", 4);
+    private final Column mimeTypes = new Column("mimeTypes", 4);
+    private final Column parents = new Column("parents", 4);
+    /** Смещение списка родителей в extra для записей с несколькими родителями. */
+    private final Column links = new Column("links", 4);
+    private final Column sizes = new Column("sizes", 8);
+    private final Column modified = new Column("modified", 8);
+    private final Column md5 = new Column("md5", MD5_LENGTH);
+    private final Column flags = new Column("flags", 1);
+    /** Родитель в дереве каталогов (см. {@link #buildTree}). */
+    private final Column placement = new Column("placement", 4);
+    /** Строки: длина и байты UTF-8. */
+    private final Column strings = new Column("strings", 1);
+    /** Списки родителей: количество и номера записей. */
+    private final Column extra = new Column("extra", 4);
+    private Column table;
+    private int mask;
+
+    private final List<String> mimeTypeList = new ArrayList<>();
+    private final Map<String, Integer> mimeTypeIndex = new HashMap<>();
+
+    private int records;
+    private int count;
+    private int stringsLength;
+    private int extraLength;
+    private int treeRoot = NONE;
+    private int placed;
+    private int orphans;
+    private int cycles;
+
+    private MetadataStore(Path dir) {
+        this.dir = dir;
+        this.table = newTable(INITIAL_CAPACITY * 2);
+    }
+
+    /** @return хранилище в direct буферах */
+    public static MetadataStore offHeap() {
+        return new MetadataStore(null);
+    }
+
+    /**
+     * @param parent каталог, в котором создается временный каталог колонок (удаляется в {@link #close})
+     * @return хранилище в отображаемых в память файлах
+     */
+    public static MetadataStore mapped(Path parent) throws IOException {
+        return new MetadataStore(Files.createTempDirectory(parent, ".gdrestore-columns"));
+    }
+
+    /**
+     * Добавляет запись f или заменяет запись с тем же id. Родители, которых еще нет в хранилище, добавляются
+     * как пустые записи и заполняются, когда будут получены.
+     * @return номер записи
+     */
+    public int put(File f) {
+        int i = intern(f.getId());
+        if (!isPresent(i)) count++;
+        byte fl = PRESENT;
+        if (MetadataCache.FOLDER_MIME_TYPE.equals(f.getMimeType())) fl |= FOLDER;
+        if (Boolean.TRUE.equals(f.getTrashed())) fl |= TRASHED;
+        names.putInt(i, f.getName() == null ? NONE : append(f.getName()));
+        mimeTypes.putInt(i, mimeType(f.getMimeType()));
+        sizes.putLong(i, f.getSize() == null ? -1 : f.getSize());
+        modified.putLong(i, f.getModifiedTime() == null ? NO_TIME : f.getModifiedTime().getValue());
+        if (md5(i, f.getMd5Checksum())) fl |= HAS_MD5;
+
+        List<String> ps = f.getParents();
+        int first = ps == null || ps.isEmpty() ? NONE : intern(ps.get(0));
+        int link = NONE;
+        if (ps != null && ps.size() > 1) {
+            int[] indices = new int[ps.size()];
+            indices[0] = first;
+            for (int k = 1; k < indices.length; k++) indices[k] = intern(ps.get(k));
+            link = extraLength;
+            extra.ensure(extraLength + indices.length + 1);
+            extra.putInt(extraLength++, indices.length);
+            for (int index : indices) extra.putInt(extraLength++, index);
+        }
+        parents.putInt(i, first);
+        links.putInt(i, link);
+        flags.put(i, fl);
+        return i;
+    }
+
+    /**
+     * Удаляет запись с идентификатором id. Номер записи сохраняется, так как на нее могут ссылаться потомки.
+     * @return true если запись была
+     */
+    public boolean remove(String id) {
+        int i = indexOf(id);
+        if (i == NONE || !isPresent(i)) return false;
+        flags.put(i, (byte) 0);
+        count--;
+        return true;
+    }
+
+    /** Удаляет все записи. */
+    public void clear() {
+        records = 0;
+        count = 0;
+        stringsLength = 0;
+        extraLength = 0;
+        treeRoot = NONE;
+        placed = orphans = cycles = 0;
+        for (int s = 0; s <= mask; s++) table.putInt(s, 0);
+    }
+
+    /** @return номер записи с идентификатором id или {@link #NONE} */
+    public int indexOf(String id) {
+        if (id == null) return NONE;
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        return table.getInt(slot(key, hash(key))) - 1;
+    }
+
+    /** @return количество номеров записей, включая удаленные и известные только как родители */
+    public int records() {
+        return records;
+    }
+
+    /** @return количество папок и файлов */
+    public int size() {
+        return count;
+    }
+
+    /** @return true если запись i получена с диска и не удалена */
+    public boolean isPresent(int i) {
+        return (flags.get(i) & PRESENT) != 0;
+    }
+
+    public boolean isFolder(int i) {
+        return (flags.get(i) & FOLDER) != 0;
+    }
+
+    public boolean isTrashed(int i) {
+        return (flags.get(i) & TRASHED) != 0;
+    }
+
+    public String getId(int i) {
+        return string(ids.getInt(i));
+    }
+
+    public String getName(int i) {
+        int offset = names.getInt(i);
+        return offset == NONE ? null : string(offset);
+    }
+
+    public String getMimeType(int i) {
+        int index = mimeTypes.getInt(i);
+        return index == NONE ? null : mimeTypeList.get(index);
+    }
+
+    /** @return размер или -1 если неизвестен */
+    public long getSize(int i) {
+        return sizes.getLong(i);
+    }
+
+    /** @return время изменения в миллисекундах или {@link #NO_TIME} */
+    public long getModifiedTime(int i) {
+        return modified.getLong(i);
+    }
+
+    /** @return md5 в шестнадцатеричном виде или null */
+    public String getMd5(int i) {
+        if ((flags.get(i) & HAS_MD5) == 0) return null;
+        byte[] digest = new byte[MD5_LENGTH];
+        for (int k = 0; k < MD5_LENGTH; k++) digest[k] = md5.buffer.get(i * MD5_LENGTH + k);
+        return Checksums.hex(digest);
+    }
+
+    /** @return номера записей родителей в порядке parents */
+    public int[] getParents(int i) {
+        int link = links.getInt(i);
+        if (link != NONE) {
+            int[] result = new int[extra.getInt(link)];
+            for (int k = 0; k < result.length; k++) result[k] = extra.getInt(link + 1 + k);
+            return result;
+        }
+        int first = parents.getInt(i);
+        return first == NONE ? new int[0] : new int[]{first};
+    }
+
+    /**
+     * @return запись i в виде File (в формате {@link MetadataCache#FIELDS}); объект не связан с хранилищем
+     */
+    public File toFile(int i) {
+        File f = new File().setId(getId(i)).setName(getName(i)).setMimeType(getMimeType(i))
+                .setTrashed(isTrashed(i));
+        int[] ps = getParents(i);
+        if (ps.length > 0) {
+            List<String> list = new ArrayList<>(ps.length);
+            for (int p : ps) list.add(getId(p));
+            f.setParents(list);
+        }
+        if (getSize(i) >= 0) f.setSize(getSize(i));
+        if (getModifiedTime(i) != NO_TIME) f.setModifiedTime(new DateTime(getModifiedTime(i)));
+        f.setMd5Checksum(getMd5(i));
+        return f;
+    }
+
+    /**
+     * Размещает папки в дереве каталогов с корнем root по тем же правилам, что и {@link DirectoryTreeBuilder}:
+     * папка с несколькими родителями - под родителем ближайшим к корню, папки без известных родителей и
+     * недостижимые из-за циклов - в {@link DirectoryTreeBuilder#ORPHANED_DIR}. Хранится только родитель в
+     * дереве, пути вычисляются в {@link #getPath}.
+     * @param root номер записи корня или {@link #NONE}, если у корня нет потомков
+     */
+    public void buildTree(int root) {
+        int n = records;
+        treeRoot = root;
+        placed = orphans = cycles = 0;
+        placement.ensure(n);
+        for (int i = 0; i < n; i++) placement.putInt(i, UNPLACED);
+
+        // Индекс родитель -> потомки в формате CSR: потомки p лежат в children[start[p]..start[p+1])
+        int[] start = new int[n + 2];
+        boolean[] hasKnownParent = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            if (!isTreeFolder(i)) continue;
+            for (int p : getParents(i)) {
+                if (p == root || isTreeFolder(p)) {
+                    start[p + 2]++;
+                    hasKnownParent[i] = true;
+                }
+            }
+        }
+        for (int i = 2; i < start.length; i++) start[i] += start[i - 1];
+        int[] children = new int[start[n + 1]];
+        for (int i = 0; i < n; i++) {
+            if (!isTreeFolder(i)) continue;
+            for (int p : getParents(i)) {
+                if (p == root || isTreeFolder(p)) children[start[p + 1]++] = i;
+            }
+        }
+
+        int[] queue = new int[n];
+        if (root != NONE) walk(root, start, children, queue);
+        for (int i = 0; i < n; i++) {
+            if (isTreeFolder(i) && placement.getInt(i) == UNPLACED && !hasKnownParent[i]) {
+                orphans++;
+                attach(i, start, children, queue);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (isTreeFolder(i) && placement.getInt(i) == UNPLACED) {
+                cycles++;
+                attach(i, start, children, queue);
+            }
+        }
+    }
+
+    /**
+     * @param rootPath локальный путь корня (с завершающим '/')
+     * @return локальный путь папки i (с завершающим '/') или null если папка не размещена в дереве
+     */
+    public String getPath(int i, String rootPath) {
+        if (i < 0 || i >= records) return null;
+        if (i == treeRoot) return rootPath;
+        if (placement.getInt(i) == UNPLACED) return null;
+        int depth = 0;
+        int[] chain = new int[16];
+        int current = i;
+        while (current != treeRoot && current != ORPHANED) {
+            if (depth == chain.length) chain = Arrays.copyOf(chain, depth * 2);
+            chain[depth++] = current;
+            current = placement.getInt(current);
+        }
+        StringBuilder path = new StringBuilder(rootPath);
+        if (current == ORPHANED) path.append(DirectoryTreeBuilder.ORPHANED_DIR);
+        for (int k = depth - 1; k >= 0; k--) path.append(getName(chain[k])).append('/');
+        return path.toString();
+    }
+
+    /** @return true если папка i (не корень) размещена в дереве каталогов */
+    public boolean isPlaced(int i) {
+        return i != treeRoot && placement.getInt(i) != UNPLACED;
+    }
+
+    /** @return количество папок размещенных в дереве каталогов (без корня) */
+    public int getPlacedFolders() {
+        return placed;
+    }
+
+    /** @return количество папок без известных родителей при последнем {@link #buildTree} */
+    public int getOrphans() {
+        return orphans;
+    }
+
+    /** @return количество папок, на которых были разорваны циклы при последнем {@link #buildTree} */
+    public int getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Освобождает колонки; файлы колонок {@link #mapped} хранилища удаляются.
+     */
+    @Override
+    public void close() throws IOException {
+        if (dir == null) return;
+        IOException error = null;
+        for (Column column : new Column[]{ids, names, mimeTypes, parents, links, sizes, modified, md5, flags,
+                placement, strings, extra, table}) {
+            try {
+                column.release();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        Files.deleteIfExists(dir);
+        if (error != null) throw error;
+    }
+
+    @Override
+    public String toString() {
+        return "Metadata store of " + count + " entries, " + stringsLength + " bytes of strings"
+                + (dir == null ? "" : " in " + dir);
+    }
+
+    private boolean isTreeFolder(int i) {
+        return i != treeRoot && (flags.get(i) & (PRESENT | FOLDER)) == (PRESENT | FOLDER);
+    }
+
+    private void attach(int i, int[] start, int[] children, int[] queue) {
+        placement.putInt(i, ORPHANED);
+        placed++;
+        walk(i, start, children, queue);
+    }
+
+    /**
+     * Обход в ширину от from: каждому еще не размещенному потомку назначается родитель в дереве.
+     */
+    private void walk(int from, int[] start, int[] children, int[] queue) {
+        int head = 0;
+        int tail = 0;
+        int current = from;
+        while (true) {
+            for (int c = start[current]; c < start[current + 1]; c++) {
+                int child = children[c];
+                if (placement.getInt(child) != UNPLACED) continue;
+                placement.putInt(child, current);
+                placed++;
+                queue[tail++] = child;
+            }
+            if (head == tail) break;
+            current = queue[head++];
+        }
+    }
+
+    private int intern(String id) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        int s = slot(key, hash(key));
+        int i = table.getInt(s) - 1;
+        if (i != NONE) return i;
+        i = records++;
+        ensure(records);
+        ids.putInt(i, append(key));
+        names.putInt(i, NONE);
+        mimeTypes.putInt(i, NONE);
+        parents.putInt(i, NONE);
+        links.putInt(i, NONE);
+        sizes.putLong(i, -1);
+        modified.putLong(i, NO_TIME);
+        flags.put(i, (byte) 0);
+        placement.putInt(i, UNPLACED);
+        table.putInt(s, i + 1);
+        if (records * 2 > mask + 1) rehash((mask + 1) * 2);
+        return i;
+    }
+
+    private void ensure(int capacity) {
+        for (Column column : new Column[]{ids, names, mimeTypes, parents, links, sizes, modified, md5, flags,
+                placement}) {
+            column.ensure(capacity);
+        }
+    }
+
+    private int slot(byte[] key, int hash) {
+        int s = hash & mask;
+        while (true) {
+            int i = table.getInt(s) - 1;
+            if (i == NONE || equalsAt(ids.getInt(i), key)) return s;
+            s = (s + 1) & mask;
+        }
+    }
+
+    private void rehash(int slots) {
+        Column old = table;
+        table = newTable(slots);
+        for (int i = 0; i < records; i++) {
+            int s = hashAt(ids.getInt(i)) & mask;
+            while (table.getInt(s) != 0) s = (s + 1) & mask;
+            table.putInt(s, i + 1);
+        }
+        try {
+            old.release();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Column newTable(int slots) {
+        Column column = new Column("table-" + slots, 4);
+        column.ensure(slots);
+        for (int s = 0; s < slots; s++) column.putInt(s, 0);
+        mask = slots - 1;
+        return column;
+    }
+
+    private int mimeType(String mimeType) {
+        if (mimeType == null) return NONE;
+        Integer index = mimeTypeIndex.get(mimeType);
+        if (index == null) {
+            index = mimeTypeList.size();
+            mimeTypeList.add(mimeType);
+            mimeTypeIndex.put(mimeType, index);
+        }
+        return index;
+    }
+
+    /** Записывает md5 в колонку; значение не в формате md5 не сохраняется. */
+    private boolean md5(int i, String hex) {
+        if (hex == null || hex.length() != MD5_LENGTH * 2) return false;
+        for (int k = 0; k < MD5_LENGTH; k++) {
+            int hi = Character.digit(hex.charAt(k * 2), 16);
+            int lo = Character.digit(hex.charAt(k * 2 + 1), 16);
+            if (hi < 0 || lo < 0) return false;
+            md5.put(i * MD5_LENGTH + k, (byte) (hi << 4 | lo));
+        }
+        return true;
+    }
+
+    private int append(String s) {
+        return append(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int append(byte[] bytes) {
+        int offset = stringsLength;
+        strings.ensure((long) offset + 4 + bytes.length);
+        strings.buffer.putInt(offset, bytes.length);
+        ByteBuffer target = strings.buffer.duplicate();
+        target.position(offset + 4);
+        target.put(bytes);
+        stringsLength = offset + 4 + bytes.length;
+        return offset;
+    }
+
+    private String string(int offset) {
+        byte[] bytes = new byte[strings.buffer.getInt(offset)];
+        ByteBuffer source = strings.buffer.duplicate();
+        source.position(offset + 4);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean equalsAt(int offset, byte[] key) {
+        if (strings.buffer.getInt(offset) != key.length) return false;
+        for (int k = 0; k < key.length; k++) {
+            if (strings.buffer.get(offset + 4 + k) != key[k]) return false;
+        }
+        return true;
+    }
+
+    /** FNV-1a по байтам строки. */
+    private static int hash(byte[] key) {
+        int h = 0x811c9dc5;
+        for (byte b : key) h = (h ^ (b & 0xff)) * 0x01000193;
+        return h ^ (h >>> 16);
+    }
+
+    private int hashAt(int offset) {
+        int length = strings.buffer.getInt(offset);
+        int h = 0x811c9dc5;
+        for (int k = 0; k < length; k++) h = (h ^ (strings.buffer.get(offset + 4 + k) & 0xff)) * 0x01000193;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Колонка значений фиксированной ширины в direct буфере или отображаемом в память файле. Емкость
+     * удваивается; отображаемый файл при этом расширяется без копирования.
+     */
+    private final class Column {
+        private final String name;
+        private final int width;
+        private ByteBuffer buffer;
+        private long capacity;
+        private FileChannel channel;
+
+        private Column(String name, int width) {
+            this.name = name;
+            this.width = width;
+        }
+
+        void ensure(long elements) {
+            if (elements <= capacity) return;
+            long grown = Math.max(elements, Math.max(capacity * 2, INITIAL_CAPACITY));
+            if (grown * width > Integer.MAX_VALUE) {
+                grown = Integer.MAX_VALUE / width;
+                if (grown < elements) throw new IllegalStateException("Metadata column " + name + " is full");
+            }
+            int bytes = (int) (grown * width);
+            ByteBuffer fresh;
+            if (dir == null) {
+                fresh = ByteBuffer.allocateDirect(bytes);
+                if (buffer != null) {
+                    ByteBuffer old = buffer.duplicate();
+                    old.clear();
+                    fresh.put(old);
+                    fresh.clear();
+                }
+            } else {
+                try {
+                    if (channel == null) {
+                        channel = FileChannel.open(dir.resolve(name), StandardOpenOption.CREATE_NEW,
+                                StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    }
+                    fresh = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            buffer = fresh.order(ByteOrder.nativeOrder());
+            capacity = grown;
+        }
+
+        byte get(int i) {
+            return buffer.get(i);
+        }
+
+        void put(int i, byte value) {
+            buffer.put(i, value);
+        }
+
+        int getInt(int i) {
+            return buffer.getInt(i * 4);
+        }
+
+        void putInt(int i, int value) {
+            buffer.putInt(i * 4, value);
+        }
+
+        long getLong(int i) {
+            return buffer.getLong(i * 8);
+        }
+
+        void putLong(int i, long value) {
+            buffer.putLong(i * 8, value);
+        }
+
+        void release() throws IOException {
+            buffer = null;
+            capacity = 0;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+                Files.deleteIfExists(dir.resolve(name));
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package gdrestore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Общие средства конвейеров ({@link RestoreEngine}, {@link RemediationEngine}): рабочие потоки этапов,
+ * связанные ограниченными очередями, и маркер конца очереди.
+ */
+final class Pipeline {
+
+    /** Маркер конца очереди: получив его рабочий поток завершается. */
+    static final Object POISON = new Object();
+
+    /**
+     * Тело рабочего потока этапа.
+     */
+    interface Worker {
+        void run() throws InterruptedException;
+    }
+
+    private Pipeline() {
+    }
+
+    /**
+     * Запускает count потоков-демонов этапа с именами name-i.
+     */
+    static List<Thread> start(String name, int count, Worker worker) {
+        List<Thread> threads = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    worker.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, name + "-" + i);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        return threads;
+    }
+
+    /**
+     * Забирает из очереди в batch от одного до max элементов (ждет появления хотя бы одного).
+     * @return true если получен маркер завершения этапа
+     */
+    @SuppressWarnings("unchecked")
+    static <T> boolean take(BlockingQueue<Object> queue, List<T> batch, int max) throws InterruptedException {
+        List<Object> taken = new ArrayList<>(max);
+        taken.add(queue.take());
+        queue.drainTo(taken, max - 1);
+        batch.clear();
+        boolean done = false;
+        for (Object o : taken) {
+            if (o != POISON) {
+                batch.add((T) o);
+            } else if (done) {
+                // Маркер другого потока - возвращаем в очередь
+                queue.put(POISON);
+            } else {
+                done = true;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Отправляет в очередь маркер завершения для каждого потока этапа и ждет их окончания.
+     */
+    static void finish(BlockingQueue<Object> queue, List<Thread> threads) throws InterruptedException {
+        for (int i = 0; i < threads.size(); i++) queue.put(POISON);
+        for (Thread t : threads) t.join();
+    }
+}
@@ -0,0 +1,798 @@
+package gdrestore;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
+import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.store.FileDataStoreFactory;
+
+import com.google.api.services.drive.DriveScopes;
+import com.google.api.services.drive.model.*;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import java.io.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Quickstart {
+    /** Application name. */
+    private static final String APPLICATION_NAME =
+            "Drive API Java Quickstart";
+
+    /** Directory to store user credentials for this application. */
+    private static final java.io.File DATA_STORE_DIR = new java.io.File(
+            System.getProperty("user.home"), ".credentials/drive-java-quickstart");
+
+    /** Global instance of the {@link FileDataStoreFactory}. */
+    private static FileDataStoreFactory DATA_STORE_FACTORY;
+
+    /** Global instance of the JSON factory. */
+    private static final JsonFactory JSON_FACTORY =
+            JacksonFactory.getDefaultInstance();
+
+    /** Global instance of the HTTP transport. */
+    private static HttpTransport HTTP_TRANSPORT;
+
+    /** Global instance of the scopes required by this quickstart.
+     *
+     * If modifying these scopes, delete your previously saved credentials
+     * at ~/.credentials/drive-java-quickstart
+     */
+    private static final List<String> SCOPES =
+            Arrays.asList(DriveScopes.DRIVE, DriveScopes.DRIVE_FILE, DriveScopes.DRIVE_METADATA);
+
+    public static final String ROOT_PATH = "/media/lexover/Media/GoogleDriveRestore/";
+
+    /** Фильтр выбора папок. */
+    public static final String FOLDERS_FILTER = "mimeType='application/vnd.google-apps.folder'";
+
+    /** Фильтр выбора файлов (всего кроме папок). */
+    public static final String FILES_FILTER = "mimeType!='application/vnd.google-apps.folder'";
+
+    /** Минимальный набор полей необходимый для построения дерева и восстановления. */
+    public static final String FILES_FIELDS = "files(id, name, mimeType, parents)";
+
+    /** Поля ревизий необходимые для выбора ревизии и восстановления. */
+    public static final String REVISION_FIELDS =
+            "revisions(id, modifiedTime, originalFilename, md5Checksum, size, exportLinks)";
+
+    /** Количество потоков на каждом этапе восстановления (см. {@link RestoreEngine}). */
+    public static final int RESTORE_WORKERS = Integer.getInteger("gdrestore.workers", 16);
+
+    /** Бюджет запросов к GoogleDrive в секунду (должен быть не больше квоты проекта на пользователя). */
+    public static final int REQUESTS_PER_SECOND = Integer.getInteger("gdrestore.rps", 100);
+
+    /** Файл правил распознавания зашифрованных файлов (см. {@link LockerRule#load}), по умолчанию - CTB-Locker. */
+    public static final String LOCKER_RULES = System.getProperty("gdrestore.lockerRules");
+
+    /** Отчет о восстановлении зашифрованных файлов (см. {@link #restoreFiles}). */
+    public static final String REMEDIATION_REPORT = "RemediationReport.tsv";
+
+    /** Размер части при загрузке файлов, МБ (см. {@link ChunkedDownloader}). */
+    public static final int DOWNLOAD_CHUNK_MB = Integer.getInteger("gdrestore.chunkMb", 8);
+
+    /** Количество параллельных диапазонов при загрузке больших файлов. */
+    public static final int DOWNLOAD_RANGES = Integer.getInteger("gdrestore.ranges", ChunkedDownloader.DEFAULT_RANGES);
+
+    /** Количество потоков одновременно пишущих на диск (см. {@link WriteScheduler}). */
+    public static final int DISK_WRITERS = Integer.getInteger("gdrestore.diskWriters", WriteScheduler.DEFAULT_WRITERS);
+
+    /** Скорость записи на диск, МБ/с (0 - без ограничения). */
+    public static final int DISK_MB = Integer.getInteger("gdrestore.diskMb", 0);
+
+    /** Размер файлов, которые загружаются в память и записываются целиком, КБ. */
+    public static final int SMALL_FILE_KB =
+            Integer.getInteger("gdrestore.smallFileKb", WriteScheduler.DEFAULT_SMALL_FILE_SIZE / 1024);
+
+    /** Общий планировщик записи на локальный диск. */
+    public static final WriteScheduler WRITES =
+            new WriteScheduler(DISK_WRITERS, DISK_MB * 1024L * 1024, SMALL_FILE_KB * 1024);
+
+    /**
+     * Каталог индекса содержимого (см. {@link ContentStore}), общего для всех восстановлений. По умолчанию
+     * у каждого задания свой индекс в каталоге восстановления. Пустая строка отключает индекс.
+     */
+    public static final String CONTENT_STORE = System.getProperty("gdrestore.contentStore");
+
+    /**
+     * Создавать повторяющиеся файлы жесткими ссылками на первый восстановленный с тем же содержимым. По
+     * умолчанию они копируются: файлы-ссылки разделяют содержимое, и изменение одного меняет все остальные.
+     */
+    public static final boolean CONTENT_LINKS = Boolean.getBoolean("gdrestore.contentLinks");
+
+    /** Файл форматов выгрузки Google Документов (см. {@link ExportFormat#load}), по умолчанию - Office. */
+    public static final String EXPORT_FORMATS = System.getProperty("gdrestore.exportFormats");
+
+    /** Количество потоков выгрузки Google Документов (см. {@link Exporter}). */
+    public static final int EXPORT_WORKERS =
+            Integer.getInteger("gdrestore.exportWorkers", RestoreEngine.DEFAULT_EXPORT_WORKERS);
+
+    /**
+     * Хранить снимок метаданных (см. {@link MetadataStore}) в отображаемых в память файлах каталога
+     * восстановления, а не в direct буферах: для дисков, метаданные которых не помещаются в память.
+     */
+    public static final boolean METADATA_MAPPED = Boolean.getBoolean("gdrestore.metadataMapped");
+
+    /**
+     * На сколько дисков рассчитаны общие места загрузки: одновременно загружается не более
+     * RESTORE_JOBS * RESTORE_WORKERS файлов всех дисков (см. {@link RestoreOrchestrator}).
+     */
+    public static final int RESTORE_JOBS = Integer.getInteger("gdrestore.jobs", 4);
+
+    /** Общая скорость загрузки всех дисков, МБ/с (0 - без ограничения). */
+    public static final int BANDWIDTH_MB = Integer.getInteger("gdrestore.bandwidthMb", 0);
+
+    /** Интервал вывода показателей восстановления, с (0 - не выводить). */
+    public static final int METRICS_INTERVAL = Integer.getInteger("gdrestore.metricsInterval", 30);
+
+    /** Файл показателей в текстовом формате Prometheus (не задан - только журнал и JMX). */
+    public static final String METRICS_FILE = System.getProperty("gdrestore.metricsFile");
+
+    /** Показатели восстановления (см. {@link RestoreMetrics}). */
+    public static final RestoreMetrics METRICS = new RestoreMetrics();
+
+    /** Общий планировщик через который выполняются все запросы к GoogleDrive. */
+    public static final RequestScheduler SCHEDULER = new RequestScheduler(REQUESTS_PER_SECOND, RESTORE_WORKERS * 2);
+
+    static {
+        SCHEDULER.setMetrics(METRICS);
+        try {
+            HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+            DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates an authorized Credential object.
+     * @return an authorized Credential object.
+     * @throws IOException
+     */
+    public static Credential authorize() throws IOException {
+        return authorize("user");
+    }
+
+    /**
+     * Creates an authorized Credential object for the account userId. Credentials of each account
+     * are stored separately in DATA_STORE_DIR.
+     * @param userId account key in the credential store
+     * @return an authorized Credential object.
+     * @throws IOException
+     */
+    public static Credential authorize(String userId) throws IOException {
+        // Load client secrets.
+        InputStream in =
+                Quickstart.class.getResourceAsStream("/client_secret.json");
+        GoogleClientSecrets clientSecrets =
+                GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(in));
+
+        // Build flow and trigger user authorization request.
+        GoogleAuthorizationCodeFlow flow =
+                new GoogleAuthorizationCodeFlow.Builder(
+                        HTTP_TRANSPORT, JSON_FACTORY, clientSecrets, SCOPES)
+                        .setDataStoreFactory(DATA_STORE_FACTORY)
+                        .setAccessType("offline")
+                        .build();
+        Credential credential = new AuthorizationCodeInstalledApp(
+                flow, new LocalServerReceiver()).authorize(userId);
+        System.out.println(
+                "Credentials saved to " + DATA_STORE_DIR.getAbsolutePath());
+        return credential;
+    }
+
+    /**
+     * Build and return an authorized Drive client service.
+     * @return an authorized Drive client service
+     * @throws IOException
+     */
+    public static Drive getDriveService() throws IOException {
+        return getDriveService("user");
+    }
+
+    /**
+     * Build and return a Drive client service authorized for the account userId. All services share
+     * one HTTP transport.
+     * @param userId account key in the credential store
+     * @return an authorized Drive client service
+     * @throws IOException
+     */
+    public static Drive getDriveService(String userId) throws IOException {
+        Credential credential = authorize(userId);
+        return new Drive.Builder(
+                HTTP_TRANSPORT, JSON_FACTORY, credential)
+                .setApplicationName(APPLICATION_NAME)
+                .build();
+    }
+
+
+    /**
+     * Возвращает список файлов с установленными полями в соответствии с fields который
+     * соответсвует переданному фильтру filter. Формат фильтра согласно документации GoogleDrive
+     * как пример фильтр для выбора исключительно папок: "mimeType='application/vnd.google-apps.folder'"
+     * fields также указывается в формате предусмотренном GoogleDrive
+     * Как пример fields="files(id, name, parents)" считает поля id name и parens для фалов.
+     * @param service - GoogleDrive сервис
+     * @param filter строка фильтра
+     * @param fields строка выбора полей
+     * @return список фалов в соответствии с указанным фильтром, где установлены поля в соответствии с fields
+     * @throws IOException
+     */
+    public static List<File> getAllFiles(Drive service, String filter, String fields) throws  IOException{
+        List<File> result = new ArrayList<>();
+        FileListing listing = new FileListing(service, SCHEDULER, filter, fields)
+                .onPage((page) -> METRICS.listed(page.size()));
+        try {
+            listing.forEachRemaining(result::add);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return result;
+    }
+
+    /**
+     * Выбирает все файлы соответствующие запросу query. Фильтрация выполняется на стороне GoogleDrive.
+     * @param service - GoogleDrive сервис
+     * @param query условия выбора (см. {@link DriveQuery})
+     * @param fields строка выбора полей
+     * @return список файлов
+     * @throws IOException
+     */
+    public static List<File> getAllFiles(Drive service, DriveQuery query, String fields) throws IOException {
+        return getAllFiles(service, query.build(), fields);
+    }
+
+    /**
+     * Выполняет независимые запросы queries параллельно (например, части запроса по группам родительских
+     * папок, см. {@link DriveQuery#partitionByParents}) и объединяет результат без повторов.
+     * @param service - GoogleDrive сервис
+     * @param queries запросы
+     * @param fields строка выбора полей (должна включать id)
+     * @return список файлов
+     * @throws IOException
+     */
+    public static List<File> getAllFiles(Drive service, List<DriveQuery> queries, String fields) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(queries.size(), RESTORE_WORKERS)));
+        try {
+            List<Future<List<File>>> futures = new ArrayList<>(queries.size());
+            for (DriveQuery query : queries) {
+                futures.add(executor.submit(() -> {
+                    List<File> files = new ArrayList<>();
+                    listFiles(service, query.build(), fields).forEachRemaining(files::add);
+                    return files;
+                }));
+            }
+            Map<String, File> result = new LinkedHashMap<>();
+            for (Future<List<File>> future : futures) {
+                for (File f : future.get()) result.putIfAbsent(f.getId(), f);
+            }
+            return new ArrayList<>(result.values());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Listing interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Возвращает ленивый перечень файлов соответствующих фильтру filter (формат filter и fields как в
+     * {@link #getAllFiles}). Страницы запрашиваются по мере обработки, следующая - заранее в фоне.
+     * @param service - GoogleDrive сервис
+     * @param filter строка фильтра
+     * @param fields строка выбора полей
+     * @return перечень файлов
+     */
+    public static FileListing listFiles(Drive service, String filter, String fields) {
+        return new FileListing(service, SCHEDULER, filter, fields);
+    }
+
+    /**
+     * Ленивый перечень всех файлов на диске (которые не дирректории) с данными id, name, parents.
+     * @param service - сервис GoogleDrive
+     * @return перечень файлов
+     */
+    public static FileListing listFiles(Drive service) {
+        return listFiles(service, FILES_FILTER, FILES_FIELDS);
+    }
+
+    /**
+     * Выбирает все папки на диске. И возвращает их в виде списка файлов(GoogleDrive).
+     * Каждая папка имеет свой id и имя. А также идентификаторы родителей (parents).
+     * С помощью этих данных в дальнейшем можно строить дерево каталогов.
+     * @param service - сервис GoogleDrive
+     * @return список директорий с данными id, name, parents
+     * @throws IOException
+     */
+    public static List<File> getDirectories(Drive service) throws IOException{
+        List<File> result = getAllFiles(service, FOLDERS_FILTER, FILES_FIELDS);
+        System.out.println("Loaded directory list ("+result.size()+" els).");
+        return result;
+    }
+
+    /**
+     * Выбирает все файлы на диске (которые не дирректории). И возвращает их в виде списка(GoogleDrive).
+     * Для файлов получены данные - id, name, parents.
+     * @param service - сервис GoogleDrive
+     * @return список файлов с данными id, name, parents
+     * @throws IOException
+     */
+    public static List<File> getFiles(Drive service) throws IOException{
+        List<File> result = getAllFiles(service, FILES_FILTER, FILES_FIELDS);
+        System.out.println("Loaded file list ("+result.size()+" els).");
+        return result;
+    }
+
+    /**
+     * Загружает локальный снимок метаданных диска из ROOT_PATH и синхронизирует его с GoogleDrive: при первом
+     * запуске выполняется полный обход, при последующих - запрашиваются только изменения.
+     * @param service сервис GoogleDrive
+     * @return актуальный снимок метаданных
+     * @throws IOException
+     */
+    public static MetadataCache loadMetadata(Drive service) throws IOException {
+        return loadMetadata(service, SCHEDULER, new java.io.File(ROOT_PATH).toPath(), null);
+    }
+
+    /**
+     * Загружает и синхронизирует снимок метаданных диска в каталоге восстановления rootPath.
+     * @param service сервис GoogleDrive
+     * @param scheduler планировщик запросов учетной записи
+     * @param rootPath каталог восстановления (в нем хранится снимок)
+     * @param teamDriveId идентификатор общего диска или null для диска пользователя
+     * @return актуальный снимок метаданных (закрывается вызывающим)
+     * @throws IOException
+     */
+    public static MetadataCache loadMetadata(Drive service, RequestScheduler scheduler, java.nio.file.Path rootPath,
+                                             String teamDriveId) throws IOException {
+        java.nio.file.Path file = rootPath.resolve(MetadataCache.FILE_NAME);
+        MetadataCache cache = METADATA_MAPPED ? MetadataCache.load(file, rootPath) : MetadataCache.load(file);
+        int changes;
+        try {
+            changes = cache.sync(service, scheduler, teamDriveId);
+            cache.save(file);
+        } catch (IOException | RuntimeException e) {
+            cache.close();
+            throw e;
+        }
+        System.out.println("Loaded metadata (" + cache.size() + " els, "
+                + (changes < 0 ? "full listing" : changes + " changes") + ").");
+        return cache;
+    }
+
+    /**
+     * Возвращает список ревизий для файла с указанным идентификатором (fileId), с установленными данными
+     * о времени создания ревизии(modifiedTime), ее идентификатором и оригинальным именем файла.
+     * @param service сервис GoogleDrive
+     * @param fileId идентификатор файла для которого будут получены доступные ревизии
+     * Запрашиваются все страницы списка.
+     * @return список ревизий доступных для файла с идентификатором fileId
+     * @throws IOException
+     */
+    public static List<Revision> getRevisions(Drive service, String fileId) throws IOException{
+        return new RevisionResolver(service, SCHEDULER).list(fileId);
+    }
+
+    /**
+     * Из переданных ревизий revs возвращает самую последнюю.
+     * @param revs перечень ревизий из которых необходимо выбрать последнюю по дате
+     * @return последнюю по дате ревизия
+     * @throws IOException
+     */
+    public static Revision getLastRevision(List<Revision> revs) throws IOException{
+        Revision result = revs.get(0);
+        for(Revision r : revs) {
+           if (r.getModifiedTime().getValue() > result.getModifiedTime().getValue()) result = r;
+        }
+        return result;
+    }
+
+    /**
+     * Возвращает File с установленным идентификатором корневой папки GoogleDrive.
+     * @param service GoogleDrive сервис
+     * @return File с установленным идентификатором корневой папки GoogleDrive
+     * @throws IOException
+     */
+    public static File getRoot(Drive service) throws IOException{
+        return SCHEDULER.execute(service.files().get("root").setFields("id"));
+    }
+
+    /**
+     * В переданном списке директорий result выполнят записи в поле Directory.path на основе анализа parents.
+     * Таким образом строится дерево каталогов (как таковы обычный список где в поле path указан полный путь к
+     * каталогу).
+     * Для работы используется полученный список директорий dirs. Все каталоги строятся относительно корневого
+     * root. Таким образом если в root.getPath = "/MyRoot/" то path всех остальных директорий будет начианться
+     * с  "/MyRoot/....".
+     * Построение выполняет {@link DirectoryTreeBuilder} за линейное время, каталоги в result идут в порядке
+     * обхода в ширину (родитель всегда раньше потомков).
+     * @param root корневая директория от которой будет строиться дерево
+     * @param dirs список каталогов полученный с GoogleDrive для которого строится дерево
+     * @param result список директорий в котором будет построено дерево.
+     */
+    public static void generateDirectoryTree(final Directory root, List<File> dirs, List<Directory> result){
+        DirectoryTreeBuilder builder = new DirectoryTreeBuilder();
+        Tree<Directory> tree = builder.build(root, dirs);
+        tree.breadthFirst((node) -> {
+            if (node != tree.getRoot()) result.add(node.getData());
+        });
+        if (!builder.getOrphans().isEmpty() || !builder.getCycles().isEmpty()) {
+            System.out.println("Moved to " + DirectoryTreeBuilder.ORPHANED_DIR + ": " + builder.getOrphans().size()
+                    + " orphaned, " + builder.getCycles().size() + " cyclic dirs");
+        }
+    }
+
+    /**
+     * Создает каталоги в файловой системе в соответствии с переданным списком директорий dirs.
+     * @param dirs список каталогов который должен быть создан на жестком диске
+     */
+    public static void createDirsInRoot(List<Directory> dirs) throws IOException {
+        createDirsInRoot(dirs, WRITES);
+    }
+
+    /**
+     * Создает каталоги dirs параллельно через планировщик записи writes.
+     * @param dirs список каталогов который должен быть создан на жестком диске
+     * @param writes планировщик записи
+     */
+    public static void createDirsInRoot(List<Directory> dirs, WriteScheduler writes) throws IOException {
+        List<java.nio.file.Path> paths = new ArrayList<>(dirs.size());
+        for (Directory dir : dirs){
+            paths.add(new java.io.File(dir.getPath()).toPath());
+        }
+        writes.createDirectories(paths);
+        System.out.println("Created "+paths.size()+" dirs");
+    }
+
+    /**
+     * Создает каталоги индекса dirs параллельно через планировщик записи writes.
+     * @param dirs индекс каталогов снимка метаданных
+     * @param writes планировщик записи
+     */
+    public static void createDirsInRoot(DirectoryIndex dirs, WriteScheduler writes) throws IOException {
+        List<java.nio.file.Path> paths = new ArrayList<>(dirs.size());
+        for (String dir : dirs.getPaths()) {
+            paths.add(new java.io.File(dir).toPath());
+        }
+        writes.createDirectories(paths);
+        System.out.println("Created "+paths.size()+" dirs");
+    }
+
+    private static final DateTimeFormatter RFC3339_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    /**
+     * Преобразует дату из строки в формате RFC3339 в LocalDateTime, отбрасывая данные о TimeZone
+     * @param dateTimeStr строка в формате RFC3339
+     * @return дата и время в формате LocalDateTime
+     */
+    public static LocalDateTime fromRFC3339(String dateTimeStr){
+        return LocalDateTime.parse(dateTimeStr.substring(0, dateTimeStr.indexOf(".")), RFC3339_FORMATTER);
+    }
+
+    /**
+     * Из переданных ревизий revs выбирает самую позднюю, созданную до указанного времени dateTime
+     * (dateTime без часового пояса сравнивается с временем ревизий в UTC).
+     * @param revs перечень ревизий файла
+     * @param dateTime дата до которой должна быть создана ревизия
+     * @return последняя ревизия до даты dateTime или null если такой ревизии нет
+     */
+    public static Revision selectRevisionByDate(List<Revision> revs, LocalDateTime dateTime){
+        return RevisionResolver.select(revs, RevisionResolver.toEpochMillis(dateTime));
+    }
+
+    /**
+     * Загружает версию файла f которая была создана до указанного времени dateTime в каталог из индекса
+     * dirs который соответствует первому известному родителю файла (или в корень если родитель не найден).
+     * @param service GoogleDrive сервис
+     * @param dirs индекс доступных каталогов (для определения места расположения файла)
+     * @param f файл версия которого должна быть загружена
+     * @param dateTime дата до которой версия должна быть загружена
+     * @throws IOException
+     */
+    public static void downloadFileRevisionByDate(Drive service, DirectoryIndex dirs, File f, LocalDateTime dateTime) throws IOException {
+
+        List<String> directories = dirs.resolve(f);
+        String dirPath = ! directories.isEmpty() ? directories.get(0) : dirs.getRootPath();
+
+        ExportFormat format = ExportFormat.isNative(f.getMimeType())
+                ? ExportFormat.defaults().get(f.getMimeType()) : null;
+        java.io.File filePath = new java.io.File(dirPath + (format == null ? f.getName() : format.fileName(f.getName())));
+
+        if (filePath.exists()) System.out.println("File exists: "+filePath.toString());
+        else{
+
+            Revision rev = selectRevisionByDate(getRevisions(service, f.getId()), dateTime);
+            if(rev != null) {
+                System.out.print("Rev."+rev.getModifiedTime().toString()+" "+filePath.toString());
+                if (format != null) {
+                    //Документы Google не имеют содержимого - выгружаем в формат Office
+                    new Exporter(service, SCHEDULER).export(f, rev, format, filePath.toPath());
+                } else {
+                    ChunkedDownloader downloader = new ChunkedDownloader(service, SCHEDULER);
+                    downloader.setWriteScheduler(WRITES);
+                    downloader.download(service.revisions().get(f.getId(), rev.getId()),
+                            rev.getSize() == null ? -1 : rev.getSize(), filePath.toPath());
+                }
+                System.out.println(" End!");
+            } else {
+                System.out.println("\nError get revision for file: " + filePath.toString() + "\n");
+            }
+        }
+    }
+
+
+    /**
+     * Загружает на диск в указанную корневую директорию (ROOT_PATH), весь диск с ревизиями файлов на дату
+     * до указанной в toDate.
+     * @param service
+     * @param toDate дата до которой файлы должны быть восстановлены
+     * @throws IOException
+     */
+    public static void recoverFilesToDate(Drive service, LocalDateTime toDate) throws IOException{
+        recoverDrives(Collections.singletonList(new RestoreJob("user", service, SCHEDULER, ROOT_PATH, toDate)));
+    }
+
+    /**
+     * Загружает в корневую директорию (ROOT_PATH) только часть диска scope (папки по идентификаторам или
+     * путям) с ревизиями файлов на дату toDate, в порядке области: обходится только эта часть диска.
+     * @param service
+     * @param scope восстанавливаемые папки и порядок восстановления
+     * @param toDate дата до которой файлы должны быть восстановлены
+     * @throws IOException
+     */
+    public static void recoverScopeToDate(Drive service, RestoreScope scope, LocalDateTime toDate)
+            throws IOException {
+        recoverDrives(Collections.singletonList(new RestoreJob("user", service, SCHEDULER, ROOT_PATH, toDate)
+                .setScope(scope)));
+    }
+
+    /**
+     * Составляет план восстановления диска в корневую директорию (ROOT_PATH) на дату toDate без загрузки
+     * файлов и выводит его итоги: количество файлов, объем загрузки и место на диске. Следующий вызов
+     * {@link #recoverFilesToDate} на ту же дату выполняет план, если диск с тех пор не изменился
+     * (см. {@link RestorePlan}).
+     * @param service
+     * @param toDate дата до которой файлы должны быть восстановлены
+     * @throws IOException
+     */
+    public static void planFilesToDate(Drive service, LocalDateTime toDate) throws IOException {
+        RestoreJob job = new RestoreJob("user", service, SCHEDULER, ROOT_PATH, toDate);
+        RestoreReport report;
+        try {
+            report = new RestoreOrchestrator(1, RESTORE_WORKERS, new BandwidthLimiter(0)).plan(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Planning interrupted");
+        }
+        System.out.println(RestorePlan.summary(new java.io.File(job.getRootPath(), RestorePlan.FILE_NAME).toPath()));
+        for (RestoreReport.Failure failure : report.getFailures()) {
+            System.out.println(failure);
+        }
+        for (RestoreReport.Failure warning : report.getWarnings()) {
+            System.out.println(warning);
+        }
+    }
+
+    private static void registerMetrics() {
+        try {
+            METRICS.register(APPLICATION_NAME);
+        } catch (InstanceAlreadyExistsException e) {
+            //Зарегистрированы предыдущим восстановлением
+        } catch (JMException e) {
+            System.out.println("Metrics are not available through JMX: " + e);
+        }
+    }
+
+    /**
+     * Восстанавливает несколько дисков одновременно (см. {@link RestoreOrchestrator}): каждый в свой каталог
+     * на свою дату, с общим бюджетом скорости и общим хранилищем содержимого.
+     * @param jobs задания восстановления
+     * @throws IOException
+     */
+    public static void recoverDrives(List<RestoreJob> jobs) throws IOException {
+        //Метаданные дисков синхронизируются в каталогах заданий: полный обход только при первом запуске.
+        //Журнал позволяет продолжить прерванное восстановление без повторной загрузки готовых файлов.
+        Map<String, RestoreReport> reports;
+        //Ход восстановления: строка журнала, файл для Prometheus и JMX (gdrestore:type=RestoreMetrics)
+        registerMetrics();
+        Closeable reporting = METRICS_INTERVAL <= 0 ? null : METRICS.startReporting(METRICS_INTERVAL,
+                System.out, METRICS_FILE == null ? null : new java.io.File(METRICS_FILE).toPath());
+        try (ContentStore content = CONTENT_STORE == null || CONTENT_STORE.isEmpty() ? null
+                : ContentStore.open(new java.io.File(CONTENT_STORE).toPath(), CONTENT_LINKS)) {
+            RestoreOrchestrator orchestrator = new RestoreOrchestrator(RESTORE_JOBS, RESTORE_WORKERS,
+                    new BandwidthLimiter(BANDWIDTH_MB * 1024L * 1024));
+            orchestrator.setContentStore(content);
+            if (CONTENT_STORE == null) orchestrator.setJobContentStores(CONTENT_LINKS);
+            orchestrator.setExportFormats(EXPORT_FORMATS == null ? ExportFormat.defaults()
+                    : ExportFormat.load(new java.io.File(EXPORT_FORMATS).toPath()), EXPORT_WORKERS);
+            orchestrator.setDownloadOptions(DOWNLOAD_CHUNK_MB * 1024 * 1024, DOWNLOAD_RANGES);
+            orchestrator.setMetrics(METRICS);
+            orchestrator.setWriteScheduler(WRITES);
+            reports = orchestrator.run(jobs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Restore interrupted");
+        } finally {
+            if (reporting != null) reporting.close();
+        }
+        for (RestoreJob job : jobs) {
+            RestoreReport report = reports.get(job.getName());
+            System.out.println(job.getName() + ": " + report);
+            System.out.println(job.getScheduler());
+            for (RestoreReport.Failure failure : report.getFailures()) {
+                System.out.println(failure);
+            }
+            for (RestoreReport.Failure warning : report.getWarnings()) {
+                System.out.println(warning);
+            }
+        }
+    }
+
+    /**
+     * Загружает задания восстановления из файла file. Каждая строка (кроме пустых и начинающихся с #):
+     * <pre>имя учетная_запись каталог дата [идентификатор_общего_диска]</pre>
+     * например "sales sales@example.com /restore/sales 2017-05-12T00:00". Для каждой учетной записи
+     * запрашивается (однократно) авторизация и создается свой планировщик запросов.
+     * @param file файл заданий
+     * @return задания
+     * @throws IOException
+     */
+    public static List<RestoreJob> loadJobs(java.nio.file.Path file) throws IOException {
+        Map<String, Drive> services = new HashMap<>();
+        Map<String, RequestScheduler> schedulers = new HashMap<>();
+        List<RestoreJob> jobs = new ArrayList<>();
+        for (String line : java.nio.file.Files.readAllLines(file, java.nio.charset.StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] parts = line.split("\\s+");
+            if (parts.length < 4 || parts.length > 5) throw new IOException("Invalid job in " + file + ": " + line);
+            String user = parts[1];
+            if (!services.containsKey(user)) {
+                services.put(user, getDriveService(user));
+                RequestScheduler scheduler = new RequestScheduler(REQUESTS_PER_SECOND, RESTORE_WORKERS * 2);
+                scheduler.setMetrics(METRICS);
+                schedulers.put(user, scheduler);
+            }
+            RestoreJob job = new RestoreJob(parts[0], services.get(user), schedulers.get(user), parts[2],
+                    LocalDateTime.parse(parts[3]));
+            if (parts.length == 5) job.setTeamDriveId(parts[4]);
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    /**
+     * Удаляет на GoogleDrive все файлы с указанным именем name
+     * @param service сервис диска
+     * @param name имя файлов которые нужно удалить
+     * @throws IOException
+     */
+    public static void deleteFilesWithName(Drive service, String name) throws IOException{
+        AtomicInteger deleted = new AtomicInteger();
+        DriveBatcher batcher = new DriveBatcher(service, SCHEDULER);
+        for (File f : getAllFiles(service, new DriveQuery().nameIs(name), "files(id, name)")){
+            batcher.queue(service.files().delete(f.getId()), new DriveBatcher.Callback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    deleted.incrementAndGet();
+                    System.out.println("Deleted file " + f.getName());
+                }
+
+                @Override
+                public void onFailure(GoogleJsonError error) {
+                    System.out.println("Error delete file " + f.getName() + ": " + error.getMessage());
+                }
+            });
+        }
+        batcher.flush();
+        System.out.println("Deleted "+deleted.get()+" files");
+    }
+
+
+    /** Выполняет восстановление файлов которые были зашифрованы вымогателем (по умолчанию CTB-Locker, имеют
+     *  расширения .CTB-Locker; другие семейства задаются файлом правил -Dgdrestore.lockerRules, см. {@link LockerRule}).
+     *  Происходит следующим образом: выбираются все файлы имя которых соответствует правилу, считываются все
+     *  ревизии и в поле ревизии originFileName проверяется наличие того самого расширения. Такие ревизии удаляются,
+     *  если у файла есть хотя бы одна ревизия без расширения. После чего доступ к файлу осущесвтляется по
+     *  предыдущей ревизии. Кроме того осуществляется переименование файла, т.е. удаляется это расширение.
+     *  Этапы выполняются параллельно (см. {@link RemediationEngine}), результат по каждому файлу записывается в
+     *  файл REMEDIATION_REPORT в директории с текущей программой.
+     * @param service
+     * @throws IOException
+     */
+    public static void restoreFiles(Drive service) throws IOException{
+        List<LockerRule> rules = LOCKER_RULES == null ? Collections.singletonList(LockerRule.CTB_LOCKER)
+                : LockerRule.load(new java.io.File(LOCKER_RULES).toPath());
+        List<File> files = findEncryptedFiles(service, rules);
+        try (RemediationReport report = RemediationReport.open(new java.io.File(REMEDIATION_REPORT).toPath())) {
+            int found = new RemediationEngine(service, SCHEDULER, rules, RESTORE_WORKERS)
+                    .remediate(files.iterator(), report);
+            System.out.println("Found " + found + " encrypted files (" + rules + "). " + report);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Remediation interrupted");
+        }
+    }
+
+    /**
+     * Выбирает файлы, имя которых может соответствовать правилам rules. Для правил с признаком
+     * {@link LockerRule#getContains()} фильтрация выполняется на стороне GoogleDrive, иначе используется
+     * полный список файлов из снимка метаданных. Точная проверка по правилам выполняется {@link RemediationEngine}.
+     * @param service сервис GoogleDrive
+     * @param rules правила распознавания зашифрованных файлов
+     * @return файлы-кандидаты (без повторов)
+     * @throws IOException
+     */
+    public static List<File> findEncryptedFiles(Drive service, List<LockerRule> rules) throws IOException {
+        List<DriveQuery> queries = new ArrayList<>(rules.size());
+        for (LockerRule rule : rules) {
+            if (rule.getContains() == null) {
+                try (MetadataCache metadata = loadMetadata(service)) {
+                    return new ArrayList<>(metadata.getFiles());
+                }
+            }
+            queries.add(new DriveQuery().files().nameContains(rule.getContains()));
+        }
+        List<File> result = getAllFiles(service, queries, FILES_FIELDS);
+        System.out.println("Loaded candidate list (" + result.size() + " els).");
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        // Build a new authorized API client service.
+        Drive service = getDriveService();
+
+        //Мое восстановление после загрузки шифрованных CTB-Locker файлов на диск следующее:
+        // Изначально я загрузил фалы в версии которая была до даты шифрования файлов
+        //Так в моем случае (посмотрел в веб GoogleDrive дату последнего изменения файлов - которая оказалась
+        //12.05.2017. Таким образом файлы были загружены на мой жесткий диск в ревизии до момента их шифрования.
+
+        //Дата до которой файлы не были испорчены
+        //Объем и место на диске можно оценить заранее - план выполняется следующим recoverFilesToDate:
+        //planFilesToDate(service, LocalDateTime.of(2017, 5, 12, 0, 0));
+        //recoverFilesToDate(service, LocalDateTime.of(2017, 5, 12, 0, 0));
+        //Сначала можно вернуть рабочие папки - только они и в порядке важности, остальное позже:
+        //recoverScopeToDate(service, new RestoreScope().path("Проекты").order(RestoreScope.Order.RECENT)
+        //        .prioritize(Collections.singletonList("Проекты/Текущий")), LocalDateTime.of(2017, 5, 12, 0, 0));
+        //Несколько дисков (учетных записей, общих дисков) восстанавливаются одновременно по файлу заданий:
+        //recoverDrives(loadJobs(new java.io.File("jobs.txt").toPath()));
+
+        //Далее можно было приступить к манипуляциями непосредственно с диском.
+        //Для начала я решил удалить все файлы txt с сообщением шифровщика.
+
+        //deleteFilesWithName(service, "!__П_Р_О_Ч_Т_И__CTB-Locker__ПРОЧТИ__ПРОЧТИ.TXT");
+
+        //После этого приступил к восстановлению файлов на GoogleDrive к ревизии до шифрования
+        restoreFiles(service);
+
+        //Осталось  проверить файл "RemediationReport.tsv" в папке с текущей программой.
+        //Файлы со статусом NOT_RESTORED и FAILED придется проверить вручную.
+        //Этот файл перезаписывается при каждом запуске программы.
+    }
+}
\ No newline at end of file
@@ -0,0 +1,287 @@
+package gdrestore;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.Revision;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Параллельное восстановление файлов на GoogleDrive после шифровальщика. Работа разбита на этапы (конвейер):
+ * <ol>
+ *     <li>detect - получение ревизий файлов, имя которых соответствует одному из {@link LockerRule}, и
+ *     определение зашифрованных ревизий;</li>
+ *     <li>prune - удаление зашифрованных ревизий;</li>
+ *     <li>rename - возврат файлу исходного имени (только если все зашифрованные ревизии удалены).</li>
+ * </ol>
+ * Каждый этап обслуживается своим набором потоков, запросы выполняются пакетами через {@link DriveBatcher},
+ * этапы связаны ограниченными очередями. Результат по каждому файлу записывается в {@link RemediationReport}.
+ */
+public class RemediationEngine {
+
+    /** Размер очередей между этапами по умолчанию. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /**
+     * Зашифрованный файл и правило по которому он обнаружен.
+     */
+    private static class Candidate {
+        private final File file;
+        private final LockerRule rule;
+        /** Зашифрованные ревизии (заполняется на этапе detect). */
+        private List<Revision> encrypted;
+        /** Ошибка удаления ревизии (этап prune). */
+        private volatile String error;
+
+        private Candidate(File file, LockerRule rule) {
+            this.file = file;
+            this.rule = rule;
+        }
+
+        private String restoredName() {
+            return rule.restoredName(file.getName());
+        }
+    }
+
+    private final Drive service;
+    private final RequestScheduler scheduler;
+    private final List<LockerRule> rules;
+    private final int workers;
+    private final int queueCapacity;
+
+    public RemediationEngine(Drive service, RequestScheduler scheduler, List<LockerRule> rules, int workers) {
+        this(service, scheduler, rules, workers, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param service GoogleDrive сервис
+     * @param scheduler планировщик через который выполняются все запросы
+     * @param rules правила распознавания зашифрованных файлов
+     * @param workers количество потоков на каждом этапе
+     * @param queueCapacity размер очередей между этапами
+     */
+    public RemediationEngine(Drive service, RequestScheduler scheduler, List<LockerRule> rules, int workers,
+                             int queueCapacity) {
+        if (rules.isEmpty() || workers < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("Rules, workers and queue capacity must be set");
+        this.service = service;
+        this.scheduler = scheduler;
+        this.rules = rules;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Восстанавливает зашифрованные файлы из files. Метод возвращает управление после обработки всех файлов.
+     * @param files все файлы диска (отбираются соответствующие правилам)
+     * @param report отчет, в который записывается результат по каждому файлу
+     * @return количество обнаруженных зашифрованных файлов
+     * @throws InterruptedException если текущий поток был прерван во время ожидания
+     */
+    public int remediate(Iterator<File> files, RemediationReport report) throws InterruptedException {
+        BlockingQueue<Object> detectQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Object> pruneQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Object> renameQueue = new ArrayBlockingQueue<>(queueCapacity);
+
+        List<Thread> detects = Pipeline.start("remediate-detect", workers, () -> {
+            DriveBatcher batcher = new DriveBatcher(service, scheduler);
+            List<Candidate> batch = new ArrayList<>(DriveBatcher.MAX_BATCH_SIZE);
+            boolean done = false;
+            while (!done) {
+                done = Pipeline.take(detectQueue, batch, DriveBatcher.MAX_BATCH_SIZE);
+                for (Candidate c : detect(batch, report, batcher)) pruneQueue.put(c);
+            }
+        });
+        List<Thread> prunes = Pipeline.start("remediate-prune", workers, () -> {
+            DriveBatcher batcher = new DriveBatcher(service, scheduler);
+            List<Candidate> batch = new ArrayList<>(DriveBatcher.MAX_BATCH_SIZE);
+            boolean done = false;
+            while (!done) {
+                done = Pipeline.take(pruneQueue, batch, DriveBatcher.MAX_BATCH_SIZE);
+                for (Candidate c : prune(batch, report, batcher)) renameQueue.put(c);
+            }
+        });
+        List<Thread> renames = Pipeline.start("remediate-rename", workers, () -> {
+            DriveBatcher batcher = new DriveBatcher(service, scheduler);
+            List<Candidate> batch = new ArrayList<>(DriveBatcher.MAX_BATCH_SIZE);
+            boolean done = false;
+            while (!done) {
+                done = Pipeline.take(renameQueue, batch, DriveBatcher.MAX_BATCH_SIZE);
+                rename(batch, report, batcher);
+            }
+        });
+
+        int found = 0;
+        try {
+            while (files.hasNext()) {
+                File f = files.next();
+                LockerRule rule = LockerRule.match(rules, f.getName());
+                if (rule == null) continue;
+                detectQueue.put(new Candidate(f, rule));
+                found++;
+            }
+        } finally {
+            Pipeline.finish(detectQueue, detects);
+            Pipeline.finish(pruneQueue, prunes);
+            Pipeline.finish(renameQueue, renames);
+        }
+        return found;
+    }
+
+    /**
+     * Этап detect: запрашивает ревизии файлов пакетом и отбирает зашифрованные.
+     * @return файлы у которых есть и зашифрованные, и исходные ревизии
+     */
+    private List<Candidate> detect(List<Candidate> batch, RemediationReport report, DriveBatcher batcher) {
+        List<Candidate> result = new ArrayList<>();
+        Set<Candidate> waiting = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Candidate c : batch) {
+            waiting.add(c);
+            try {
+                batcher.listRevisions(Collections.singletonList(c.file.getId()), Quickstart.REVISION_FIELDS,
+                        new DriveBatcher.Callback<DriveBatcher.RevisionPage>() {
+                    @Override
+                    public void onSuccess(DriveBatcher.RevisionPage page) {
+                        waiting.remove(c);
+                        List<Revision> encrypted = new ArrayList<>();
+                        for (Revision rev : page.getRevisions()) {
+                            if (c.rule.isEncrypted(rev)) encrypted.add(rev);
+                        }
+                        if (encrypted.isEmpty()) {
+                            notRestored(c, report, "No encrypted revisions");
+                        } else if (encrypted.size() == page.getRevisions().size()) {
+                            notRestored(c, report, "No revisions before encryption");
+                        } else {
+                            c.encrypted = encrypted;
+                            result.add(c);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError error) {
+                        waiting.remove(c);
+                        failed(c, report, "detect", 0, error.getMessage());
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                failWaiting(batcher, waiting, report, "detect", e);
+            }
+        }
+        flush(batcher, waiting, report, "detect");
+        return result;
+    }
+
+    /**
+     * Этап prune: удаляет зашифрованные ревизии файлов пакетом.
+     * @return файлы все зашифрованные ревизии которых удалены
+     */
+    private List<Candidate> prune(List<Candidate> batch, RemediationReport report, DriveBatcher batcher) {
+        for (Candidate c : batch) {
+            for (Revision rev : c.encrypted) {
+                try {
+                    batcher.queue(service.revisions().delete(c.file.getId(), rev.getId()),
+                            new DriveBatcher.Callback<Void>() {
+                        @Override
+                        public void onSuccess(Void result) {
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonError error) {
+                            c.error = "Revision " + rev.getId() + ": " + error.getMessage();
+                        }
+                    });
+                } catch (IOException | RuntimeException e) {
+                    c.error = "Revision " + rev.getId() + ": " + e;
+                }
+            }
+        }
+        try {
+            batcher.flush();
+        } catch (IOException | RuntimeException e) {
+            batcher.clear();
+            for (Candidate c : batch) {
+                if (c.error == null) c.error = String.valueOf(e);
+            }
+        }
+        List<Candidate> result = new ArrayList<>(batch.size());
+        for (Candidate c : batch) {
+            if (c.error == null) {
+                result.add(c);
+            } else {
+                failed(c, report, "prune", 0, c.error);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Этап rename: возвращает файлам исходные имена.
+     */
+    private void rename(List<Candidate> batch, RemediationReport report, DriveBatcher batcher) {
+        Set<Candidate> waiting = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Candidate c : batch) {
+            waiting.add(c);
+            try {
+                batcher.queue(service.files().update(c.file.getId(), new File().setName(c.restoredName())),
+                        new DriveBatcher.Callback<File>() {
+                    @Override
+                    public void onSuccess(File result) {
+                        waiting.remove(c);
+                        report.add(new RemediationReport.Entry(RemediationReport.Outcome.RESTORED, "rename",
+                                c.file.getId(), c.file.getName(), c.restoredName(), c.rule.getName(),
+                                c.encrypted.size(), null));
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError error) {
+                        waiting.remove(c);
+                        failed(c, report, "rename", c.encrypted.size(), error.getMessage());
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                failWaiting(batcher, waiting, report, "rename", e);
+            }
+        }
+        flush(batcher, waiting, report, "rename");
+    }
+
+    private static void flush(DriveBatcher batcher, Set<Candidate> waiting, RemediationReport report, String stage) {
+        try {
+            batcher.flush();
+        } catch (IOException | RuntimeException e) {
+            failWaiting(batcher, waiting, report, stage, e);
+        }
+    }
+
+    /**
+     * Ошибка пакета e: отбрасывает оставшиеся запросы batcher и отмечает неудачей каждый файл waiting, ответ
+     * на запрос которого не получен.
+     */
+    private static void failWaiting(DriveBatcher batcher, Set<Candidate> waiting, RemediationReport report,
+                                    String stage, Exception e) {
+        batcher.clear();
+        for (Candidate c : waiting) {
+            failed(c, report, stage, c.encrypted == null ? 0 : c.encrypted.size(), String.valueOf(e));
+        }
+        waiting.clear();
+    }
+
+    private static void notRestored(Candidate c, RemediationReport report, String message) {
+        report.add(new RemediationReport.Entry(RemediationReport.Outcome.NOT_RESTORED, "detect", c.file.getId(),
+                c.file.getName(), null, c.rule.getName(), 0, message));
+    }
+
+    private static void failed(Candidate c, RemediationReport report, String stage, int deleted, String message) {
+        report.add(new RemediationReport.Entry(RemediationReport.Outcome.FAILED, stage, c.file.getId(),
+                c.file.getName(), c.restoredName(), c.rule.getName(), deleted, message));
+    }
+}
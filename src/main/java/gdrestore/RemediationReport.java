@@ -0,0 +1,167 @@
+package gdrestore;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Итог работы {@link RemediationEngine}: результат по каждому обработанному файлу. Все методы
+ * потокобезопасны. Открытый через {@link #open} отчет сразу дописывает каждый результат строкой в
+ * файл с разделителями-табуляциями
+ * <pre>outcome \t stage \t fileId \t name \t newName \t rule \t deletedRevisions \t message</pre>
+ * поэтому результаты сохраняются и при прерванной работе. Ошибка записи в файл выбрасывается из {@link #close()}.
+ */
+public class RemediationReport implements Closeable {
+
+    public enum Outcome {
+        /** Зашифрованные ревизии удалены, файл переименован. */
+        RESTORED,
+        /** Файл не может быть восстановлен: нет ревизии до шифрования (или нет зашифрованных ревизий). */
+        NOT_RESTORED,
+        /** Ошибка обращения к GoogleDrive. */
+        FAILED
+    }
+
+    /**
+     * Результат обработки одного файла.
+     */
+    public static class Entry {
+        private final Outcome outcome;
+        private final String stage;
+        private final String fileId;
+        private final String name;
+        private final String newName;
+        private final String rule;
+        private final int deletedRevisions;
+        private final String message;
+
+        public Entry(Outcome outcome, String stage, String fileId, String name, String newName, String rule,
+                     int deletedRevisions, String message) {
+            this.outcome = outcome;
+            this.stage = stage;
+            this.fileId = fileId;
+            this.name = name;
+            this.newName = newName;
+            this.rule = rule;
+            this.deletedRevisions = deletedRevisions;
+            this.message = message;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getNewName() {
+            return newName;
+        }
+
+        public String getRule() {
+            return rule;
+        }
+
+        public int getDeletedRevisions() {
+            return deletedRevisions;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return outcome + "\t" + stage + "\t" + fileId + "\t" + clean(name) + "\t" + clean(newName) + "\t"
+                    + rule + "\t" + deletedRevisions + "\t" + clean(message);
+        }
+
+        private static String clean(String value) {
+            return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ');
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger[] counts = new AtomicInteger[Outcome.values().length];
+    private final BufferedWriter writer;
+    private IOException writeError;
+
+    /**
+     * Создает отчет в памяти (без файла).
+     */
+    public RemediationReport() {
+        this(null);
+    }
+
+    private RemediationReport(BufferedWriter writer) {
+        this.writer = writer;
+        for (int i = 0; i < counts.length; i++) counts[i] = new AtomicInteger();
+    }
+
+    /**
+     * Создает отчет с записью в файл file (существующий файл перезаписывается).
+     */
+    public static RemediationReport open(Path file) throws IOException {
+        BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        writer.write("outcome\tstage\tfileId\tname\tnewName\trule\tdeletedRevisions\tmessage");
+        writer.newLine();
+        writer.flush();
+        return new RemediationReport(writer);
+    }
+
+    public void add(Entry entry) {
+        entries.add(entry);
+        counts[entry.getOutcome().ordinal()].incrementAndGet();
+        if (writer == null) return;
+        synchronized (writer) {
+            try {
+                writer.write(entry.toString());
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                // Ошибка записи не прерывает обработку, она будет выброшена из close()
+                if (writeError == null) writeError = e;
+            }
+        }
+    }
+
+    /** @return количество файлов с результатом outcome */
+    public int count(Outcome outcome) {
+        return counts[outcome.ordinal()].get();
+    }
+
+    public List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer == null) return;
+        synchronized (writer) {
+            writer.close();
+            if (writeError != null) throw writeError;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Restored " + count(Outcome.RESTORED) + ", not restored " + count(Outcome.NOT_RESTORED)
+                + ", failed " + count(Outcome.FAILED);
+    }
+}
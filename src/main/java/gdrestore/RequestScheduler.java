@@ -0,0 +1,304 @@
+package gdrestore;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.Sleeper;
+
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Общий планировщик запросов к GoogleDrive, через который выполняются все обращения к API.
+ * <ul>
+ *     <li>Бюджет запросов в секунду - token bucket. Пакетный запрос расходует по токену на каждую часть.</li>
+ *     <li>Количество одновременных запросов регулируется по схеме AIMD: при ответе "превышена квота"
+ *     (403 rateLimitExceeded/userRateLimitExceeded, 429) лимит и скорость уменьшаются вдвое, при успешных
+ *     ответах - постепенно растут до заданного максимума.</li>
+ *     <li>Временные ошибки (квота, 5xx, сетевые) повторяются с экспоненциальной задержкой со случайным
+ *     разбросом (jitter).</li>
+ * </ul>
+ * Счетчики (количество запросов, повторов, срабатываний ограничения) и текущие скорость и лимит
+ * доступны через getter-ы. Если заданы {@link RestoreMetrics}, в них дополнительно учитываются задержка
+ * каждой попытки по типу запроса, повторы и срабатывания ограничения.
+ */
+public class RequestScheduler {
+
+    /** Максимальное количество попыток выполнения запроса по умолчанию. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+    /** Прирост скорости (запросов в секунду) за каждый успешный ответ. */
+    private static final double RATE_INCREASE = 0.1;
+
+    /** Тип запроса по умолчанию для {@link #call(int, IOCallable)}. */
+    public static final String OTHER = "other";
+
+    /** Типы запросов по классам (Drive$Revisions$List - revisions.list). */
+    private static final Map<Class<?>, String> ENDPOINTS = new ConcurrentHashMap<>();
+
+    /**
+     * Операция выполняющая запрос к GoogleDrive.
+     */
+    public interface IOCallable<T> {
+        T call() throws IOException;
+    }
+
+    private final double maxRate;
+    private final int maxConcurrency;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Sleeper sleeper;
+
+    // Состояние token bucket и AIMD, защищено this
+    private double rate;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private double limit;
+    private int inFlight;
+    private long decreasedAt;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+    private volatile RestoreMetrics metrics;
+
+    /**
+     * @param requestsPerSecond максимальная скорость запросов
+     * @param maxConcurrency максимальное количество одновременных запросов
+     */
+    public RequestScheduler(double requestsPerSecond, int maxConcurrency) {
+        this(requestsPerSecond, maxConcurrency, DEFAULT_MAX_ATTEMPTS, 1000, 64000, Sleeper.DEFAULT);
+    }
+
+    /**
+     * @param requestsPerSecond максимальная скорость запросов
+     * @param maxConcurrency максимальное количество одновременных запросов
+     * @param maxAttempts максимальное количество попыток одного запроса
+     * @param baseDelayMillis задержка перед первым повтором
+     * @param maxDelayMillis максимальная задержка перед повтором
+     * @param sleeper реализация задержки перед повторами (в тестах - без ожидания)
+     */
+    public RequestScheduler(double requestsPerSecond, int maxConcurrency, int maxAttempts,
+                            long baseDelayMillis, long maxDelayMillis, Sleeper sleeper) {
+        if (requestsPerSecond <= 0 || maxConcurrency < 1 || maxAttempts < 1)
+            throw new IllegalArgumentException("Rate, concurrency and attempts must be positive");
+        this.maxRate = requestsPerSecond;
+        this.maxConcurrency = maxConcurrency;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.sleeper = sleeper;
+        this.rate = requestsPerSecond;
+        this.tokens = Math.max(1, requestsPerSecond);
+        this.limit = maxConcurrency;
+    }
+
+    /**
+     * Устанавливает показатели, в которых учитываются запросы.
+     */
+    public void setMetrics(RestoreMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Выполняет запрос с учетом бюджета и повторами при временных ошибках.
+     * @return разобранный ответ
+     */
+    public <T> T execute(AbstractGoogleClientRequest<T> request) throws IOException {
+        return call(endpoint(request), 1, request::execute);
+    }
+
+    /**
+     * Выполняет операцию call стоимостью cost запросов (для пакетов - количество частей). Операция может
+     * быть вызвана повторно, поэтому она должна сама заново открывать файлы, в которые пишет.
+     */
+    public <T> T call(int cost, IOCallable<T> call) throws IOException {
+        return call(OTHER, cost, call);
+    }
+
+    /**
+     * То же что {@link #call(int, IOCallable)}, задержки учитываются в показателях по типу запроса endpoint.
+     */
+    public <T> T call(String endpoint, int cost, IOCallable<T> call) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            acquire(cost);
+            RestoreMetrics metrics = this.metrics;
+            long started = System.nanoTime();
+            try {
+                requests.addAndGet(cost);
+                T result = call.call();
+                onSuccess();
+                return result;
+            } catch (IOException e) {
+                if (isRateLimit(e)) onThrottle();
+                if (attempt >= maxAttempts || !isRetryable(e)) throw e;
+                retries.incrementAndGet();
+                if (metrics != null) metrics.retry();
+            } finally {
+                release();
+                if (metrics != null) metrics.request(endpoint, cost, System.nanoTime() - started);
+            }
+            backoff(attempt);
+        }
+    }
+
+    /** @return тип запроса request по его классу, например "files.list" */
+    static String endpoint(AbstractGoogleClientRequest<?> request) {
+        Class<?> type = request.getClass();
+        String endpoint = ENDPOINTS.get(type);
+        if (endpoint == null) {
+            // Drive$Revisions$List -> revisions.list; у анонимных подклассов берем родительский класс
+            Class<?> named = type;
+            while (named.isAnonymousClass()) named = named.getSuperclass();
+            String name = named.getName();
+            int method = name.lastIndexOf('$');
+            int resource = name.lastIndexOf('$', method - 1);
+            endpoint = method < 0 || resource < 0 ? named.getSimpleName().toLowerCase()
+                    : (name.substring(resource + 1, method) + "." + name.substring(method + 1)).toLowerCase();
+            ENDPOINTS.put(type, endpoint);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Ожидание перед повтором номер attempt: случайное значение в [d/2, d), где d = base * 2^(attempt-1)
+     * ограничено максимальной задержкой.
+     */
+    public void backoff(int attempt) throws IOException {
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(30, attempt - 1));
+        try {
+            sleeper.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Retry interrupted");
+        }
+    }
+
+    /**
+     * Учитывает ответ "превышена квота" полученный в обход {@link #call} (например, для части пакета).
+     */
+    public synchronized void onThrottle() {
+        throttles.incrementAndGet();
+        RestoreMetrics metrics = this.metrics;
+        if (metrics != null) metrics.throttle();
+        long now = System.nanoTime();
+        // Уменьшаем не чаще раза за базовую задержку: пачка одновременных отказов - одно событие
+        if (now - decreasedAt < baseDelayMillis * 1000000L) return;
+        decreasedAt = now;
+        limit = Math.max(1, limit / 2);
+        rate = Math.max(maxRate / 100, rate / 2);
+    }
+
+    private synchronized void onSuccess() {
+        limit = Math.min(maxConcurrency, limit + 1 / limit);
+        rate = Math.min(maxRate, rate + RATE_INCREASE);
+    }
+
+    private synchronized void acquire(int cost) throws InterruptedIOException {
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                tokens = Math.min(Math.max(1, rate), tokens + (now - refilledAt) / 1e9 * rate);
+                refilledAt = now;
+                if (inFlight < (int) limit && tokens >= 1) {
+                    // Стоимость может превышать емкость ведра - долг погашается следующими запросами
+                    tokens -= cost;
+                    inFlight++;
+                    return;
+                }
+                if (inFlight >= (int) limit) {
+                    wait();
+                } else {
+                    wait(Math.max(1, (long) Math.ceil((1 - tokens) / rate * 1000)));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for request budget");
+        }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * @return true если ошибку имеет смысл повторить: сбой соединения (обрыв, таймаут, TLS, DNS, ответ
+     * короче ожидаемого) или ответ 5xx и "превышена квота". Локальные ошибки (диск, права доступа) и ошибки
+     * обработчиков ответа не повторяются
+     */
+    public static boolean isRetryable(IOException e) {
+        if (!(e instanceof HttpResponseException)) {
+            return e instanceof SocketException || e instanceof SocketTimeoutException || e instanceof SSLException
+                    || e instanceof UnknownHostException || e instanceof EOFException;
+        }
+        int code = ((HttpResponseException) e).getStatusCode();
+        return code >= 500 || isRateLimit(e);
+    }
+
+    /** @return true если ошибка означает превышение квоты запросов */
+    public static boolean isRateLimit(IOException e) {
+        if (!(e instanceof HttpResponseException)) return false;
+        GoogleJsonError details = e instanceof GoogleJsonResponseException
+                ? ((GoogleJsonResponseException) e).getDetails() : null;
+        if (details != null) return isRateLimit(details);
+        int code = ((HttpResponseException) e).getStatusCode();
+        String content = ((HttpResponseException) e).getContent();
+        return code == 429 || (code == 403 && content != null && content.contains("RateLimitExceeded"));
+    }
+
+    /** @return true если ошибка означает превышение квоты запросов */
+    public static boolean isRateLimit(GoogleJsonError e) {
+        if (e.getCode() == 429) return true;
+        if (e.getCode() == 403 && e.getErrors() != null) {
+            for (GoogleJsonError.ErrorInfo info : e.getErrors()) {
+                if ("userRateLimitExceeded".equals(info.getReason()) || "rateLimitExceeded".equals(info.getReason()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return количество выполненных запросов (включая повторы и части пакетов) */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /** @return количество повторов */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /** @return количество ответов "превышена квота" */
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    /** @return текущая допустимая скорость, запросов в секунду */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /** @return текущий лимит одновременных запросов */
+    public synchronized int getConcurrencyLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("requests %d, retries %d, throttled %d, rate %.1f/s, concurrency %d",
+                requests.get(), retries.get(), throttles.get(), rate, (int) limit);
+    }
+}
@@ -0,0 +1,743 @@
+package gdrestore;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.Revision;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Параллельное восстановление файлов на дату. Работа разбита на два этапа (конвейер):
+ * <ol>
+ *     <li>lookup - получение списка ревизий файлов (пакетами через {@link DriveBatcher}) и выбор нужной
+ *     ревизии;</li>
+ *     <li>download - загрузка выбранной ревизии на диск.</li>
+ * </ol>
+ * Каждый этап обслуживается своим набором потоков, этапы связаны ограниченными очередями, поэтому
+ * в памяти одновременно находится не более queueCapacity файлов на каждом этапе независимо от размера диска.
+ * Ошибки по отдельным файлам не прерывают работу, а собираются в {@link RestoreReport}.
+ * <p>
+ * Ход работы записывается в {@link RestoreJournal}: файл загружается во временный файл *.part
+ * (частями, см. {@link ChunkedDownloader}) и атомарно переименовывается после проверки контрольной суммы,
+ * поэтому после сбоя на диске нет недописанных файлов, повторный запуск пропускает завершенные файлы без
+ * запросов к GoogleDrive и дописывает начатые. Файлы, претендующие на один путь, получают уникальные
+ * имена (см. {@link #claim}); файлы, которые восстановление не создавало, не перезаписываются.
+ * <p>
+ * Файлы Google Документов не имеют содержимого и выгружаются в выбранный формат (см. {@link Exporter}) на
+ * отдельном этапе export со своим набором потоков: выгрузка медленнее загрузки и расходует другую квоту.
+ * <p>
+ * С {@link ContentStore} одинаковое содержимое загружается один раз, остальные файлы с тем же md5
+ * создаются локально из первого восстановленного.
+ * <p>
+ * Этап lookup можно выполнить отдельно ({@link #plan}): план восстановления сохраняется в {@link RestorePlan}
+ * и затем выполняется без lookup.
+ */
+public class RestoreEngine {
+
+    /** Размер очередей между этапами по умолчанию. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /** Суффикс временного файла, в который идет загрузка. */
+    public static final String PART_SUFFIX = ".part";
+
+    /** Количество потоков выгрузки Google Документов по умолчанию. */
+    public static final int DEFAULT_EXPORT_WORKERS = 4;
+
+    /**
+     * Файл с выбранной ревизией, готовый к загрузке.
+     */
+    private static class DownloadTask {
+        private final File file;
+        private final Revision revision;
+        private final java.io.File target;
+        /** Копии для остальных родителей файла, если их несколько. */
+        private final List<java.io.File> copies;
+        /** Загрузка этой ревизии была начата ранее - временный файл можно дописать. */
+        private final boolean resume;
+        /** Формат выгрузки файла Google Документов или null для обычного файла. */
+        private final ExportFormat format;
+
+        private DownloadTask(File file, Revision revision, java.io.File target, List<java.io.File> copies,
+                             boolean resume, ExportFormat format) {
+            this.file = file;
+            this.revision = revision;
+            this.target = target;
+            this.copies = copies;
+            this.resume = resume;
+            this.format = format;
+        }
+    }
+
+    private final Drive service;
+    private final RequestScheduler scheduler;
+    private final int lookupWorkers;
+    private final int downloadWorkers;
+    private final int queueCapacity;
+    private ChunkedDownloader downloader;
+    private RevisionResolver revisions;
+    private boolean verifyChecksums;
+    private ContentStore content;
+    private Exporter exporter;
+    private int exportWorkers = DEFAULT_EXPORT_WORKERS;
+    private RestoreMetrics metrics;
+    private String metricsName;
+    private WriteScheduler writes = WriteScheduler.UNLIMITED;
+    private JobSlots.Lane slots;
+
+    public RestoreEngine(Drive service, RequestScheduler scheduler, int workers) {
+        this(service, scheduler, workers, workers, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param service GoogleDrive сервис
+     * @param scheduler планировщик через который выполняются все запросы
+     * @param lookupWorkers количество потоков выбирающих ревизии
+     * @param downloadWorkers количество потоков загружающих файлы
+     * @param queueCapacity размер очередей между этапами
+     */
+    public RestoreEngine(Drive service, RequestScheduler scheduler, int lookupWorkers, int downloadWorkers,
+                         int queueCapacity) {
+        if (lookupWorkers < 1 || downloadWorkers < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("Workers and queue capacity must be positive");
+        this.service = service;
+        this.scheduler = scheduler;
+        this.lookupWorkers = lookupWorkers;
+        this.downloadWorkers = downloadWorkers;
+        this.queueCapacity = queueCapacity;
+        this.downloader = new ChunkedDownloader(service, scheduler);
+        this.revisions = new RevisionResolver(service, scheduler);
+        this.exporter = new Exporter(service, scheduler);
+    }
+
+    /**
+     * Устанавливает кеш выбранных ревизий. Файлы, ревизия которых уже выбрана, не требуют запроса ревизий.
+     */
+    public void setRevisionResolver(RevisionResolver revisions) {
+        this.revisions = revisions;
+    }
+
+    /**
+     * Устанавливает загрузчик содержимого (размер части, параллельная загрузка больших файлов).
+     */
+    public void setDownloader(ChunkedDownloader downloader) {
+        this.downloader = downloader;
+        if (metrics != null) downloader.setMetrics(metrics);
+    }
+
+    /**
+     * Устанавливает хранилище содержимого: файл, содержимое которого (по md5Checksum ревизии) уже
+     * загружено в этом или предыдущих запусках, создается из хранилища без загрузки.
+     */
+    public void setContentStore(ContentStore content) {
+        this.content = content;
+    }
+
+    /**
+     * Устанавливает выгрузку Google Документов (форматы по типам файлов) и количество ее потоков.
+     */
+    public void setExporter(Exporter exporter, int workers) {
+        if (workers < 1) throw new IllegalArgumentException("Export workers must be positive");
+        this.exporter = exporter;
+        this.exportWorkers = workers;
+    }
+
+    /**
+     * Устанавливает планировщик записи, через который создаются каталоги плана (загрузчик получает
+     * планировщик через {@link ChunkedDownloader#setWriteScheduler}).
+     */
+    public void setWriteScheduler(WriteScheduler writes) {
+        this.writes = writes;
+    }
+
+    /**
+     * Устанавливает полосу общих мест загрузки: каждый файл загружается (выгружается) только после
+     * получения места. По умолчанию места не ограничены.
+     */
+    public void setSlots(JobSlots.Lane slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * Устанавливает показатели, в которых учитываются восстановленные файлы. Размеры очередей этапов
+     * показываются под именами name.lookup, name.download и name.export.
+     */
+    public void setMetrics(RestoreMetrics metrics, String name) {
+        this.metrics = metrics;
+        this.metricsName = name;
+        downloader.setMetrics(metrics);
+    }
+
+    /**
+     * Включает проверку md5 уже загруженных файлов при повторном запуске. По умолчанию проверяется
+     * только размер.
+     */
+    public void setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    /**
+     * Загружает ревизии файлов files без сохранения журнала.
+     * @see #restore(Iterator, DirectoryIndex, LocalDateTime, RestoreJournal)
+     */
+    public RestoreReport restore(Iterator<File> files, DirectoryIndex dirs, LocalDateTime toDate)
+            throws InterruptedException {
+        return restore(files, dirs, toDate, new RestoreJournal());
+    }
+
+    /**
+     * Загружает ревизии файлов files, созданные до даты toDate, в каталоги из индекса dirs.
+     * Файл с несколькими родителями восстанавливается в каждый из них.
+     * Метод возвращает управление после обработки всех файлов.
+     * @param files файлы которые необходимо восстановить
+     * @param dirs индекс каталогов дерева восстановления
+     * @param toDate дата до которой файлы должны быть восстановлены
+     * @param journal журнал восстановления (записи предыдущих запусков и текущий ход работы)
+     * @return отчет о восстановлении
+     * @throws InterruptedException если текущий поток был прерван во время ожидания
+     */
+    public RestoreReport restore(Iterator<File> files, DirectoryIndex dirs, LocalDateTime toDate,
+                                 RestoreJournal journal) throws InterruptedException {
+        RestoreReport report = new RestoreReport();
+        return run(journal, report, (downloadQueue, exportQueue) -> lookup(files, dirs, toDate, journal, report,
+                (task) -> (task.format == null ? downloadQueue : exportQueue).put(task)));
+    }
+
+    /**
+     * Составляет план восстановления файлов files на дату toDate без загрузки содержимого: выбирает
+     * ревизии (параллельно, пакетами) и пути и записывает их в plan. Выбранные ревизии сохраняются в
+     * {@link RevisionResolver}, если он задан.
+     * @return отчет о файлах, которые не удалось включить в план
+     * @throws InterruptedException если текущий поток был прерван во время ожидания
+     */
+    public RestoreReport plan(Iterator<File> files, DirectoryIndex dirs, LocalDateTime toDate,
+                              RestorePlan.Writer plan) throws InterruptedException {
+        RestoreReport report = new RestoreReport();
+        lookup(files, dirs, toDate, null, report, (task) -> {
+            String name = task.target.getName();
+            List<String> paths = new ArrayList<>(1 + task.copies.size());
+            paths.add(task.target.getPath().substring(0, task.target.getPath().length() - name.length()));
+            for (java.io.File copy : task.copies) {
+                paths.add(copy.getPath().substring(0, copy.getPath().length() - name.length()));
+            }
+            Long size = task.revision.getSize();
+            Map<String, String> links = Exporter.exportLinks(task.revision);
+            try {
+                plan.add(new RestorePlan.Entry(task.file.getId(), name, task.file.getMimeType(),
+                        task.revision.getId(), task.revision.getMd5Checksum(), size == null ? -1 : size, paths)
+                        .setExportLink(task.format == null || links == null ? null
+                                : links.get(task.format.getMimeType())));
+            } catch (IOException e) {
+                fail(report, task.file, task.target.toString(), "plan", String.valueOf(e));
+            }
+        });
+        return report;
+    }
+
+    /**
+     * Выполняет план plan без получения списков файлов и ревизий; каталоги файлов создаются по плану
+     * параллельно (см. {@link WriteScheduler}).
+     * Файлы загружаются от больших к малым: большие файлы начинаются первыми и не остаются в конце одни,
+     * пока остальные потоки простаивают. Журнал должен быть открыт на дату плана.
+     * @return отчет о восстановлении
+     * @throws InterruptedException если текущий поток был прерван во время ожидания
+     */
+    public RestoreReport restore(RestorePlan.Reader plan, RestoreJournal journal) throws InterruptedException {
+        RestoreReport report = new RestoreReport();
+        List<RestorePlan.Entry> entries = new ArrayList<>();
+        plan.forEachRemaining(entries::add);
+        entries.sort((a, b) -> Long.compare(b.getSize(), a.getSize()));
+        if (metrics != null) metrics.plan(plan.getSummary().getFiles(), plan.getSummary().getBytes());
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (RestorePlan.Entry e : entries) {
+            for (String dir : e.getDirs()) dirs.add(Paths.get(dir));
+        }
+        try {
+            writes.createDirectories(new ArrayList<>(dirs));
+        } catch (IOException e) {
+            // Файлы каталогов, которые не удалось создать, попадут в отчет при загрузке
+            report.failed(null, dirs.size() + " dirs", "plan", String.valueOf(e));
+        }
+        Map<String, String> claims = new HashMap<>(journal.getPaths());
+        return run(journal, report, (downloadQueue, exportQueue) -> {
+            List<DownloadTask> tasks = new ArrayList<>(1);
+            for (RestorePlan.Entry e : entries) {
+                File f = new File().setId(e.getFileId()).setName(e.getName()).setMimeType(e.getMimeType())
+                        .setSize(e.getSize() < 0 ? null : e.getSize());
+                List<java.io.File> paths = claim(f, e.getDirs(), e.getName(), journal, claims);
+                java.io.File target = paths.get(0);
+                ExportFormat format = null;
+                if (ExportFormat.isNative(e.getMimeType())) {
+                    format = exporter.getFormat(e.getMimeType());
+                    if (format == null) {
+                        fail(report, f, target.toString(), "plan", "No export format for " + e.getMimeType());
+                        continue;
+                    }
+                }
+                List<java.io.File> copies = new ArrayList<>(paths.subList(1, paths.size()));
+                if (!isFree(f, target, copies, journal, report)) continue;
+                tasks.clear();
+                if (!resume(f, target, copies, format, journal, report, tasks)) {
+                    Revision rev = new Revision().setId(e.getRevisionId()).setMd5Checksum(e.getMd5())
+                            .setSize(e.getSize() < 0 ? null : e.getSize());
+                    if (e.getExportLink() != null) {
+                        rev.set("exportLinks", Collections.singletonMap(format.getMimeType(), e.getExportLink()));
+                    }
+                    tasks.add(new DownloadTask(f, rev, target, copies, false, format));
+                }
+                for (DownloadTask task : tasks) (task.format == null ? downloadQueue : exportQueue).put(task);
+            }
+        });
+    }
+
+    /**
+     * Источник заданий для этапов download и export.
+     */
+    private interface TaskSource {
+        void feed(BlockingQueue<Object> downloadQueue, BlockingQueue<Object> exportQueue)
+                throws InterruptedException;
+    }
+
+    /**
+     * Получатель заданий этапа lookup.
+     */
+    private interface TaskSink {
+        void accept(DownloadTask task) throws InterruptedException;
+    }
+
+    /**
+     * Запускает этапы download и export и передает им задания из source.
+     */
+    private RestoreReport run(RestoreJournal journal, RestoreReport report, TaskSource source)
+            throws InterruptedException {
+        BlockingQueue<Object> downloadQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Object> exportQueue = new ArrayBlockingQueue<>(queueCapacity);
+        if (metrics != null) {
+            metrics.queue(metricsName + ".download", downloadQueue::size);
+            metrics.queue(metricsName + ".export", exportQueue::size);
+        }
+        List<Thread> downloads = Pipeline.start("restore-download", downloadWorkers, () -> {
+            Object o;
+            while ((o = downloadQueue.take()) != Pipeline.POISON) {
+                if (slots != null) slots.acquire();
+                try {
+                    download((DownloadTask) o, journal, report);
+                } finally {
+                    if (slots != null) slots.release();
+                }
+            }
+        });
+        List<Thread> exports = Pipeline.start("restore-export", exportWorkers, () -> {
+            Object o;
+            while ((o = exportQueue.take()) != Pipeline.POISON) {
+                if (slots != null) slots.acquire();
+                try {
+                    export((DownloadTask) o, journal, report);
+                } finally {
+                    if (slots != null) slots.release();
+                }
+            }
+        });
+
+        try {
+            source.feed(downloadQueue, exportQueue);
+        } finally {
+            Pipeline.finish(downloadQueue, downloads);
+            Pipeline.finish(exportQueue, exports);
+            if (metrics != null) {
+                metrics.removeQueue(metricsName + ".download");
+                metrics.removeQueue(metricsName + ".export");
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Выполняет этап lookup для файлов files на lookupWorkers потоках и передает задания в sink.
+     */
+    private void lookup(Iterator<File> files, DirectoryIndex dirs, LocalDateTime toDate, RestoreJournal journal,
+                        RestoreReport report, TaskSink sink) throws InterruptedException {
+        BlockingQueue<Object> lookupQueue = new ArrayBlockingQueue<>(queueCapacity);
+        Map<String, String> claims = new ConcurrentHashMap<>();
+        if (journal != null) claims.putAll(journal.getPaths());
+        if (metrics != null) metrics.queue(metricsName + ".lookup", lookupQueue::size);
+        List<Thread> lookups = Pipeline.start("restore-lookup", lookupWorkers, () -> {
+            DriveBatcher batcher = new DriveBatcher(service, scheduler);
+            List<File> batch = new ArrayList<>(DriveBatcher.MAX_BATCH_SIZE);
+            boolean done = false;
+            while (!done) {
+                done = Pipeline.take(lookupQueue, batch, DriveBatcher.MAX_BATCH_SIZE);
+                for (DownloadTask task : lookup(batch, dirs, toDate, journal, claims, report, batcher)) {
+                    sink.accept(task);
+                }
+            }
+        });
+        try {
+            while (files.hasNext()) {
+                lookupQueue.put(files.next());
+            }
+        } finally {
+            Pipeline.finish(lookupQueue, lookups);
+            if (metrics != null) metrics.removeQueue(metricsName + ".lookup");
+        }
+    }
+
+    /**
+     * Этап lookup: определяет пути файлов и ревизии которые необходимо загрузить. Файлы завершенные
+     * по журналу пропускаются, для начатых берется ревизия из журнала; ревизии остальных файлов
+     * запрашиваются пакетом через batcher. Пути файлов занимаются в claims (см. {@link #claim}).
+     * При составлении плана journal равен null: существующие файлы проверяются при выполнении плана.
+     * @return задания на загрузку (файлы которые загружать не нужно пропускаются)
+     */
+    private List<DownloadTask> lookup(List<File> files, DirectoryIndex dirs, LocalDateTime toDate,
+                                      RestoreJournal journal, Map<String, String> claims, RestoreReport report,
+                                      DriveBatcher batcher) {
+        List<DownloadTask> tasks = new ArrayList<>(files.size());
+        // Файлы, ревизии которых запрошены пакетом и ответ еще не получен
+        Map<String, DownloadTask> waiting = new LinkedHashMap<>();
+        for (File f : files) {
+            List<String> dirPaths = dirs.resolve(f);
+            if (dirPaths.isEmpty()) {
+                dirPaths = Collections.singletonList(dirs.getRootPath());
+                report.warn(f.getId(), dirs.getRootPath() + f.getName(), "lookup",
+                        "Parents " + f.getParents() + " not found, restored to root");
+            }
+            ExportFormat format = null;
+            String name = f.getName();
+            if (ExportFormat.isNative(f.getMimeType())) {
+                format = exporter.getFormat(f.getMimeType());
+                if (format == null) {
+                    fail(report, f, dirPaths.get(0) + name, "lookup", "No export format for " + f.getMimeType());
+                    continue;
+                }
+                name = format.fileName(name);
+            }
+            List<java.io.File> paths = claim(f, dirPaths, name, journal, claims);
+            java.io.File target = paths.get(0);
+            List<java.io.File> copies = new ArrayList<>(paths.subList(1, paths.size()));
+            if (journal != null) {
+                if (!isFree(f, target, copies, journal, report)) continue;
+                if (resume(f, target, copies, format, journal, report, tasks)) continue;
+            }
+            if (revisions.isCached(f.getId(), toDate)) {
+                Revision rev = revisions.get(f.getId(), toDate);
+                if (rev == null) {
+                    fail(report, f, target.toString(), "lookup", "No revision before " + toDate);
+                } else {
+                    tasks.add(new DownloadTask(f, rev, target, copies, false, format));
+                }
+                continue;
+            }
+            ExportFormat exportFormat = format;
+            waiting.put(f.getId(), new DownloadTask(f, null, target, copies, false, format));
+            try {
+                batcher.listRevisions(Collections.singletonList(f.getId()), Quickstart.REVISION_FIELDS,
+                        new DriveBatcher.Callback<DriveBatcher.RevisionPage>() {
+                    @Override
+                    public void onSuccess(DriveBatcher.RevisionPage page) throws IOException {
+                        waiting.remove(f.getId());
+                        Revision rev = Quickstart.selectRevisionByDate(page.getRevisions(), toDate);
+                        if (rev == null) {
+                            fail(report, f, target.toString(), "lookup", "No revision before " + toDate);
+                        } else {
+                            tasks.add(new DownloadTask(f, rev, target, copies, false, exportFormat));
+                        }
+                        revisions.put(f.getId(), toDate, rev);
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError error) {
+                        waiting.remove(f.getId());
+                        fail(report, f, target.toString(), "lookup", error.getMessage());
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                failWaiting(waiting, claims, report, batcher, e);
+            }
+        }
+        try {
+            batcher.flush();
+        } catch (IOException | RuntimeException e) {
+            failWaiting(waiting, claims, report, batcher, e);
+        }
+        return tasks;
+    }
+
+    /**
+     * Ошибка пакета e: отбрасывает оставшиеся запросы batcher, отмечает неудачей каждый файл waiting, ответ
+     * на запрос ревизий которого не получен, и освобождает занятые им пути.
+     */
+    private void failWaiting(Map<String, DownloadTask> waiting, Map<String, String> claims, RestoreReport report,
+                             DriveBatcher batcher, Exception e) {
+        batcher.clear();
+        for (DownloadTask task : waiting.values()) {
+            claims.remove(task.target.getPath(), task.file.getId());
+            for (java.io.File copy : task.copies) claims.remove(copy.getPath(), task.file.getId());
+            fail(report, task.file, task.target.toString(), "lookup", String.valueOf(e));
+        }
+        waiting.clear();
+    }
+
+    /**
+     * Занимает для файла f пути dirs + name. Если путь в каком-либо из каталогов уже занят другим файлом
+     * восстановления (два файла с одинаковым именем в папке, файлы без родителей в корне), файл получает имя
+     * "name (fileId)" во всех каталогах. Имя, под которым файл записан в журнале journal (если задан),
+     * сохраняется.
+     * @param claims занятые пути: путь -> идентификатор файла
+     * @return пути файла: основной и копии для остальных родителей
+     */
+    static List<java.io.File> claim(File f, List<String> dirs, String name, RestoreJournal journal,
+                                    Map<String, String> claims) {
+        String unique = uniqueName(name, f.getId());
+        RestoreJournal.Entry entry = journal == null ? null : journal.get(f.getId());
+        boolean renamed = entry != null && (dirs.get(0) + unique).equals(entry.getPath());
+        String chosen = !renamed && claimAll(dirs, name, f.getId(), claims) ? name : unique;
+        if (chosen.equals(unique)) claimAll(dirs, unique, f.getId(), claims);
+        List<java.io.File> paths = new ArrayList<>(dirs.size());
+        for (String dir : dirs) paths.add(new java.io.File(dir + chosen));
+        return paths;
+    }
+
+    private static boolean claimAll(List<String> dirs, String name, String fileId, Map<String, String> claims) {
+        for (int i = 0; i < dirs.size(); i++) {
+            String owner = claims.putIfAbsent(dirs.get(i) + name, fileId);
+            if (owner != null && !owner.equals(fileId)) {
+                for (int j = 0; j < i; j++) claims.remove(dirs.get(j) + name, fileId);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return имя name с идентификатором fileId перед расширением: "report (fileId).txt" */
+    static String uniqueName(String name, String fileId) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) + " (" + fileId + ")" + name.substring(dot)
+                : name + " (" + fileId + ")";
+    }
+
+    /**
+     * Проверяет что пути файла f не заняты файлами, которые восстановление не создавало (по журналу):
+     * такие файлы не перезаписываются. Копии по занятым путям не создаются.
+     * @return false если занят основной путь - файл пропускается
+     */
+    private boolean isFree(File f, java.io.File target, List<java.io.File> copies, RestoreJournal journal,
+                           RestoreReport report) {
+        RestoreJournal.Entry entry = journal.get(f.getId());
+        if (target.exists() && (entry == null || (entry.getPath() != null
+                && !entry.getPath().equals(target.getPath())))) {
+            report.warn(f.getId(), target.toString(), "lookup", "File exists, kept");
+            report.skipped();
+            if (metrics != null) metrics.skipped(size(f));
+            return false;
+        }
+        if (entry == null) {
+            for (Iterator<java.io.File> i = copies.iterator(); i.hasNext(); ) {
+                java.io.File copy = i.next();
+                if (copy.exists()) {
+                    report.warn(f.getId(), copy.toString(), "lookup", "File exists, kept");
+                    i.remove();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Проверяет что файл завершенный по журналу действительно на месте: совпадает размер (и md5 если
+     * включена проверка), существуют копии для остальных родителей.
+     */
+    private boolean isComplete(java.io.File target, List<java.io.File> copies, RestoreJournal.Entry entry,
+                               RestoreReport report) {
+        if (target.length() != entry.getBytes()) return false;
+        for (java.io.File copy : copies) {
+            if (copy.length() != entry.getBytes()) return false;
+        }
+        if (!verifyChecksums || entry.getMd5() == null) return true;
+        try {
+            return entry.getMd5().equals(Checksums.md5(target.toPath()));
+        } catch (IOException e) {
+            report.warn(null, target.toString(), "verify", String.valueOf(e));
+            return false;
+        }
+    }
+
+    /**
+     * Обрабатывает файл f по записи журнала: завершенный файл пропускается, для начатого в tasks
+     * добавляется задание на загрузку ревизии из журнала.
+     * @return false если журнал не содержит записи о файле
+     */
+    private boolean resume(File f, java.io.File target, List<java.io.File> copies, ExportFormat format,
+                           RestoreJournal journal, RestoreReport report, List<DownloadTask> tasks) {
+        RestoreJournal.Entry entry = journal.get(f.getId());
+        if (entry == null) return false;
+        if (entry.getState() == RestoreJournal.State.DONE && isComplete(target, copies, entry, report)) {
+            report.skipped();
+            if (metrics != null) metrics.skipped(size(f));
+        } else {
+            // Ревизия уже известна - загружаем ее заново без запроса списка ревизий
+            Revision rev = new Revision().setId(entry.getRevisionId()).setMd5Checksum(entry.getMd5())
+                    .setSize(entry.getBytes() < 0 ? null : entry.getBytes());
+            tasks.add(new DownloadTask(f, rev, target, copies,
+                    entry.getState() == RestoreJournal.State.STARTED, format));
+        }
+        return true;
+    }
+
+    /**
+     * Этап download: загружает выбранную ревизию во временный файл, проверяет md5 и переименовывает его.
+     * Временный файл прерванной загрузки той же ревизии дописывается, а не загружается заново.
+     * Содержимое, уже имеющееся в {@link ContentStore}, не загружается.
+     */
+    private void download(DownloadTask task, RestoreJournal journal, RestoreReport report) {
+        Path part = Paths.get(task.target.getPath() + PART_SUFFIX);
+        String expected = task.revision.getMd5Checksum();
+        long size = task.revision.getSize() == null ? -1 : task.revision.getSize();
+        boolean dedup = content != null && expected != null && size >= 0;
+        boolean reused = false;
+        boolean owner = false;
+        String md5;
+        try {
+            try {
+                // Одинаковое содержимое загружается одним потоком, остальные ждут и берут его из хранилища
+                owner = dedup && content.acquire(expected);
+                if (dedup && content.restore(expected, size, part)) {
+                    reused = true;
+                    md5 = expected;
+                } else {
+                    if (!task.resume) ChunkedDownloader.discard(part);
+                    journal.started(task.file.getId(), task.revision.getId(), size, expected, task.target.getPath());
+                    md5 = downloader.download(service.revisions().get(task.file.getId(), task.revision.getId()),
+                            size, part);
+                    // Параллельные диапазоны и продолженная загрузка хешируются по файлу
+                    if (md5 == null) md5 = Checksums.md5(part);
+                    if (expected != null && !expected.equals(md5)) {
+                        ChunkedDownloader.discard(part);
+                        throw new IOException("Checksum mismatch: expected " + expected + ", got " + md5);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Временный файл остается: следующий запуск продолжит загрузку с места обрыва
+                fail(report, task.file, task.target.toString(), "download", String.valueOf(e));
+                return;
+            }
+            // Восстановленный файл становится источником содержимого до того как его ждущие получат место
+            if (complete(task, part, md5, reused, journal, report) && !reused) store(task, md5, null, report);
+        } finally {
+            if (owner) content.release(expected);
+        }
+    }
+
+    /**
+     * Этап export: выгружает ревизию файла Google Документов во временный файл и переименовывает его.
+     * Ревизия, уже выгруженная в этот формат ранее, берется из {@link ContentStore}.
+     */
+    private void export(DownloadTask task, RestoreJournal journal, RestoreReport report) {
+        Path part = Paths.get(task.target.getPath() + PART_SUFFIX);
+        String key = task.file.getId() + "/" + task.revision.getId() + "/" + task.format.getMimeType();
+        String md5 = null;
+        boolean reused;
+        try {
+            if (content != null) md5 = content.restore(key, part);
+            reused = md5 != null;
+            if (!reused) {
+                journal.started(task.file.getId(), task.revision.getId(), -1, null, task.target.getPath());
+                MessageDigest digest = Checksums.md5();
+                if (!exporter.export(task.file, task.revision, task.format, part, digest)) {
+                    report.warn(task.file.getId(), task.target.toString(), "export",
+                            "No export link for revision " + task.revision.getId() + ", current version exported");
+                    key = null;
+                }
+                md5 = Checksums.hex(digest.digest());
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(report, task.file, task.target.toString(), "export", String.valueOf(e));
+            return;
+        }
+        if (complete(task, part, md5, reused, journal, report) && !reused) store(task, md5, key, report);
+    }
+
+    /**
+     * Запоминает восстановленный файл задания источником содержимого md5 в {@link ContentStore}. Ошибка
+     * хранилища не мешает восстановлению файла и попадает в отчет предупреждением.
+     */
+    private void store(DownloadTask task, String md5, String key, RestoreReport report) {
+        if (content == null) return;
+        try {
+            content.put(md5, task.target.toPath(), key);
+        } catch (IOException | RuntimeException e) {
+            report.warn(task.file.getId(), task.target.toString(), "store", String.valueOf(e));
+        }
+    }
+
+    /**
+     * Переименовывает загруженный временный файл part, создает копии и отмечает файл завершенным в журнале.
+     * @return false если файл не восстановлен (ошибка в отчете)
+     */
+    private boolean complete(DownloadTask task, Path part, String md5, boolean reused, RestoreJournal journal,
+                             RestoreReport report) {
+        long bytes;
+        try {
+            bytes = Files.size(part);
+            Files.move(part, task.target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            fail(report, task.file, task.target.toString(), "download", String.valueOf(e));
+            return false;
+        }
+        for (java.io.File copy : task.copies) {
+            try {
+                if (content != null) {
+                    content.link(task.target.toPath(), copy.toPath());
+                } else {
+                    Files.copy(task.target.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                fail(report, task.file, copy.toString(), "copy", String.valueOf(e));
+                return false;
+            }
+        }
+        try {
+            journal.completed(task.file.getId(), task.revision.getId(), bytes, md5, task.target.getPath());
+        } catch (IOException e) {
+            report.warn(task.file.getId(), task.target.toString(), "journal", String.valueOf(e));
+        }
+        if (reused) {
+            report.reused();
+            if (metrics != null) metrics.reused(bytes);
+        } else {
+            report.downloaded();
+            if (metrics != null) metrics.downloaded(bytes);
+        }
+        return true;
+    }
+
+    /**
+     * Отмечает файл f не восстановленным в отчете и показателях.
+     */
+    private void fail(RestoreReport report, File f, String path, String stage, String message) {
+        report.failed(f.getId(), path, stage, message);
+        if (metrics != null) metrics.failed(size(f));
+    }
+
+    private static long size(File f) {
+        return f.getSize() == null ? 0 : f.getSize();
+    }
+}
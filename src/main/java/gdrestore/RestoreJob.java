@@ -0,0 +1,88 @@
+package gdrestore;
+
+import com.google.api.services.drive.Drive;
+
+import java.time.LocalDateTime;
+
+/**
+ * Задание восстановления одного диска (пользователя или общего диска) для {@link RestoreOrchestrator}:
+ * свой авторизованный сервис, свой планировщик запросов (квота GoogleDrive считается по пользователю),
+ * свой каталог восстановления и своя дата.
+ */
+public class RestoreJob {
+
+    private final String name;
+    private final Drive service;
+    private final RequestScheduler scheduler;
+    private final String rootPath;
+    private final LocalDateTime toDate;
+    private String teamDriveId;
+    private RestoreScope scope;
+
+    /**
+     * @param name имя задания (уникальное, для отчета)
+     * @param service GoogleDrive сервис авторизованный учетной записью задания
+     * @param scheduler планировщик запросов учетной записи
+     * @param rootPath каталог в котором воссоздается диск
+     * @param toDate дата до которой файлы должны быть восстановлены
+     */
+    public RestoreJob(String name, Drive service, RequestScheduler scheduler, String rootPath, LocalDateTime toDate) {
+        this.name = name;
+        this.service = service;
+        this.scheduler = scheduler;
+        this.rootPath = rootPath.endsWith("/") ? rootPath : rootPath + '/';
+        this.toDate = toDate;
+    }
+
+    /**
+     * Восстанавливать общий диск (Team Drive) teamDriveId вместо диска пользователя.
+     */
+    public RestoreJob setTeamDriveId(String teamDriveId) {
+        this.teamDriveId = teamDriveId;
+        return this;
+    }
+
+    /**
+     * Восстанавливать только часть диска scope (null - весь диск).
+     */
+    public RestoreJob setScope(RestoreScope scope) {
+        this.scope = scope;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Drive getService() {
+        return service;
+    }
+
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /** @return каталог восстановления (с завершающим '/') */
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    public LocalDateTime getToDate() {
+        return toDate;
+    }
+
+    /** @return идентификатор общего диска или null для диска пользователя */
+    public String getTeamDriveId() {
+        return teamDriveId;
+    }
+
+    /** @return восстанавливаемая часть диска или null если восстанавливается весь диск */
+    public RestoreScope getScope() {
+        return scope;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,185 @@
+package gdrestore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Журнал восстановления: для каждого файла хранит выбранную ревизию, размер, контрольную сумму и
+ * состояние загрузки. Журнал - текстовый файл, в который только дописываются строки вида
+ * <pre>STATE \t fileId \t revisionId \t bytes \t md5 \t path</pre>
+ * При повторном запуске последняя запись по файлу определяет, что с ним делать: завершенные файлы
+ * пропускаются без запросов к GoogleDrive, а для начатых сразу известна ревизия, которую нужно загрузить.
+ * Путь файла позволяет отличить файлы, созданные восстановлением, от уже лежавших в каталоге.
+ * <p>
+ * Первая строка журнала - дата на которую выполняется восстановление. Журнал другой даты не используется.
+ */
+public class RestoreJournal implements Closeable {
+
+    /** Имя файла журнала в корневом каталоге восстановления. */
+    public static final String FILE_NAME = ".gdrestore-journal";
+
+    private static final String HEADER = "# cutoff ";
+
+    public enum State {
+        /** Ревизия выбрана, загрузка начата. bytes и md5 - ожидаемые значения по данным GoogleDrive. */
+        STARTED,
+        /** Файл загружен и перемещен на место. bytes и md5 - фактические значения. */
+        DONE
+    }
+
+    /**
+     * Последняя запись журнала по файлу.
+     */
+    public static class Entry {
+        private final State state;
+        private final String revisionId;
+        private final long bytes;
+        private final String md5;
+        private final String path;
+
+        private Entry(State state, String revisionId, long bytes, String md5, String path) {
+            this.state = state;
+            this.revisionId = revisionId;
+            this.bytes = bytes;
+            this.md5 = md5;
+            this.path = path;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getRevisionId() {
+            return revisionId;
+        }
+
+        /** @return размер файла или -1 если неизвестен */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** @return md5 в hex или null если неизвестна */
+        public String getMd5() {
+            return md5;
+        }
+
+        /** @return путь, по которому восстанавливается файл, или null если не записан */
+        public String getPath() {
+            return path;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final BufferedWriter writer;
+
+    /**
+     * Создает журнал в памяти (без файла) - для однократного восстановления.
+     */
+    public RestoreJournal() {
+        this.writer = null;
+    }
+
+    private RestoreJournal(BufferedWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Открывает журнал file, загружая записи предыдущих запусков. Если журнал был создан для другой даты
+     * восстановления cutoff, он начинается заново.
+     */
+    public static RestoreJournal open(Path file, LocalDateTime cutoff) throws IOException {
+        String header = HEADER + cutoff;
+        RestoreJournal previous = new RestoreJournal();
+        boolean append = false;
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                append = header.equals(reader.readLine());
+                String line;
+                while (append && (line = reader.readLine()) != null) previous.apply(line);
+            }
+        }
+        BufferedWriter writer = append
+                ? Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND)
+                : Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        if (!append) {
+            writer.write(header);
+            writer.newLine();
+            writer.flush();
+        }
+        RestoreJournal journal = new RestoreJournal(writer);
+        journal.entries.putAll(previous.entries);
+        return journal;
+    }
+
+    private void apply(String line) {
+        String[] parts = line.split("\t", -1);
+        // Оборванная при сбое последняя строка игнорируется; строки без пути записаны прежними версиями
+        if (parts.length != 5 && parts.length != 6) return;
+        try {
+            State state = State.valueOf(parts[0]);
+            String md5 = parts[4].isEmpty() ? null : parts[4];
+            String path = parts.length < 6 || parts[5].isEmpty() ? null : parts[5];
+            entries.put(parts[1], new Entry(state, parts[2], Long.parseLong(parts[3]), md5, path));
+        } catch (IllegalArgumentException e) {
+            // Поврежденная строка - файл будет загружен заново
+        }
+    }
+
+    /** @return последняя запись по файлу или null */
+    public Entry get(String fileId) {
+        return entries.get(fileId);
+    }
+
+    /** @return записанные пути файлов: путь -> идентификатор файла */
+    public Map<String, String> getPaths() {
+        Map<String, String> paths = new HashMap<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (e.getValue().path != null) paths.put(e.getValue().path, e.getKey());
+        }
+        return paths;
+    }
+
+    /**
+     * Отмечает начало загрузки ревизии revisionId файла fileId по пути path.
+     * @param bytes ожидаемый размер или -1
+     * @param md5 ожидаемая контрольная сумма или null
+     */
+    public void started(String fileId, String revisionId, long bytes, String md5, String path) throws IOException {
+        record(State.STARTED, fileId, revisionId, bytes, md5, path);
+    }
+
+    /**
+     * Отмечает завершение загрузки: файл на месте по пути path, размер bytes, контрольная сумма md5.
+     */
+    public void completed(String fileId, String revisionId, long bytes, String md5, String path) throws IOException {
+        record(State.DONE, fileId, revisionId, bytes, md5, path);
+    }
+
+    private void record(State state, String fileId, String revisionId, long bytes, String md5, String path)
+            throws IOException {
+        entries.put(fileId, new Entry(state, revisionId, bytes, md5, path));
+        if (writer == null) return;
+        String line = state + "\t" + fileId + "\t" + revisionId + "\t" + bytes + "\t" + (md5 == null ? "" : md5)
+                + "\t" + (path == null ? "" : path);
+        synchronized (writer) {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) writer.close();
+    }
+}
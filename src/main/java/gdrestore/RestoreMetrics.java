@@ -0,0 +1,356 @@
+package gdrestore;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Показатели длительного восстановления: байты и файлы (с общей и текущей скоростью), оставшийся объем
+ * и оценка времени, размеры очередей этапов, задержки запросов по типам, повторы и срабатывания квоты.
+ * <p>
+ * Счетчики - {@link LongAdder}, запись не создает объектов и не блокирует потоки, поэтому показатели
+ * собираются постоянно, в том числе на каждый буфер загрузки. Показатели доступны через JMX
+ * ({@link #register}), периодической строкой журнала и файлом в текстовом формате Prometheus
+ * ({@link #startReporting}).
+ */
+public class RestoreMetrics implements RestoreMetricsMXBean {
+
+    /** Имя MBean (к нему добавляется name=...). */
+    public static final String OBJECT_NAME = "gdrestore:type=RestoreMetrics";
+
+    private final long startedAt = System.nanoTime();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder downloaded = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder listed = new LongAdder();
+    private final LongAdder plannedFiles = new LongAdder();
+    private final LongAdder plannedBytes = new LongAdder();
+    private final LongAdder processedBytes = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, IntSupplier> queues = new ConcurrentHashMap<>();
+
+    /** Получено bytes байт содержимого. */
+    public void bytes(long bytes) {
+        this.bytes.add(bytes);
+    }
+
+    /** Предстоит обработать files файлов общим размером bytes (для оценки оставшегося времени). */
+    public void plan(long files, long bytes) {
+        plannedFiles.add(files);
+        plannedBytes.add(bytes);
+    }
+
+    /** Файл размером size загружен. */
+    public void downloaded(long size) {
+        downloaded.increment();
+        processedBytes.add(size);
+    }
+
+    /** Файл размером size восстановлен без загрузки (из хранилища содержимого). */
+    public void reused(long size) {
+        reused.increment();
+        processedBytes.add(size);
+    }
+
+    /** Файл размером size пропущен (уже восстановлен). */
+    public void skipped(long size) {
+        skipped.increment();
+        processedBytes.add(size);
+    }
+
+    /** Файл размером size не восстановлен. */
+    public void failed(long size) {
+        failed.increment();
+        processedBytes.add(size);
+    }
+
+    /** Получено count файлов в перечне файлов диска. */
+    public void listed(int count) {
+        listed.add(count);
+    }
+
+    /**
+     * Выполнена попытка запроса типа endpoint стоимостью cost (для пакетов - количество частей)
+     * длительностью nanos.
+     */
+    public void request(String endpoint, int cost, long nanos) {
+        requests.add(cost);
+        LatencyHistogram histogram = latencies.get(endpoint);
+        if (histogram == null) histogram = latencies.computeIfAbsent(endpoint, (k) -> new LatencyHistogram());
+        histogram.record(nanos);
+    }
+
+    public void retry() {
+        retries.increment();
+    }
+
+    public void throttle() {
+        throttles.increment();
+    }
+
+    /** Добавляет очередь этапа stage, размер которой показывается в метриках. */
+    public void queue(String stage, IntSupplier depth) {
+        queues.put(stage, depth);
+    }
+
+    public void removeQueue(String stage) {
+        queues.remove(stage);
+    }
+
+    /** @return гистограмма задержек запросов типа endpoint или null */
+    public LatencyHistogram getLatency(String endpoint) {
+        return latencies.get(endpoint);
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytes.sum() / elapsedSeconds();
+    }
+
+    @Override
+    public long getFilesDownloaded() {
+        return downloaded.sum();
+    }
+
+    @Override
+    public long getFilesReused() {
+        return reused.sum();
+    }
+
+    @Override
+    public long getFilesSkipped() {
+        return skipped.sum();
+    }
+
+    @Override
+    public long getFilesFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public double getFilesPerSecond() {
+        return (downloaded.sum() + reused.sum()) / elapsedSeconds();
+    }
+
+    @Override
+    public long getPlannedFiles() {
+        return plannedFiles.sum();
+    }
+
+    @Override
+    public long getRemainingBytes() {
+        return Math.max(0, plannedBytes.sum() - processedBytes.sum());
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        double rate = getBytesPerSecond();
+        return rate > 0 ? (long) (getRemainingBytes() / rate) : -1;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getThrottles() {
+        return throttles.sum();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> result = new TreeMap<>();
+        for (Map.Entry<String, IntSupplier> e : queues.entrySet()) result.put(e.getKey(), e.getValue().getAsInt());
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50Millis() {
+        return quantiles(0.5);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99Millis() {
+        return quantiles(0.99);
+    }
+
+    /**
+     * Регистрирует показатели в JMX под именем gdrestore:type=RestoreMetrics,name=name.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName(OBJECT_NAME + ",name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Запускает периодический вывод показателей каждые intervalSeconds секунд: строкой журнала в log
+     * и/или файлом prometheusFile (для node_exporter textfile collector). Любой из них может быть null.
+     * @return остановка вывода (с последним выводом)
+     */
+    public Closeable startReporting(long intervalSeconds, PrintStream log, Path prometheusFile) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "restore-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        Runnable report = () -> {
+            if (log != null) log.println(toLogLine());
+            if (prometheusFile != null) {
+                try {
+                    writePrometheus(prometheusFile);
+                } catch (IOException e) {
+                    if (log != null) log.println("metrics error=\"" + e + "\"");
+                }
+            }
+        };
+        executor.scheduleAtFixedRate(report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return () -> {
+            executor.shutdownNow();
+            report.run();
+        };
+    }
+
+    /**
+     * @return строка журнала вида "metrics key=value ..."
+     */
+    public String toLogLine() {
+        StringBuilder line = new StringBuilder("metrics")
+                .append(" bytes=").append(getBytesDownloaded())
+                .append(" bytesPerSec=").append((long) getBytesPerSecond())
+                .append(" files=").append(getFilesDownloaded())
+                .append(" reused=").append(getFilesReused())
+                .append(" skipped=").append(getFilesSkipped())
+                .append(" failed=").append(getFilesFailed())
+                .append(" planned=").append(getPlannedFiles())
+                .append(String.format(" filesPerSec=%.2f", getFilesPerSecond()))
+                .append(" remainingBytes=").append(getRemainingBytes())
+                .append(" etaSec=").append(getEtaSeconds())
+                .append(" requests=").append(getRequests())
+                .append(" retries=").append(getRetries())
+                .append(" throttles=").append(getThrottles());
+        for (Map.Entry<String, Integer> e : getQueueDepths().entrySet()) {
+            line.append(" queue.").append(e.getKey()).append('=').append(e.getValue());
+        }
+        for (Map.Entry<String, Long> e : getLatencyP99Millis().entrySet()) {
+            line.append(" p99ms.").append(e.getKey()).append('=')
+                    .append(e.getValue() == Long.MAX_VALUE ? "+Inf" : String.valueOf(e.getValue()));
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return показатели в текстовом формате Prometheus
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        counter(out, "gdrestore_bytes_downloaded_total", "Downloaded content bytes", getBytesDownloaded());
+        out.append("# HELP gdrestore_files_total Processed files by outcome\n")
+                .append("# TYPE gdrestore_files_total counter\n");
+        out.append("gdrestore_files_total{outcome=\"downloaded\"} ").append(getFilesDownloaded()).append('\n');
+        out.append("gdrestore_files_total{outcome=\"reused\"} ").append(getFilesReused()).append('\n');
+        out.append("gdrestore_files_total{outcome=\"skipped\"} ").append(getFilesSkipped()).append('\n');
+        out.append("gdrestore_files_total{outcome=\"failed\"} ").append(getFilesFailed()).append('\n');
+        counter(out, "gdrestore_listed_files_total", "Files received in drive listings", listed.sum());
+        gauge(out, "gdrestore_planned_files", "Files to restore", getPlannedFiles());
+        gauge(out, "gdrestore_remaining_bytes", "Bytes left to restore", getRemainingBytes());
+        gauge(out, "gdrestore_eta_seconds", "Estimated seconds to finish, -1 if unknown", getEtaSeconds());
+        counter(out, "gdrestore_requests_total", "Drive API request attempts, batch parts counted separately",
+                getRequests());
+        counter(out, "gdrestore_retries_total", "Retried Drive API requests", getRetries());
+        counter(out, "gdrestore_throttles_total", "Rate limit responses", getThrottles());
+        out.append("# HELP gdrestore_queue_depth Pipeline queue sizes\n# TYPE gdrestore_queue_depth gauge\n");
+        for (Map.Entry<String, Integer> e : getQueueDepths().entrySet()) {
+            out.append("gdrestore_queue_depth{stage=\"").append(e.getKey()).append("\"} ").append(e.getValue())
+                    .append('\n');
+        }
+        out.append("# HELP gdrestore_request_seconds Drive API request latency\n")
+                .append("# TYPE gdrestore_request_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(latencies).entrySet()) {
+            LatencyHistogram h = e.getValue();
+            String label = "endpoint=\"" + e.getKey() + "\"";
+            long cumulative = 0;
+            for (int i = 0; i <= LatencyHistogram.BOUNDS_MILLIS.length; i++) {
+                cumulative += h.bucket(i);
+                String le = i < LatencyHistogram.BOUNDS_MILLIS.length
+                        ? String.valueOf(LatencyHistogram.BOUNDS_MILLIS[i] / 1000.0) : "+Inf";
+                out.append("gdrestore_request_seconds_bucket{").append(label).append(",le=\"").append(le)
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append("gdrestore_request_seconds_sum{").append(label).append("} ")
+                    .append(h.getSumNanos() / 1e9).append('\n');
+            out.append("gdrestore_request_seconds_count{").append(label).append("} ")
+                    .append(cumulative).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Записывает показатели в формате Prometheus в файл file (через временный файл, атомарно).
+     */
+    public void writePrometheus(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, toPrometheus().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return toLogLine();
+    }
+
+    private Map<String, Long> quantiles(double q) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> e : latencies.entrySet()) {
+            result.put(e.getKey(), e.getValue().quantileMillis(q));
+        }
+        return result;
+    }
+
+    private double elapsedSeconds() {
+        return Math.max(1e-3, (System.nanoTime() - startedAt) / 1e9);
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" gauge\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,48 @@
+package gdrestore;
+
+import java.util.Map;
+
+/**
+ * Показатели восстановления доступные через JMX (см. {@link RestoreMetrics#register}).
+ */
+public interface RestoreMetricsMXBean {
+
+    long getBytesDownloaded();
+
+    double getBytesPerSecond();
+
+    long getFilesDownloaded();
+
+    long getFilesReused();
+
+    long getFilesSkipped();
+
+    long getFilesFailed();
+
+    double getFilesPerSecond();
+
+    long getPlannedFiles();
+
+    long getRemainingBytes();
+
+    /** @return оценка оставшегося времени, с; -1 если скорость еще неизвестна */
+    long getEtaSeconds();
+
+    long getRequests();
+
+    long getRetries();
+
+    long getThrottles();
+
+    /** @return размеры очередей этапов */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * @return медиана задержки запросов по типам, мс (верхняя граница корзины гистограммы,
+     * {@link Long#MAX_VALUE} - больше последней границы)
+     */
+    Map<String, Long> getLatencyP50Millis();
+
+    /** @return 99-й процентиль задержки запросов по типам, мс (как {@link #getLatencyP50Millis}) */
+    Map<String, Long> getLatencyP99Millis();
+}
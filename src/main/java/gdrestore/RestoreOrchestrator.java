@@ -0,0 +1,313 @@
+package gdrestore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Одновременное восстановление нескольких дисков (учетных записей и общих дисков), например после
+ * заражения всей организации. Каждое {@link RestoreJob} выполняется своим {@link RestoreEngine} со своим
+ * планировщиком запросов, каталогом и датой. Задания разделяют:
+ * <ul>
+ *     <li>HTTP транспорт (соединения) - через сервисы заданий, построенные на общем транспорте;</li>
+ *     <li>места загрузки {@link JobSlots}: одновременно загружается не более parallelJobs * workersPerJob
+ *     файлов всех заданий, освободившееся место получает следующее по кругу задание, поэтому большой диск
+ *     не задерживает восстановление остальных;</li>
+ *     <li>бюджет скорости загрузки {@link BandwidthLimiter}: у каждого задания своя полоса, полосы
+ *     обслуживаются по кругу;</li>
+ *     <li>хранилище содержимого {@link ContentStore} (если задано; иначе у каждого задания может быть свое,
+ *     см. {@link #setJobContentStores});</li>
+ *     <li>планировщик записи на диск {@link WriteScheduler}.</li>
+ * </ul>
+ * Все задания выполняются одновременно (списки файлов и ревизий получаются в пределах квот заданий), каждое
+ * с одинаковым количеством потоков; загрузки ограничены общими местами.
+ */
+public class RestoreOrchestrator {
+
+    private final int parallelJobs;
+    private final int workersPerJob;
+    private final BandwidthLimiter bandwidth;
+    private final JobSlots slots;
+    private ContentStore content;
+    /** Создавать хранилище в каталоге каждого задания: null - нет, иначе - режим ссылок хранилища. */
+    private Boolean jobContentLinks;
+    private Map<String, ExportFormat> exportFormats = ExportFormat.defaults();
+    private int exportWorkers = RestoreEngine.DEFAULT_EXPORT_WORKERS;
+    private int chunkSize = ChunkedDownloader.DEFAULT_CHUNK_SIZE;
+    private int ranges = ChunkedDownloader.DEFAULT_RANGES;
+    private RestoreMetrics metrics;
+    private WriteScheduler writes = WriteScheduler.UNLIMITED;
+
+    /**
+     * @param parallelJobs на сколько заданий рассчитаны общие места загрузки (parallelJobs * workersPerJob)
+     * @param workersPerJob количество потоков на каждом этапе восстановления одного задания
+     * @param bandwidth общий бюджет скорости загрузки
+     */
+    public RestoreOrchestrator(int parallelJobs, int workersPerJob, BandwidthLimiter bandwidth) {
+        if (parallelJobs < 1 || workersPerJob < 1)
+            throw new IllegalArgumentException("Jobs and workers must be positive");
+        this.parallelJobs = parallelJobs;
+        this.workersPerJob = workersPerJob;
+        this.bandwidth = bandwidth;
+        this.slots = new JobSlots(parallelJobs * workersPerJob);
+    }
+
+    /**
+     * Устанавливает хранилище содержимого общее для всех заданий.
+     */
+    public void setContentStore(ContentStore content) {
+        this.content = content;
+    }
+
+    /**
+     * Если общее хранилище не задано, каждое задание использует свой индекс содержимого
+     * ({@link ContentStore#FILE_NAME}) в своем каталоге восстановления.
+     * @param links создавать повторяющиеся файлы жесткими ссылками на первый восстановленный
+     */
+    public void setJobContentStores(boolean links) {
+        this.jobContentLinks = links;
+    }
+
+    /**
+     * Устанавливает форматы выгрузки Google Документов и количество потоков выгрузки одного задания.
+     */
+    public void setExportFormats(Map<String, ExportFormat> exportFormats, int exportWorkers) {
+        this.exportFormats = exportFormats;
+        this.exportWorkers = exportWorkers;
+    }
+
+    /**
+     * Устанавливает размер части и количество параллельных диапазонов загрузки (см. {@link ChunkedDownloader}).
+     */
+    public void setDownloadOptions(int chunkSize, int ranges) {
+        this.chunkSize = chunkSize;
+        this.ranges = ranges;
+    }
+
+    /**
+     * Устанавливает показатели, общие для всех заданий.
+     */
+    public void setMetrics(RestoreMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Устанавливает планировщик записи, общий для всех заданий (задания пишут на один диск).
+     */
+    public void setWriteScheduler(WriteScheduler writes) {
+        this.writes = writes;
+    }
+
+    /**
+     * Выполняет задания jobs. Ошибка одного задания (например, отказ авторизации) не прерывает остальные
+     * и попадает в его отчет.
+     * @return отчеты по именам заданий в порядке jobs
+     * @throws InterruptedException если текущий поток был прерван во время ожидания
+     */
+    public Map<String, RestoreReport> run(List<RestoreJob> jobs) throws InterruptedException {
+        Set<String> names = new HashSet<>();
+        for (RestoreJob job : jobs) {
+            if (!names.add(job.getName())) throw new IllegalArgumentException("Duplicate job " + job.getName());
+        }
+        Map<String, RestoreReport> reports = new ConcurrentHashMap<>();
+        // Задания не ждут друг друга целиком: загрузки всех заданий делят общие места по кругу
+        int threads = Math.max(1, jobs.size());
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(jobs.size() + threads);
+        for (RestoreJob job : jobs) queue.put(job);
+        List<Thread> runners = Pipeline.start("restore-job", threads, () -> {
+            Object o;
+            while ((o = queue.take()) != Pipeline.POISON) {
+                RestoreJob job = (RestoreJob) o;
+                reports.put(job.getName(), runJob(job));
+            }
+        });
+        Pipeline.finish(queue, runners);
+        Map<String, RestoreReport> result = new LinkedHashMap<>();
+        for (RestoreJob job : jobs) result.put(job.getName(), reports.get(job.getName()));
+        return result;
+    }
+
+    private RestoreReport runJob(RestoreJob job) throws InterruptedException {
+        try {
+            return restore(job, bandwidth.lane(job.getName()));
+        } catch (IOException | RuntimeException e) {
+            RestoreReport report = new RestoreReport();
+            report.failed(null, job.getRootPath(), "job", String.valueOf(e));
+            return report;
+        }
+    }
+
+    /**
+     * Составляет план восстановления диска задания job (см. {@link RestorePlan}) в файле
+     * {@link RestorePlan#FILE_NAME} каталога задания без загрузки содержимого. Следующее восстановление
+     * задания на ту же дату выполняет план, если диск с тех пор не изменился. План составляется для всего
+     * диска, поэтому у задания не должно быть области ({@link RestoreJob#getScope}).
+     * @return отчет о файлах, которые не удалось включить в план
+     */
+    public RestoreReport plan(RestoreJob job) throws IOException, InterruptedException {
+        if (job.getScope() != null) throw new IllegalArgumentException("Restore plans cover the whole drive");
+        Path root = Paths.get(job.getRootPath());
+        Files.createDirectories(root);
+        try (MetadataCache metadata = Quickstart.loadMetadata(job.getService(), job.getScheduler(), root,
+                job.getTeamDriveId());
+             RestorePlan.Writer plan = RestorePlan.create(root.resolve(RestorePlan.FILE_NAME), job.getToDate(),
+                     metadata.getPageToken());
+             RevisionResolver revisions = RevisionResolver.open(job.getService(), job.getScheduler(),
+                     root.resolve(RevisionResolver.FILE_NAME))) {
+            RestoreEngine engine = engine(job, null, null);
+            engine.setRevisionResolver(revisions);
+            RestoreReport report = engine.plan(metadata.files(), directoryIndex(job, metadata), job.getToDate(),
+                    plan);
+            plan.commit();
+            return warnOrphans(report, job, metadata);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Восстанавливает диск задания job на дату задания через полосу lane. Если в каталоге задания есть план
+     * на эту дату ({@link #plan}) и диск не изменился после его составления (позиция журнала изменений
+     * совпадает с сохраненной в плане), выполняется план. Иначе устаревший план удаляется, синхронизируется
+     * снимок метаданных в каталоге задания, создается дерево каталогов и файлы загружаются по снимку. Если у задания есть область
+     * ({@link RestoreJob#getScope}), обходятся и восстанавливаются только ее поддеревья в порядке области,
+     * без снимка и плана.
+     * @return отчет о восстановлении
+     */
+    public RestoreReport restore(RestoreJob job, BandwidthLimiter.Lane lane) throws IOException, InterruptedException {
+        Path root = Paths.get(job.getRootPath());
+        Files.createDirectories(root);
+        try (ContentStore jobContent = content != null || jobContentLinks == null ? null
+                : ContentStore.open(root, jobContentLinks)) {
+            return restore(job, lane, root, jobContent != null ? jobContent : content);
+        }
+    }
+
+    private RestoreReport restore(RestoreJob job, BandwidthLimiter.Lane lane, Path root, ContentStore content)
+            throws IOException, InterruptedException {
+        if (job.getScope() != null) return restoreScope(job, lane, root, content);
+        Path planFile = root.resolve(RestorePlan.FILE_NAME);
+        if (Files.exists(planFile)) {
+            boolean stale = false;
+            try (RestorePlan.Reader plan = RestorePlan.open(planFile)) {
+                if (plan.getToDate().equals(job.getToDate())) {
+                    String token = MetadataCache.startPageToken(job.getService(), job.getScheduler(),
+                            job.getTeamDriveId());
+                    if (token.equals(plan.getPageToken())) {
+                        try (RestoreJournal journal = RestoreJournal.open(root.resolve(RestoreJournal.FILE_NAME),
+                                job.getToDate())) {
+                            return engine(job, lane, content).restore(plan, journal);
+                        }
+                    }
+                    stale = true;
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (stale) {
+                // Диск изменился после составления плана - восстанавливаем по актуальному снимку
+                Files.delete(planFile);
+                RestoreReport report = restoreSnapshot(job, lane, root, content);
+                report.warn(null, planFile.toString(), "plan", "Drive changed since the plan was made, restored"
+                        + " from a fresh snapshot");
+                return report;
+            }
+        }
+        return restoreSnapshot(job, lane, root, content);
+    }
+
+    private RestoreReport restoreSnapshot(RestoreJob job, BandwidthLimiter.Lane lane, Path root, ContentStore content)
+            throws IOException, InterruptedException {
+        try (MetadataCache metadata = Quickstart.loadMetadata(job.getService(), job.getScheduler(), root,
+                job.getTeamDriveId())) {
+            DirectoryIndex dirs = directoryIndex(job, metadata);
+            Quickstart.createDirsInRoot(dirs, writes);
+            if (metrics != null) metrics.plan(metadata.getFileCount(), metadata.getFileBytes());
+            try (RestoreJournal journal = RestoreJournal.open(root.resolve(RestoreJournal.FILE_NAME),
+                    job.getToDate());
+                 RevisionResolver revisions = RevisionResolver.open(job.getService(), job.getScheduler(),
+                         root.resolve(RevisionResolver.FILE_NAME))) {
+                RestoreEngine engine = engine(job, lane, content);
+                engine.setRevisionResolver(revisions);
+                return warnOrphans(engine.restore(metadata.files(), dirs, job.getToDate(), journal), job, metadata);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private RestoreReport restoreScope(RestoreJob job, BandwidthLimiter.Lane lane, Path root, ContentStore content)
+            throws IOException, InterruptedException {
+        SubtreeCrawler crawler = new SubtreeCrawler(job.getService(), job.getScheduler(), workersPerJob)
+                .teamDrive(job.getTeamDriveId()).setMetrics(metrics).setWriteScheduler(writes);
+        // Файлы восстанавливаются по мере обхода уровней
+        SubtreeCrawler.Result subtree = crawler.crawl(job.getScope(), job.getRootPath());
+        try (RestoreJournal journal = RestoreJournal.open(root.resolve(RestoreJournal.FILE_NAME), job.getToDate());
+             RevisionResolver revisions = RevisionResolver.open(job.getService(), job.getScheduler(),
+                     root.resolve(RevisionResolver.FILE_NAME))) {
+            RestoreEngine engine = engine(job, lane, content);
+            engine.setRevisionResolver(revisions);
+            RestoreReport report = engine.restore(subtree.files(), subtree.getDirectories(), job.getToDate(),
+                    journal);
+            subtree.await();
+            for (String missing : subtree.getMissing()) {
+                report.failed(null, missing, "scope", "Folder not found");
+            }
+            return report;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            subtree.cancel();
+        }
+    }
+
+    /**
+     * @return индекс каталогов снимка metadata с корнем в каталоге задания job
+     */
+    private static DirectoryIndex directoryIndex(RestoreJob job, MetadataCache metadata) {
+        return metadata.getDirectoryIndex(job.getRootPath());
+    }
+
+    /**
+     * Добавляет в отчет report предупреждение о каталогах снимка metadata, перенесенных в
+     * {@link DirectoryTreeBuilder#ORPHANED_DIR} каталога задания job.
+     * @return report
+     */
+    private static RestoreReport warnOrphans(RestoreReport report, RestoreJob job, MetadataCache metadata) {
+        MetadataStore store = metadata.getStore();
+        if (store.getOrphans() > 0 || store.getCycles() > 0) {
+            report.warn(null, Paths.get(job.getRootPath(), DirectoryTreeBuilder.ORPHANED_DIR).toString(), "tree",
+                    store.getOrphans() + " orphaned, " + store.getCycles() + " cyclic dirs");
+        }
+        return report;
+    }
+
+    /**
+     * @return движок восстановления задания job с общими настройками; lane - полоса загрузки или null,
+     * content - хранилище содержимого задания или null
+     */
+    private RestoreEngine engine(RestoreJob job, BandwidthLimiter.Lane lane, ContentStore content) {
+        RestoreEngine engine = new RestoreEngine(job.getService(), job.getScheduler(), workersPerJob);
+        engine.setContentStore(content);
+        engine.setSlots(slots.lane(job.getName()));
+        if (metrics != null) engine.setMetrics(metrics, job.getName());
+        ChunkedDownloader downloader = new ChunkedDownloader(job.getService(), job.getScheduler(), chunkSize,
+                ChunkedDownloader.DEFAULT_PARALLEL_THRESHOLD, ranges);
+        downloader.setBandwidth(lane);
+        downloader.setWriteScheduler(writes);
+        engine.setDownloader(downloader);
+        engine.setWriteScheduler(writes);
+        engine.setExporter(new Exporter(job.getService(), job.getScheduler(), exportFormats), exportWorkers);
+        return engine;
+    }
+}
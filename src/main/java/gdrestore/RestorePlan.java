@@ -0,0 +1,412 @@
+package gdrestore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * План восстановления на дату: для каждого файла - выбранная ревизия, размер, md5 и пути, в которые он
+ * будет восстановлен. План строится без загрузки содержимого ({@link RestoreEngine#plan}), позволяет
+ * заранее оценить объем и место на диске и затем выполняется без повторного получения списков файлов и
+ * ревизий ({@link RestoreEngine#restore(RestorePlan.Reader, RestoreJournal)}). В заголовке плана хранится
+ * позиция журнала изменений диска (pageToken), по которой план проверяется перед выполнением.
+ * <p>
+ * Формат - сжатый gzip поток записей, читается и пишется потоково:
+ * <pre>
+ * MAGIC, VERSION, cutoff, pageToken
+ * DIR path                                        - каталог, далее упоминается по номеру
+ * FILE id name mimeType revisionId md5 size exportLink flags n dir1..dirN
+ * END files bytes diskBytes collisions
+ * </pre>
+ * Пути каталогов хранятся один раз, поэтому план миллиона файлов занимает десятки мегабайт.
+ */
+public class RestorePlan {
+
+    /** Имя файла плана в корневом каталоге восстановления. */
+    public static final String FILE_NAME = ".gdrestore-plan";
+
+    private static final int MAGIC = 0x47445250;
+    private static final int VERSION = 2;
+    private static final byte DIR = 1;
+    private static final byte FILE = 2;
+    private static final byte END = 0;
+    private static final int COLLISION = 1;
+
+    /**
+     * Файл плана.
+     */
+    public static class Entry {
+        private final String fileId;
+        private String name;
+        private final String mimeType;
+        private final String revisionId;
+        private final String md5;
+        private final long size;
+        private final List<String> dirs;
+        private String exportLink;
+        private boolean collision;
+
+        /**
+         * @param name имя восстановленного файла (с расширением формата выгрузки)
+         * @param md5 md5 ревизии или null
+         * @param size размер ревизии или -1 если неизвестен
+         * @param dirs каталоги, в которые восстанавливается файл (первый - основной)
+         */
+        public Entry(String fileId, String name, String mimeType, String revisionId, String md5, long size,
+                     List<String> dirs) {
+            this.fileId = fileId;
+            this.name = name;
+            this.mimeType = mimeType;
+            this.revisionId = revisionId;
+            this.md5 = md5;
+            this.size = size;
+            this.dirs = dirs;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public String getRevisionId() {
+            return revisionId;
+        }
+
+        /** @return md5 ревизии или null если неизвестна (Google Документы) */
+        public String getMd5() {
+            return md5;
+        }
+
+        /** @return размер ревизии или -1 если неизвестен */
+        public long getSize() {
+            return size;
+        }
+
+        public List<String> getDirs() {
+            return dirs;
+        }
+
+        /** @return ссылка на выгрузку ревизии файла Google Документов в формат плана или null */
+        public String getExportLink() {
+            return exportLink;
+        }
+
+        public Entry setExportLink(String exportLink) {
+            this.exportLink = exportLink;
+            return this;
+        }
+
+        /**
+         * @return true если один из путей файла занят другим файлом плана; такой файл восстанавливается под
+         * уникальным именем (см. {@link Writer#add})
+         */
+        public boolean isCollision() {
+            return collision;
+        }
+
+        @Override
+        public String toString() {
+            return dirs.get(0) + name + " (" + fileId + "/" + revisionId + ", " + size + " bytes)";
+        }
+    }
+
+    /**
+     * Итоги плана.
+     */
+    public static class Summary {
+        private long files;
+        private long bytes;
+        private long diskBytes;
+        private long collisions;
+
+        /** @return количество файлов в плане */
+        public long getFiles() {
+            return files;
+        }
+
+        /** @return объем загрузки (известные размеры ревизий) */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** @return место на диске с учетом копий для нескольких родителей */
+        public long getDiskBytes() {
+            return diskBytes;
+        }
+
+        /** @return количество файлов, путь которых совпадал с путем другого файла (переименованных) */
+        public long getCollisions() {
+            return collisions;
+        }
+
+        @Override
+        public String toString() {
+            return "Planned " + files + " files, " + bytes + " bytes to download, " + diskBytes
+                    + " bytes on disk, " + collisions + " path collisions";
+        }
+    }
+
+    /**
+     * Запись плана. Методы потокобезопасны; план записывается во временный файл и переименовывается в
+     * {@link #commit}, поэтому незавершенный план не виден. Закрытие без commit удаляет временный файл.
+     */
+    public static class Writer implements Closeable {
+        private final Path file;
+        private final Path tmp;
+        private final DataOutputStream out;
+        private final Map<String, Integer> dirs = new HashMap<>();
+        /** Занятые пути: номер каталога и имя - id файла. */
+        private final Map<String, String> targets = new HashMap<>();
+        private final Summary summary = new Summary();
+        private boolean closed;
+
+        private Writer(Path file, LocalDateTime toDate, String pageToken) throws IOException {
+            this.file = file;
+            this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                    Files.newOutputStream(tmp), 64 * 1024)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(toDate.toString());
+            out.writeUTF(pageToken == null ? "" : pageToken);
+        }
+
+        /**
+         * Добавляет файл в план. Файл, путь которого уже занят другим файлом, отмечается как коллизия и
+         * получает уникальное имя "имя (id).расширение" во всех своих каталогах.
+         */
+        public synchronized void add(Entry entry) throws IOException {
+            int[] indices = new int[entry.dirs.size()];
+            for (int i = 0; i < indices.length; i++) {
+                Integer index = dirs.get(entry.dirs.get(i));
+                if (index == null) {
+                    index = dirs.size();
+                    dirs.put(entry.dirs.get(i), index);
+                    out.writeByte(DIR);
+                    out.writeUTF(entry.dirs.get(i));
+                }
+                indices[i] = index;
+                String other = targets.get(index + "/" + entry.name);
+                if (other != null && !other.equals(entry.fileId)) entry.collision = true;
+            }
+            if (entry.collision) entry.name = RestoreEngine.uniqueName(entry.name, entry.fileId);
+            for (int index : indices) targets.putIfAbsent(index + "/" + entry.name, entry.fileId);
+            out.writeByte(FILE);
+            out.writeUTF(entry.fileId);
+            out.writeUTF(entry.name);
+            out.writeUTF(entry.mimeType == null ? "" : entry.mimeType);
+            out.writeUTF(entry.revisionId);
+            out.writeUTF(entry.md5 == null ? "" : entry.md5);
+            out.writeLong(entry.size);
+            out.writeUTF(entry.exportLink == null ? "" : entry.exportLink);
+            out.writeByte(entry.collision ? COLLISION : 0);
+            out.writeInt(indices.length);
+            for (int index : indices) out.writeInt(index);
+
+            summary.files++;
+            if (entry.size > 0) {
+                summary.bytes += entry.size;
+                summary.diskBytes += entry.size * indices.length;
+            }
+            if (entry.collision) summary.collisions++;
+        }
+
+        /** @return итоги записанной части плана */
+        public synchronized Summary getSummary() {
+            return summary;
+        }
+
+        /**
+         * Завершает план и заменяет им файл плана.
+         */
+        public synchronized void commit() throws IOException {
+            out.writeByte(END);
+            out.writeLong(summary.files);
+            out.writeLong(summary.bytes);
+            out.writeLong(summary.diskBytes);
+            out.writeLong(summary.collisions);
+            out.close();
+            closed = true;
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            out.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Потоковое чтение плана: файлы в порядке записи, итоги - после последнего файла.
+     */
+    public static class Reader implements Iterator<Entry>, Closeable {
+        private final DataInputStream in;
+        private final LocalDateTime toDate;
+        private final String pageToken;
+        private final List<String> dirs = new ArrayList<>();
+        private Entry next;
+        private Summary summary;
+
+        private Reader(Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                    Files.newInputStream(file), 64 * 1024)));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Not a restore plan: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION && version != 1) {
+                in.close();
+                throw new IOException("Unsupported restore plan version: " + file);
+            }
+            this.toDate = LocalDateTime.parse(in.readUTF());
+            String token = version == 1 ? "" : in.readUTF();
+            this.pageToken = token.isEmpty() ? null : token;
+        }
+
+        /** @return дата на которую составлен план */
+        public LocalDateTime getToDate() {
+            return toDate;
+        }
+
+        /** @return позиция журнала изменений диска на момент составления плана или null если неизвестна */
+        public String getPageToken() {
+            return pageToken;
+        }
+
+        /** @return итоги плана; доступны после чтения всех файлов */
+        public Summary getSummary() {
+            if (summary == null) throw new IllegalStateException("Plan is not read to the end");
+            return summary;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && summary == null) {
+                try {
+                    next = read();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Entry result = next;
+            next = null;
+            return result;
+        }
+
+        private Entry read() throws IOException {
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    if (type == DIR) {
+                        dirs.add(in.readUTF());
+                    } else if (type == FILE) {
+                        String fileId = in.readUTF();
+                        String name = in.readUTF();
+                        String mimeType = in.readUTF();
+                        String revisionId = in.readUTF();
+                        String md5 = in.readUTF();
+                        long size = in.readLong();
+                        String exportLink = in.readUTF();
+                        boolean collision = (in.readByte() & COLLISION) != 0;
+                        int n = in.readInt();
+                        List<String> paths = new ArrayList<>(n);
+                        for (int i = 0; i < n; i++) paths.add(dirs.get(in.readInt()));
+                        Entry entry = new Entry(fileId, name, mimeType.isEmpty() ? null : mimeType, revisionId,
+                                md5.isEmpty() ? null : md5, size, Collections.unmodifiableList(paths));
+                        entry.exportLink = exportLink.isEmpty() ? null : exportLink;
+                        entry.collision = collision;
+                        return entry;
+                    } else if (type == END) {
+                        summary = new Summary();
+                        summary.files = in.readLong();
+                        summary.bytes = in.readLong();
+                        summary.diskBytes = in.readLong();
+                        summary.collisions = in.readLong();
+                        return null;
+                    } else {
+                        throw new IOException("Corrupted restore plan: record type " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                throw new IOException("Restore plan is truncated", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private RestorePlan() {
+    }
+
+    /**
+     * Создает план на дату toDate в файле file (существующий заменяется в {@link Writer#commit}).
+     */
+    public static Writer create(Path file, LocalDateTime toDate) throws IOException {
+        return create(file, toDate, null);
+    }
+
+    /**
+     * Создает план на дату toDate по состоянию диска pageToken (см. {@link MetadataCache#getPageToken}).
+     */
+    public static Writer create(Path file, LocalDateTime toDate, String pageToken) throws IOException {
+        return new Writer(file, toDate, pageToken);
+    }
+
+    /**
+     * Открывает план из файла file для чтения.
+     */
+    public static Reader open(Path file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * Читает план из файла file до конца.
+     * @return итоги плана
+     */
+    public static Summary summary(Path file) throws IOException {
+        try (Reader reader = open(file)) {
+            while (reader.hasNext()) reader.next();
+            return reader.getSummary();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
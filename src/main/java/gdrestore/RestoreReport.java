@@ -0,0 +1,110 @@
+package gdrestore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Итог работы {@link RestoreEngine}: счетчики загруженных/пропущенных файлов и список ошибок по файлам.
+ * Все методы потокобезопасны - отчет заполняется одновременно из всех рабочих потоков.
+ */
+public class RestoreReport {
+
+    /**
+     * Ошибка обработки одного файла: на каком этапе и по какой причине файл не был восстановлен.
+     */
+    public static class Failure {
+        private final String fileId;
+        private final String path;
+        private final String stage;
+        private final String message;
+
+        public Failure(String fileId, String path, String stage, String message) {
+            this.fileId = fileId;
+            this.path = path;
+            this.stage = stage;
+            this.message = message;
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return stage + " " + fileId + " " + path + ": " + message;
+        }
+    }
+
+    private final AtomicInteger downloaded = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger reused = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Failure> warnings = new ConcurrentLinkedQueue<>();
+
+    public void downloaded() {
+        downloaded.incrementAndGet();
+    }
+
+    public void skipped() {
+        skipped.incrementAndGet();
+    }
+
+    /**
+     * Файл восстановлен без загрузки: его содержимое уже было в {@link ContentStore}.
+     */
+    public void reused() {
+        reused.incrementAndGet();
+    }
+
+    public void failed(String fileId, String path, String stage, String message) {
+        failures.add(new Failure(fileId, path, stage, message));
+    }
+
+    /**
+     * Файл восстановлен, но не так как ожидалось (например, в корень вместо неизвестного родителя).
+     */
+    public void warn(String fileId, String path, String stage, String message) {
+        warnings.add(new Failure(fileId, path, stage, message));
+    }
+
+    public int getDownloaded() {
+        return downloaded.get();
+    }
+
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public int getReused() {
+        return reused.get();
+    }
+
+    public List<Failure> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    public List<Failure> getWarnings() {
+        return new ArrayList<>(warnings);
+    }
+
+    @Override
+    public String toString() {
+        return "Downloaded " + downloaded.get() + ", reused " + reused.get() + ", skipped " + skipped.get()
+                + ", failed " + failures.size()
+                + ", warnings " + warnings.size();
+    }
+}
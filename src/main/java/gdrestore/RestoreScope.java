@@ -0,0 +1,128 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Часть диска для восстановления ({@link RestoreJob#setScope}): папки, заданные идентификаторами или путями
+ * от корня диска, со всеми вложенными папками и файлами, и порядок восстановления файлов. Восстанавливаются
+ * только эти поддеревья (см. {@link SubtreeCrawler}), каждое - по своему пути от корня диска, поэтому
+ * после инцидента важные папки восстанавливаются за минуты, не дожидаясь всего диска.
+ * <p>
+ * Порядок: сначала файлы по приоритетным путям ({@link #prioritize}, в порядке списка), внутри каждой группы -
+ * по {@link Order}.
+ */
+public class RestoreScope {
+
+    /**
+     * Порядок восстановления файлов.
+     */
+    public enum Order {
+        /** В порядке получения списка. */
+        LISTING,
+        /** Сначала измененные последними. */
+        RECENT,
+        /** Сначала меньшие (Google Документы, размер которых неизвестен, - последними). */
+        SMALLEST
+    }
+
+    private final List<String> folderIds = new ArrayList<>();
+    private final List<String> paths = new ArrayList<>();
+    private final List<String> priorityPaths = new ArrayList<>();
+    private Order order = Order.LISTING;
+
+    /** Восстанавливать папку с идентификатором folderId. */
+    public RestoreScope folder(String folderId) {
+        folderIds.add(folderId);
+        return this;
+    }
+
+    /**
+     * Восстанавливать папку по пути path от корня диска, например "Проекты/Альфа" (все папки с таким путем).
+     */
+    public RestoreScope path(String path) {
+        paths.add(normalize(path));
+        return this;
+    }
+
+    /** Порядок восстановления файлов внутри групп приоритета. */
+    public RestoreScope order(Order order) {
+        this.order = order;
+        return this;
+    }
+
+    /**
+     * Восстанавливать в первую очередь файлы по путям paths от корня диска (в порядке списка).
+     */
+    public RestoreScope prioritize(List<String> paths) {
+        for (String path : paths) priorityPaths.add(normalize(path));
+        return this;
+    }
+
+    public List<String> getFolderIds() {
+        return Collections.unmodifiableList(folderIds);
+    }
+
+    /** @return пути папок от корня диска без начального и завершающего '/' */
+    public List<String> getPaths() {
+        return Collections.unmodifiableList(paths);
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    /**
+     * @param dirs индекс каталогов восстанавливаемых поддеревьев
+     * @return порядок восстановления файлов
+     */
+    public Comparator<File> comparator(DirectoryIndex dirs) {
+        Comparator<File> result = Comparator.comparingInt((File f) -> rank(f, dirs));
+        switch (order) {
+            case RECENT:
+                return result.thenComparing((File f) -> f.getModifiedTime() == null ? Long.MIN_VALUE
+                        : f.getModifiedTime().getValue(), Comparator.<Long>reverseOrder());
+            case SMALLEST:
+                return result.thenComparingLong((File f) -> f.getSize() == null ? Long.MAX_VALUE : f.getSize());
+            default:
+                return result;
+        }
+    }
+
+    /** @return номер первого приоритетного пути, под которым находится файл f, или количество путей */
+    private int rank(File f, DirectoryIndex dirs) {
+        if (priorityPaths.isEmpty()) return 0;
+        List<String> resolved = dirs.resolve(f);
+        int rank = priorityPaths.size();
+        for (String dir : resolved) {
+            String path = dir.substring(dirs.getRootPath().length()) + f.getName();
+            for (int i = 0; i < rank; i++) {
+                String prefix = priorityPaths.get(i);
+                if (path.equals(prefix) || path.startsWith(prefix + '/')) {
+                    rank = i;
+                    break;
+                }
+            }
+        }
+        return rank;
+    }
+
+    private static String normalize(String path) {
+        String result = path.trim();
+        while (result.startsWith("/")) result = result.substring(1);
+        while (result.endsWith("/")) result = result.substring(0, result.length() - 1);
+        if (result.isEmpty()) throw new IllegalArgumentException("Empty path");
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>(folderIds);
+        parts.addAll(paths);
+        return "Scope " + parts + ", order " + order + (priorityPaths.isEmpty() ? "" : ", first " + priorityPaths);
+    }
+}
@@ -0,0 +1,195 @@
+package gdrestore;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Revision;
+import com.google.api.services.drive.model.RevisionList;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Выбор ревизии файла на дату. Список ревизий запрашивается полностью (по nextPageToken), ревизии
+ * сравниваются по времени в миллисекундах без преобразования в строку и обратно.
+ * <p>
+ * Выбранная ревизия запоминается для пары (fileId, дата), в том числе отсутствие подходящей ревизии.
+ * Открытый через {@link #open} кеш дописывается в файл и используется повторными запусками
+ * (восстановление, пробные запуски) без запросов к GoogleDrive. Кеш не отслеживает удаление ревизий.
+ */
+public class RevisionResolver implements Closeable {
+
+    /** Имя файла кеша в корневом каталоге восстановления. */
+    public static final String FILE_NAME = ".gdrestore-revisions";
+
+    /** Максимальный размер страницы для revisions().list. */
+    public static final int PAGE_SIZE = 1000;
+
+    /** Ревизия отсутствует: все ревизии файла созданы не раньше даты. */
+    private static final Revision NONE = new Revision();
+
+    private final Drive service;
+    private final RequestScheduler scheduler;
+    private final Map<String, Revision> cache = new ConcurrentHashMap<>();
+    private final BufferedWriter writer;
+
+    /**
+     * Создает кеш в памяти (без файла).
+     */
+    public RevisionResolver(Drive service, RequestScheduler scheduler) {
+        this(service, scheduler, null);
+    }
+
+    private RevisionResolver(Drive service, RequestScheduler scheduler, BufferedWriter writer) {
+        this.service = service;
+        this.scheduler = scheduler;
+        this.writer = writer;
+    }
+
+    /**
+     * Открывает кеш file, загружая результаты предыдущих запусков.
+     */
+    public static RevisionResolver open(Drive service, RequestScheduler scheduler, Path file) throws IOException {
+        RevisionResolver previous = new RevisionResolver(service, scheduler);
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) previous.apply(line);
+            }
+        }
+        RevisionResolver resolver = new RevisionResolver(service, scheduler, Files.newBufferedWriter(file,
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        resolver.cache.putAll(previous.cache);
+        return resolver;
+    }
+
+    /** @return дата toDate (без часового пояса, как UTC) в миллисекундах */
+    public static long toEpochMillis(LocalDateTime toDate) {
+        return toDate.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * Из ревизий revs выбирает самую позднюю, созданную раньше cutoffMillis (при равном времени - первую).
+     * @return ревизия или null если такой нет
+     */
+    public static Revision select(List<Revision> revs, long cutoffMillis) {
+        if (revs == null) return null;
+        Revision result = null;
+        long last = Long.MIN_VALUE;
+        for (Revision r : revs) {
+            long time = r.getModifiedTime().getValue();
+            if (time < cutoffMillis && time > last) {
+                last = time;
+                result = r;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Возвращает ревизию файла fileId на дату toDate: из кеша или запросив все ревизии файла.
+     * @return ревизия или null если ревизии до даты нет
+     */
+    public Revision resolve(String fileId, LocalDateTime toDate) throws IOException {
+        long cutoff = toEpochMillis(toDate);
+        Revision cached = cache.get(key(fileId, cutoff));
+        if (cached != null) return cached == NONE ? null : cached;
+        Revision result = select(list(fileId), cutoff);
+        put(fileId, toDate, result);
+        return result;
+    }
+
+    /**
+     * Возвращает закешированный выбор для (fileId, toDate).
+     * @return ревизия; null если выбор не закеширован (см. {@link #isCached})
+     */
+    public Revision get(String fileId, LocalDateTime toDate) {
+        Revision cached = cache.get(key(fileId, toEpochMillis(toDate)));
+        return cached == NONE ? null : cached;
+    }
+
+    /** @return true если выбор для (fileId, toDate) уже известен (в том числе отсутствие ревизии) */
+    public boolean isCached(String fileId, LocalDateTime toDate) {
+        return cache.containsKey(key(fileId, toEpochMillis(toDate)));
+    }
+
+    /**
+     * Запоминает выбор revision (null - ревизии нет) сделанный вне resolver-а, например по списку
+     * полученному пакетным запросом.
+     */
+    public void put(String fileId, LocalDateTime toDate, Revision revision) throws IOException {
+        long cutoff = toEpochMillis(toDate);
+        cache.put(key(fileId, cutoff), revision == null ? NONE : revision);
+        if (writer == null) return;
+        String line = revision == null ? fileId + "\t" + cutoff + "\t\t0\t-1\t\t"
+                : fileId + "\t" + cutoff + "\t" + revision.getId()
+                + "\t" + revision.getModifiedTime().getValue()
+                + "\t" + (revision.getSize() == null ? -1 : revision.getSize())
+                + "\t" + (revision.getMd5Checksum() == null ? "" : revision.getMd5Checksum())
+                + "\t" + (revision.getOriginalFilename() == null ? "" : revision.getOriginalFilename());
+        synchronized (writer) {
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Запрашивает все ревизии файла fileId.
+     */
+    public List<Revision> list(String fileId) throws IOException {
+        List<Revision> result = new ArrayList<>();
+        String pageToken = null;
+        do {
+            RevisionList page = scheduler.execute(service.revisions().list(fileId)
+                    .setPageSize(PAGE_SIZE)
+                    .setPageToken(pageToken)
+                    .setFields("nextPageToken, " + Quickstart.REVISION_FIELDS));
+            if (page.getRevisions() != null) result.addAll(page.getRevisions());
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return result;
+    }
+
+    private static String key(String fileId, long cutoff) {
+        return fileId + '@' + cutoff;
+    }
+
+    private void apply(String line) {
+        String[] parts = line.split("\t", -1);
+        // Оборванная при сбое последняя строка игнорируется
+        if (parts.length != 7) return;
+        try {
+            long cutoff = Long.parseLong(parts[1]);
+            if (parts[2].isEmpty()) {
+                cache.put(key(parts[0], cutoff), NONE);
+                return;
+            }
+            Revision revision = new Revision().setId(parts[2])
+                    .setModifiedTime(new DateTime(Long.parseLong(parts[3])));
+            long size = Long.parseLong(parts[4]);
+            if (size >= 0) revision.setSize(size);
+            if (!parts[5].isEmpty()) revision.setMd5Checksum(parts[5]);
+            if (!parts[6].isEmpty()) revision.setOriginalFilename(parts[6]);
+            cache.put(key(parts[0], cutoff), revision);
+        } catch (IllegalArgumentException e) {
+            // Поврежденная строка - ревизия будет выбрана заново
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) writer.close();
+    }
+}
@@ -0,0 +1,465 @@
+package gdrestore;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Обход части диска ({@link RestoreScope}) без перечня всего диска. Корни поддеревьев определяются по
+ * идентификаторам (путь - по цепочке родителей) или по путям (поиск папок по имени на каждом уровне),
+ * затем поддеревья обходятся по уровням: потомки всех папок уровня запрашиваются запросами
+ * '&lt;id&gt;' in parents (не более {@link #PARENTS_PER_QUERY} папок в запросе), которые выполняются
+ * параллельно.
+ * <p>
+ * Пути каталогов назначаются при обходе: папка с несколькими родителями размещается под ближайшим к
+ * корню, как в {@link DirectoryTreeBuilder}, - корни поддеревьев обходятся в порядке их глубины. Несколько
+ * папок с одним путем области восстанавливаются в отдельные каталоги "Имя (id)". Файлы возвращаются в
+ * порядке восстановления области по мере обхода (см. {@link Result}).
+ */
+public class SubtreeCrawler {
+
+    /** Количество папок в одном запросе '&lt;id&gt;' in parents. */
+    public static final int PARENTS_PER_QUERY = 20;
+
+    private static final String GET_FIELDS = "id, name, mimeType, parents";
+
+    private final Drive service;
+    private final RequestScheduler scheduler;
+    private final int workers;
+    private String teamDriveId;
+    private RestoreMetrics metrics;
+    private WriteScheduler writes;
+
+    /**
+     * @param workers количество параллельных запросов уровня
+     */
+    public SubtreeCrawler(Drive service, RequestScheduler scheduler, int workers) {
+        this.service = service;
+        this.scheduler = scheduler;
+        this.workers = Math.max(1, workers);
+    }
+
+    /** Обходить общий диск (Team Drive) teamDriveId. */
+    public SubtreeCrawler teamDrive(String teamDriveId) {
+        this.teamDriveId = teamDriveId;
+        return this;
+    }
+
+    /** Учитывать полученные и найденные файлы в показателях metrics. */
+    public SubtreeCrawler setMetrics(RestoreMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /** Создавать каталоги каждого уровня через планировщик записи writes (по умолчанию не создаются). */
+    public SubtreeCrawler setWriteScheduler(WriteScheduler writes) {
+        this.writes = writes;
+        return this;
+    }
+
+    /**
+     * Результат обхода. Уровни обходятся в отдельном потоке после {@link #crawl}: каталоги уровня создаются
+     * и попадают в индекс, затем файлы уровня добавляются в очередь с приоритетом, из которой их забирает
+     * {@link #files} - восстановление начинается после первого уровня и идет одновременно с обходом.
+     */
+    public static class Result {
+        private final DirectoryIndex directories;
+        private final PriorityQueue<Entry> files;
+        private final List<String> missing;
+        // Состояние обхода, защищено this
+        private boolean done;
+        private IOException error;
+        private Thread crawler;
+        private int levels;
+        private int size;
+        private long bytes;
+        private int sequence;
+
+        private Result(DirectoryIndex directories, Comparator<File> order, List<String> missing) {
+            this.directories = directories;
+            this.files = new PriorityQueue<>((a, b) -> {
+                int c = order.compare(a.file, b.file);
+                return c != 0 ? c : Integer.compare(a.sequence, b.sequence);
+            });
+            this.missing = missing;
+        }
+
+        /** @return индекс каталогов поддеревьев (корни и все вложенные папки), пополняется при обходе */
+        public DirectoryIndex getDirectories() {
+            return directories;
+        }
+
+        /** @return количество найденных файлов (итоговое после {@link #await}) */
+        public synchronized int size() {
+            return size;
+        }
+
+        /** @return суммарный известный размер найденных файлов (итоговый после {@link #await}) */
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return файлы в порядке восстановления среди найденных к моменту выбора (равные по приоритету - в
+         * порядке обхода); перебор ждет следующего уровня и завершается с окончанием обхода, ошибка обхода
+         * выбрасывается как {@link UncheckedIOException} после перебора найденных файлов
+         */
+        public Iterator<File> files() {
+            return new Iterator<File>() {
+                @Override
+                public boolean hasNext() {
+                    synchronized (Result.this) {
+                        try {
+                            while (files.isEmpty() && !done) Result.this.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new UncheckedIOException(new InterruptedIOException("Crawl interrupted"));
+                        }
+                        if (files.isEmpty() && error != null) throw new UncheckedIOException(error);
+                        return !files.isEmpty();
+                    }
+                }
+
+                @Override
+                public File next() {
+                    synchronized (Result.this) {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return files.poll().file;
+                    }
+                }
+            };
+        }
+
+        /**
+         * Ожидает окончания обхода.
+         * @return этот результат
+         * @throws IOException ошибка обхода
+         */
+        public synchronized Result await() throws IOException, InterruptedException {
+            while (!done) wait();
+            if (error != null) throw error;
+            return this;
+        }
+
+        /** Прерывает обход (например, если восстановление завершилось ошибкой). */
+        public synchronized void cancel() {
+            if (crawler != null) crawler.interrupt();
+        }
+
+        /** @return папки области (идентификаторы и пути), которые не найдены на диске */
+        public List<String> getMissing() {
+            return missing;
+        }
+
+        /** @return количество обойденных уровней (итоговое после {@link #await}) */
+        public synchronized int getLevels() {
+            return levels;
+        }
+
+        private synchronized void level(Collection<File> found) {
+            levels++;
+            for (File f : found) {
+                files.add(new Entry(f, sequence++));
+                bytes += f.getSize() == null ? 0 : f.getSize();
+            }
+            size += found.size();
+            notifyAll();
+        }
+
+        private synchronized void finish(IOException e) {
+            error = e;
+            done = true;
+            notifyAll();
+        }
+    }
+
+    /** Файл с номером в порядке обхода. */
+    private static final class Entry {
+        private final File file;
+        private final int sequence;
+
+        private Entry(File file, int sequence) {
+            this.file = file;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Определяет корни поддеревьев области scope и начинает их обход (см. {@link Result}).
+     * @param rootPath каталог восстановления диска (с завершающим '/')
+     */
+    public Result crawl(RestoreScope scope, String rootPath) throws IOException, InterruptedException {
+        String rootId = teamDriveId != null ? teamDriveId
+                : scheduler.execute(service.files().get("root").setFields("id")).getId();
+        List<String> missing = new ArrayList<>();
+        Map<String, String> roots = new LinkedHashMap<>();
+        for (String folderId : scope.getFolderIds()) {
+            String path = folderPath(folderId, rootId, rootPath);
+            if (path == null) {
+                missing.add(folderId);
+            } else {
+                roots.putIfAbsent(folderId, path);
+            }
+        }
+        for (String path : scope.getPaths()) {
+            List<String> ids = resolvePath(path, rootId);
+            if (ids.isEmpty()) missing.add(path);
+            for (int i = 0; i < ids.size(); i++) {
+                // Одноименные папки с одним путем восстанавливаются в отдельные каталоги
+                roots.putIfAbsent(ids.get(i), rootPath + path + (i == 0 ? "" : " (" + ids.get(i) + ")") + '/');
+            }
+        }
+
+        Directory root = new Directory();
+        root.setPath(rootPath);
+        if (roots.containsKey(rootId)) root.setFile(new File().setId(rootId));
+        DirectoryIndex index = new DirectoryIndex(root);
+        Result result = new Result(index, scope.comparator(index), missing);
+        List<Map.Entry<String, String>> pending = new ArrayList<>(roots.entrySet());
+        Thread crawler = Pipeline.start("restore-subtree-crawl", 1, () -> {
+            IOException error = null;
+            try {
+                crawlLevels(pending, rootId, result);
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("Crawl interrupted");
+                throw e;
+            } finally {
+                result.finish(error);
+            }
+        }).get(0);
+        synchronized (result) {
+            result.crawler = crawler;
+        }
+        return result;
+    }
+
+    /**
+     * Обходит поддеревья корней pending по уровням и передает каталоги и файлы каждого уровня в result.
+     */
+    private void crawlLevels(List<Map.Entry<String, String>> pending, String rootId, Result result)
+            throws IOException, InterruptedException {
+        // Уровни обхода соответствуют глубине от корня диска: корень поддерева добавляется на уровне своей
+        // глубины, поэтому папка достижимая из нескольких корней размещается под ближайшим к корню диска
+        pending.sort(Comparator.comparingInt(root -> depth(root.getValue())));
+        Map<String, String> pathById = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        List<String> level = new ArrayList<>();
+        int depth = 0;
+        for (int r = 0; r < pending.size() || !level.isEmpty(); depth++) {
+            if (level.isEmpty()) depth = Math.max(depth, depth(pending.get(r).getValue()));
+            List<Directory> dirs = new ArrayList<>();
+            for (; r < pending.size() && depth(pending.get(r).getValue()) <= depth; r++) {
+                Map.Entry<String, String> root = pending.get(r);
+                if (pathById.putIfAbsent(root.getKey(), root.getValue()) != null) continue;
+                if (!root.getKey().equals(rootId)) {
+                    dirs.add(directory(new File().setId(root.getKey()), root.getValue()));
+                }
+                level.add(root.getKey());
+            }
+            if (level.isEmpty()) continue;
+            List<String> next = new ArrayList<>();
+            List<File> files = new ArrayList<>();
+            for (List<File> children : listChildren(level)) {
+                for (File f : children) {
+                    if (!MetadataCache.FOLDER_MIME_TYPE.equals(f.getMimeType())) {
+                        if (seen.add(f.getId())) files.add(f);
+                    } else if (!pathById.containsKey(f.getId())) {
+                        String path = parentPath(f, pathById) + f.getName() + '/';
+                        pathById.put(f.getId(), path);
+                        dirs.add(directory(f, path));
+                        next.add(f.getId());
+                    }
+                }
+            }
+            // Каталоги создаются до того, как файлы уровня станут доступны для восстановления
+            if (writes != null) {
+                List<Path> paths = new ArrayList<>(dirs.size());
+                for (Directory d : dirs) paths.add(Paths.get(d.getPath()));
+                writes.createDirectories(paths);
+            }
+            for (Directory d : dirs) result.directories.add(d);
+            if (metrics != null) {
+                long bytes = 0;
+                for (File f : files) bytes += f.getSize() == null ? 0 : f.getSize();
+                metrics.plan(files.size(), bytes);
+            }
+            result.level(files);
+            level = next;
+        }
+    }
+
+    /**
+     * @return локальный путь папки folderId по кратчайшей цепочке ее родителей (через родителей ближайших к
+     * корню, как в {@link DirectoryTreeBuilder}) или null если папка не найдена; папка вне диска (например,
+     * доступная по ссылке) размещается в {@link DirectoryTreeBuilder#ORPHANED_DIR}
+     */
+    private String folderPath(String folderId, String rootId, String rootPath) throws IOException {
+        if (folderId.equals(rootId)) return rootPath;
+        File folder = find(folderId);
+        if (folder == null) return null;
+        if (!MetadataCache.FOLDER_MIME_TYPE.equals(folder.getMimeType())) {
+            throw new IOException("Not a folder: " + folderId);
+        }
+        // Предки обходятся в ширину, первый найденный путь до корня - кратчайший. Для предка запоминается
+        // потомок, через которого он найден
+        Map<String, File> ancestors = new HashMap<>();
+        Map<String, String> childOf = new HashMap<>();
+        ancestors.put(folderId, folder);
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(folderId);
+        while (!queue.isEmpty()) {
+            String id = queue.poll();
+            File f = ancestors.get(id);
+            if (f == null || f.getParents() == null) continue;
+            for (String parent : f.getParents()) {
+                if (parent.equals(rootId)) {
+                    StringBuilder path = new StringBuilder(rootPath);
+                    for (String c = id; c != null; c = childOf.get(c)) {
+                        path.append(ancestors.get(c).getName()).append('/');
+                    }
+                    return path.toString();
+                }
+                if (!ancestors.containsKey(parent)) {
+                    ancestors.put(parent, find(parent));
+                    childOf.put(parent, id);
+                    queue.add(parent);
+                }
+            }
+        }
+
+        // Корень недостижим - папка размещается по цепочке первых родителей до отсутствующего или цикла
+        List<String> names = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        String current = folderId;
+        File f = folder;
+        while (f != null && f.getParents() != null && !f.getParents().isEmpty() && visited.add(current)) {
+            names.add(f.getName() + '/');
+            current = f.getParents().get(0);
+            f = ancestors.get(current);
+        }
+        Collections.reverse(names);
+        return rootPath + DirectoryTreeBuilder.ORPHANED_DIR + String.join("", names);
+    }
+
+    /** @return идентификаторы всех папок с путем path от корня диска */
+    private List<String> resolvePath(String path, String rootId) throws IOException, InterruptedException {
+        List<String> current = Collections.singletonList(rootId);
+        for (String name : path.split("/")) {
+            if (name.isEmpty()) continue;
+            DriveQuery query = new DriveQuery().folders().nameIs(name);
+            List<String> found = new ArrayList<>();
+            for (List<File> children : list(query.partitionByParents(current, PARENTS_PER_QUERY))) {
+                for (File f : children) found.add(f.getId());
+            }
+            if (found.isEmpty()) return found;
+            current = found;
+        }
+        return current;
+    }
+
+    private List<List<File>> listChildren(List<String> folderIds) throws IOException, InterruptedException {
+        return list(new DriveQuery().partitionByParents(folderIds, PARENTS_PER_QUERY));
+    }
+
+    /**
+     * Выполняет запросы queries параллельно на workers потоках.
+     * @return результаты в порядке запросов
+     */
+    private List<List<File>> list(List<DriveQuery> queries) throws IOException, InterruptedException {
+        List<List<File>> results = new ArrayList<>(Collections.<List<File>>nCopies(queries.size(), null));
+        int threads = Math.min(workers, queries.size());
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queries.size() + threads);
+        for (int i = 0; i < queries.size(); i++) queue.add(i);
+        AtomicReference<IOException> error = new AtomicReference<>();
+        List<Thread> listings = Pipeline.start("restore-subtree", threads, () -> {
+            Object o;
+            while ((o = queue.take()) != Pipeline.POISON) {
+                int i = (Integer) o;
+                List<File> files = new ArrayList<>();
+                FileListing listing = new FileListing(service, scheduler, queries.get(i).build(),
+                        "files(" + MetadataCache.FIELDS + ")").teamDrive(teamDriveId);
+                if (metrics != null) listing.onPage(page -> metrics.listed(page.size()));
+                try {
+                    listing.forEachRemaining(files::add);
+                } catch (UncheckedIOException e) {
+                    error.compareAndSet(null, e.getCause());
+                }
+                synchronized (results) {
+                    results.set(i, files);
+                }
+            }
+        });
+        Pipeline.finish(queue, listings);
+        if (error.get() != null) throw error.get();
+        synchronized (results) {
+            return results;
+        }
+    }
+
+    /** @return папка или файл fileId или null если не найден */
+    private File find(String fileId) throws IOException {
+        Drive.Files.Get get = service.files().get(fileId).setFields(GET_FIELDS);
+        if (teamDriveId != null) get.setSupportsTeamDrives(true);
+        try {
+            return scheduler.execute(get);
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() != 404) throw e;
+            return null;
+        }
+    }
+
+    /** @return путь ближайшего к корню из уже размещенных родителей папки f */
+    private static String parentPath(File f, Map<String, String> pathById) {
+        String result = null;
+        for (String parent : f.getParents()) {
+            String path = pathById.get(parent);
+            if (path != null && (result == null || depth(path) < depth(result))) result = path;
+        }
+        if (result == null) {
+            throw new IllegalStateException("Folder " + f.getId() + " is listed without a known parent");
+        }
+        return result;
+    }
+
+    /** @return глубина каталога path - количество '/' */
+    private static int depth(String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') depth++;
+        }
+        return depth;
+    }
+
+    private static Directory directory(File f, String path) {
+        Directory d = new Directory();
+        d.setFile(f);
+        d.setPath(path);
+        return d;
+    }
+}
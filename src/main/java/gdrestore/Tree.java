@@ -0,0 +1,80 @@
+package gdrestore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Created by lexover on 22.05.17.
+ */
+public class Tree<T> {
+
+    private Node<T> root;
+    private int size;
+
+    public Tree(T rootData) {
+        root = new Node<T>(rootData, null);
+        size = 1;
+    }
+
+    public Node<T> getRoot() {
+        return root;
+    }
+
+    /** @return количество узлов в дереве включая корень */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Добавляет к узлу parent дочерний узел с данными data.
+     * @return созданный узел
+     */
+    public Node<T> addChild(Node<T> parent, T data) {
+        Node<T> child = new Node<T>(data, parent);
+        if (parent.children == null) parent.children = new ArrayList<Node<T>>(2);
+        parent.children.add(child);
+        size++;
+        return child;
+    }
+
+    /**
+     * Обходит дерево в ширину (без рекурсии): каждый узел посещается после своего родителя.
+     * @param visitor обработчик узлов
+     */
+    public void breadthFirst(Consumer<Node<T>> visitor) {
+        ArrayDeque<Node<T>> queue = new ArrayDeque<Node<T>>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Node<T> node = queue.poll();
+            visitor.accept(node);
+            if (node.children != null) queue.addAll(node.children);
+        }
+    }
+
+    public static class Node<T> {
+        private T data;
+        private Node<T> parent;
+        /** Создается при добавлении первого потомка - у большинства узлов (листьев) потомков нет. */
+        private List<Node<T>> children;
+
+        private Node(T data, Node<T> parent) {
+            this.data = data;
+            this.parent = parent;
+        }
+
+        public T getData() {
+            return data;
+        }
+
+        public Node<T> getParent() {
+            return parent;
+        }
+
+        public List<Node<T>> getChildren() {
+            return children == null ? Collections.<Node<T>>emptyList() : Collections.unmodifiableList(children);
+        }
+    }
+}
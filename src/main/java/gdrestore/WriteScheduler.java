@@ -0,0 +1,229 @@
+package gdrestore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Планировщик записи восстановленных файлов на локальный диск, общий для всех потоков загрузки.
+ * <p>
+ * При параллельной загрузке узким местом становится не сеть, а диск (особенно HDD и NAS): десятки потоков
+ * пишут по 64 КБ в разные файлы, и диск тратит время на перемещение головок. Поэтому:
+ * <ul>
+ *     <li>одновременно пишут не более writers потоков, остальные ждут (загрузка при этом продолжается в буфер);</li>
+ *     <li>данные пишутся крупными блоками по bufferSize байт, а не по мере получения;</li>
+ *     <li>малые файлы (не больше smallFileSize) загружаются в память и записываются целиком одной операцией;</li>
+ *     <li>файл, загружаемый параллельными диапазонами, сразу получает полную длину (см. {@link #extend});</li>
+ *     <li>скорость записи может быть ограничена (см. {@link BandwidthLimiter});</li>
+ *     <li>каталоги создаются параллельно.</li>
+ * </ul>
+ */
+public class WriteScheduler {
+
+    /** Количество одновременно пишущих потоков по умолчанию. */
+    public static final int DEFAULT_WRITERS = 4;
+
+    /** Размер блока записи по умолчанию. */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    /** Размер малого файла по умолчанию. */
+    public static final int DEFAULT_SMALL_FILE_SIZE = 1024 * 1024;
+
+    /** Наибольшее количество потоков создания каталогов. */
+    private static final int MAX_MKDIR_THREADS = 16;
+
+    /** Запись без ограничений: блоки по {@link #DEFAULT_BUFFER_SIZE}, малые файлы не буферизуются. */
+    public static final WriteScheduler UNLIMITED = new WriteScheduler(Integer.MAX_VALUE, 0, 0);
+
+    private final int writers;
+    private final Semaphore permits;
+    private final BandwidthLimiter.Lane bandwidth;
+    private final int smallFileSize;
+    private final int bufferSize;
+
+    /**
+     * @param writers количество одновременно пишущих потоков
+     * @param bytesPerSecond скорость записи; 0 - без ограничения
+     * @param smallFileSize наибольший размер файла, который загружается в память; 0 - не загружать
+     */
+    public WriteScheduler(int writers, long bytesPerSecond, int smallFileSize) {
+        this(writers, bytesPerSecond, smallFileSize, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param writers количество одновременно пишущих потоков
+     * @param bytesPerSecond скорость записи; 0 - без ограничения
+     * @param smallFileSize наибольший размер файла, который загружается в память; 0 - не загружать
+     * @param bufferSize размер блока записи
+     */
+    public WriteScheduler(int writers, long bytesPerSecond, int smallFileSize, int bufferSize) {
+        if (writers < 1 || smallFileSize < 0 || bufferSize < 1)
+            throw new IllegalArgumentException("Writers and buffer size must be positive");
+        this.writers = writers;
+        this.permits = new Semaphore(writers, true);
+        this.bandwidth = bytesPerSecond > 0 ? new BandwidthLimiter(bytesPerSecond).lane("disk") : null;
+        this.smallFileSize = smallFileSize;
+        this.bufferSize = bufferSize;
+    }
+
+    /** @return true если файл размером size загружается в память и записывается целиком */
+    public boolean isSmall(long size) {
+        return size >= 0 && size <= smallFileSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Записывает файл file целиком из length первых байт data (существующий заменяется).
+     */
+    public void write(Path file, byte[] data, int length) throws IOException {
+        acquire(length);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Записывает length первых байт data в channel со смещения position.
+     * @return количество записанных байт (length)
+     */
+    public int write(FileChannel channel, byte[] data, int length, long position) throws IOException {
+        acquire(length);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+            while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+            return length;
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Увеличивает длину файла channel до size записью одного байта в конец. Место на диске при этом не
+     * резервируется: на большинстве файловых систем файл получается разреженным, блоки выделяются по мере
+     * записи диапазонов, и нехватка места обнаруживается только при записи.
+     */
+    public void extend(FileChannel channel, long size) throws IOException {
+        if (channel.size() >= size) return;
+        acquire(0);
+        try {
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return поток записи в channel с текущей позиции блоками по bufferSize байт; close записывает
+     * остаток буфера, но не закрывает channel
+     */
+    public OutputStream open(FileChannel channel) {
+        return new ChannelOutputStream(channel);
+    }
+
+    /**
+     * Создает каталоги dirs (вместе с недостающими родителями) параллельно на writers потоках (не более 16).
+     */
+    public void createDirectories(List<Path> dirs) throws IOException {
+        int threads = Math.max(1, Math.min(Math.min(writers, MAX_MKDIR_THREADS), dirs.size()));
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(dirs.size() + threads);
+        queue.addAll(dirs);
+        AtomicReference<IOException> error = new AtomicReference<>();
+        List<Thread> workers = Pipeline.start("restore-mkdirs", threads, () -> {
+            Object o;
+            while ((o = queue.take()) != Pipeline.POISON) {
+                try {
+                    Files.createDirectories((Path) o);
+                } catch (IOException e) {
+                    error.compareAndSet(null, e);
+                } catch (UncheckedIOException e) {
+                    error.compareAndSet(null, e.getCause());
+                }
+            }
+        });
+        try {
+            Pipeline.finish(queue, workers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted creating directories");
+        }
+        if (error.get() != null) throw error.get();
+    }
+
+    private void acquire(int bytes) throws InterruptedIOException {
+        if (bandwidth != null && bytes > 0) bandwidth.acquire(bytes);
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for disk");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Disk writers " + (writers == Integer.MAX_VALUE ? "unlimited" : String.valueOf(writers))
+                + ", small files up to " + smallFileSize + " bytes";
+    }
+
+    /**
+     * Запись в FileChannel с текущей позиции блоками по bufferSize байт.
+     */
+    private class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final byte[] buffer = new byte[bufferSize];
+        private int length;
+
+        private ChannelOutputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == buffer.length) flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length == 0) return;
+            long position = channel.position();
+            WriteScheduler.this.write(channel, buffer, length, position);
+            channel.position(position + length);
+            length = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package gdrestore;
+
+import com.google.api.services.drive.Drive;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedDownloaderTest extends TestFiles {
+
+    private static final int SIZE = 100000;
+
+    private static String content() {
+        StringBuilder sb = new StringBuilder(SIZE);
+        for (int i = 0; sb.length() < SIZE; i++) sb.append(i % 10);
+        return sb.toString();
+    }
+
+    private static RequestScheduler scheduler(int maxAttempts) {
+        return new RequestScheduler(1000, 8, maxAttempts, 1, 1, (millis) -> { });
+    }
+
+    private static Drive.Revisions.Get request(FakeDrive drive) throws IOException {
+        return drive.service().revisions().get("f1", "r1");
+    }
+
+    @Test
+    void resumesChunksAfterConnectionDrop() throws Exception {
+        FakeDrive drive = new FakeDrive().file("f1", "big.bin", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", content());
+        Path part = tempDir("download").resolve("big.bin.part");
+
+        drive.dropConnection(2, 5000);
+        new ChunkedDownloader(drive.service(), scheduler(5), 16384, Long.MAX_VALUE, 1)
+                .download(request(drive), SIZE, part);
+
+        assertEquals(content(), new String(Files.readAllBytes(part), StandardCharsets.UTF_8));
+        // После обрыва запрашиваются только недостающие байты
+        assertEquals(SIZE, drive.mediaBytes());
+    }
+
+    @Test
+    void continuesExistingPartFile() throws Exception {
+        FakeDrive drive = new FakeDrive().file("f1", "big.bin", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", content());
+        Path part = tempDir("download").resolve("big.bin.part");
+        Files.write(part, Arrays.copyOf(content().getBytes(StandardCharsets.UTF_8), 40000));
+
+        new ChunkedDownloader(drive.service(), scheduler(5), 16384, Long.MAX_VALUE, 1)
+                .download(request(drive), SIZE, part);
+
+        assertEquals(content(), new String(Files.readAllBytes(part), StandardCharsets.UTF_8));
+        assertEquals(SIZE - 40000, drive.mediaBytes());
+    }
+
+    @Test
+    void downloadsRangesInParallelAndResumesThem() throws Exception {
+        FakeDrive drive = new FakeDrive().file("f1", "big.bin", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", content());
+        Path part = tempDir("download").resolve("big.bin.part");
+        Path ranges = part.resolveSibling("big.bin.part" + ChunkedDownloader.RANGES_SUFFIX);
+
+        // Первая попытка прерывается: смещения диапазонов остаются в файле .ranges
+        drive.dropConnection(1, 1000);
+        assertThrows(IOException.class, () -> new ChunkedDownloader(drive.service(), scheduler(1), 4096, 50000, 4)
+                .download(request(drive), SIZE, part));
+        assertTrue(Files.exists(ranges));
+        assertEquals(SIZE, Files.size(part));
+
+        drive.dropConnection(3, 1000);
+        new ChunkedDownloader(drive.service(), scheduler(5), 4096, 50000, 4).download(request(drive), SIZE, part);
+
+        assertEquals(content(), new String(Files.readAllBytes(part), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(ranges));
+        // Повторно передаются не больше части на каждый обрыв
+        assertTrue(drive.mediaBytes() < SIZE + 4 * 4096, "Transferred " + drive.mediaBytes());
+    }
+
+    @Test
+    void rejectsResponseIgnoringRangeAndHashesSequentialDownload() throws Exception {
+        FakeDrive drive = new FakeDrive().file("f1", "big.bin", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", content());
+        Path part = tempDir("download").resolve("big.bin.part");
+
+        // Весь файл вместо диапазона не записывается со смещения диапазона
+        drive.ignoreRange(1);
+        assertThrows(IOException.class, () -> new ChunkedDownloader(drive.service(), scheduler(5), 4096, 50000, 4)
+                .download(request(drive), SIZE, part));
+        assertNull(new ChunkedDownloader(drive.service(), scheduler(5), 4096, 50000, 4)
+                .download(request(drive), SIZE, part));
+        assertEquals(content(), new String(Files.readAllBytes(part), StandardCharsets.UTF_8));
+
+        String md5 = Checksums.hex(Checksums.md5().digest(content().getBytes(StandardCharsets.UTF_8)));
+        Files.delete(part);
+        drive.dropConnection(1, 5000);
+        assertEquals(md5, new ChunkedDownloader(drive.service(), scheduler(5), 16384, Long.MAX_VALUE, 1)
+                .download(request(drive), SIZE, part));
+    }
+}
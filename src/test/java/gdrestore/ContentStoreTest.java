@@ -0,0 +1,92 @@
+package gdrestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentStoreTest extends TestFiles {
+
+    private static final LocalDateTime DATE = LocalDateTime.of(2017, 5, 12, 0, 0);
+
+    private static RestoreReport restore(FakeDrive drive, Path root, ContentStore content) throws Exception {
+        RestoreEngine engine = new RestoreEngine(drive.service(), Quickstart.SCHEDULER, 4, 4, 2);
+        engine.setContentStore(content);
+        return engine.restore(Quickstart.getFiles(drive.service()).iterator(), drive.createTree(root),
+                DATE);
+    }
+
+    @Test
+    void downloadsDuplicateContentOnce() throws Exception {
+        FakeDrive drive = new FakeDrive().folder("d1", "docs", "root");
+        for (int i = 0; i < 20; i++) {
+            drive.file("f" + i, "copy" + i + ".txt", i % 2 == 0 ? "root" : "d1")
+                    .revision("f" + i, "r1", "2017-05-01T10:00:00.000Z", "same content");
+        }
+        drive.file("u1", "unique.txt", "d1").revision("u1", "r1", "2017-05-01T10:00:00.000Z", "unique");
+        Path root = tempDir("restore");
+        Path store = tempDir("content");
+
+        try (ContentStore content = ContentStore.open(store, true)) {
+            RestoreReport report = restore(drive, root, content);
+            assertTrue(report.getFailures().isEmpty(), report.getFailures().toString());
+            assertEquals(2, report.getDownloaded());
+            assertEquals(19, report.getReused());
+            assertEquals("same content".length() + "unique".length(), drive.mediaBytes());
+            assertEquals(2, content.size());
+        }
+        assertEquals("same content", read(root.resolve("copy0.txt")));
+        assertEquals("same content", read(root.resolve("docs/copy19.txt")));
+        assertEquals("unique", read(root.resolve("docs/unique.txt")));
+    }
+
+    @Test
+    void reusesContentFromPreviousRestore() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .file("f1", "a.txt", "root")
+                .file("f2", "b.txt", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "a-good")
+                .revision("f2", "r1", "2017-05-01T10:00:00.000Z", "b-good");
+        Path store = tempDir("content");
+        Path first = tempDir("restore");
+        try (ContentStore content = ContentStore.open(store, true)) {
+            assertEquals(2, restore(drive, first, content).getDownloaded());
+        }
+        long downloaded = drive.mediaBytes();
+
+        // Файл измененный после восстановления не используется источником содержимого
+        Files.write(first.resolve("b.txt"), "b-changed-locally".getBytes(StandardCharsets.UTF_8));
+
+        Path second = tempDir("restore");
+        try (ContentStore content = ContentStore.open(store, false)) {
+            RestoreReport report = restore(drive, second, content);
+            assertEquals(1, report.getReused());
+            assertEquals(1, report.getDownloaded());
+        }
+        assertEquals(downloaded + "b-good".length(), drive.mediaBytes());
+        assertEquals("a-good", read(second.resolve("a.txt")));
+        assertEquals("b-good", read(second.resolve("b.txt")));
+    }
+
+    @Test
+    void restoresFileWhenStoreFails() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .file("f1", "a.txt", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "a-good");
+        Path root = tempDir("restore");
+        ContentStore content = ContentStore.open(tempDir("content"), false);
+        // Индекс закрытого хранилища не дописывается - put завершается ошибкой
+        content.close();
+
+        RestoreReport report = restore(drive, root, content);
+
+        assertEquals(1, report.getDownloaded(), report.getFailures().toString());
+        assertEquals("a-good", read(root.resolve("a.txt")));
+        assertFalse(Files.exists(root.resolve("a.txt" + RestoreEngine.PART_SUFFIX)));
+        assertEquals("store", report.getWarnings().get(0).getStage());
+    }
+}
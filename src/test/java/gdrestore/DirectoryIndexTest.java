@@ -0,0 +1,37 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.File;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryIndexTest {
+
+    @Test
+    void resolvesAllParents() {
+        Directory root = new Directory();
+        root.setPath("/r/");
+        root.setFile(new File().setId("root"));
+        List<Directory> dirs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Directory d = new Directory();
+            d.setFile(new File().setId("id" + i));
+            d.setPath("/r/dir" + i + "/");
+            dirs.add(d);
+        }
+        DirectoryIndex index = new DirectoryIndex(root, dirs);
+
+        assertEquals(1000, index.size());
+        assertEquals("/r/dir999/", index.getPath("id999"));
+        assertEquals("/r/", index.getPath("root"));
+        assertNull(index.getPath("unknown"));
+        assertEquals(Arrays.asList("/r/dir1/", "/r/"),
+                index.resolve(new File().setParents(Arrays.asList("id1", "unknown", "root"))));
+        assertEquals(Collections.emptyList(), index.resolve(new File().setParents(Arrays.asList("unknown"))));
+    }
+}
@@ -0,0 +1,76 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.File;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryTreeBuilderTest {
+
+    private static File dir(String id, String... parents) {
+        return new File().setId(id).setName(id).setParents(Arrays.asList(parents));
+    }
+
+    private static Directory root() {
+        Directory root = new Directory();
+        root.setPath("/r/");
+        root.setFile(new File().setId("root"));
+        return root;
+    }
+
+    private static Map<String, String> paths(List<File> dirs) {
+        List<Directory> result = new ArrayList<>();
+        Quickstart.generateDirectoryTree(root(), dirs, result);
+        Map<String, String> paths = new HashMap<>();
+        for (Directory d : result) {
+            assertNull(paths.put(d.getFile().getId(), d.getPath()), "dir listed twice");
+        }
+        return paths;
+    }
+
+    @Test
+    void buildsPaths() {
+        Map<String, String> paths = paths(Arrays.asList(dir("c", "b"), dir("b", "a"), dir("a", "root")));
+        assertEquals("/r/a/", paths.get("a"));
+        assertEquals("/r/a/b/", paths.get("b"));
+        assertEquals("/r/a/b/c/", paths.get("c"));
+    }
+
+    @Test
+    void handlesOrphansCyclesAndMultiParent() {
+        DirectoryTreeBuilder builder = new DirectoryTreeBuilder();
+        Tree<Directory> tree = builder.build(root(), Arrays.asList(
+                dir("a", "root"), dir("b", "root"), dir("m", "b", "a"),
+                dir("o", "missing"), dir("x", "y"), dir("y", "x")));
+        Map<String, String> paths = new HashMap<>();
+        tree.breadthFirst((node) -> {
+            if (node != tree.getRoot()) paths.put(node.getData().getFile().getId(), node.getData().getPath());
+        });
+
+        assertEquals(7, tree.size());
+        assertEquals("/r/a/m/", paths.get("m"));
+        assertEquals("/r/" + DirectoryTreeBuilder.ORPHANED_DIR + "o/", paths.get("o"));
+        assertEquals("/r/" + DirectoryTreeBuilder.ORPHANED_DIR + "x/", paths.get("x"));
+        assertEquals("/r/" + DirectoryTreeBuilder.ORPHANED_DIR + "x/y/", paths.get("y"));
+        assertEquals(1, builder.getOrphans().size());
+        assertEquals(1, builder.getCycles().size());
+        assertEquals(1, builder.getMultiParent().size());
+    }
+
+    @Test
+    void deepTreeWithoutRecursion() {
+        List<File> dirs = new ArrayList<>();
+        dirs.add(dir("0", "root").setName("d"));
+        for (int i = 1; i < 5000; i++) dirs.add(dir(String.valueOf(i), String.valueOf(i - 1)).setName("d"));
+        List<Directory> result = new ArrayList<>();
+        Quickstart.generateDirectoryTree(root(), dirs, result);
+        assertEquals(5000, result.size());
+        assertEquals(3 + 2 * 5000, result.get(4999).getPath().length());
+    }
+}
@@ -0,0 +1,116 @@
+package gdrestore;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.services.drive.Drive;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DriveBatcherTest {
+
+    @Test
+    void listsRevisionsInBatchesAndRetriesFailedItems() throws IOException {
+        FakeDrive drive = new FakeDrive();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            drive.file("f" + i, "file" + i, "root")
+                    .revision("f" + i, "r1", "2017-05-01T10:00:00.000Z", "one")
+                    .revision("f" + i, "r2", "2017-05-02T10:00:00.000Z", "two");
+            ids.add("f" + i);
+        }
+        drive.failNext(7, 429);
+
+        Map<String, Integer> result = new ConcurrentHashMap<>();
+        List<GoogleJsonError> errors = new ArrayList<>();
+        DriveBatcher batcher = new DriveBatcher(drive.service(),
+                new RequestScheduler(1000, 4, 5, 1, 1, (millis) -> { }));
+        batcher.listRevisions(ids, Quickstart.REVISION_FIELDS, new DriveBatcher.Callback<DriveBatcher.RevisionPage>() {
+            @Override
+            public void onSuccess(DriveBatcher.RevisionPage page) {
+                result.put(page.getFileId(), page.getRevisions().size());
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError error) {
+                errors.add(error);
+            }
+        });
+        batcher.flush();
+
+        assertEquals(250, result.size());
+        assertEquals(Integer.valueOf(2), result.get("f249"));
+        assertTrue(errors.isEmpty());
+        assertEquals(3, drive.batches());
+        assertEquals(drive.batches(), drive.requests());
+    }
+
+    @Test
+    void resendsOnlyUnansweredPartsOfBrokenBatch() throws IOException {
+        FakeDrive drive = new FakeDrive();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            drive.file("f" + i, "file" + i, "root")
+                    .revision("f" + i, "r1", "2017-05-01T10:00:00.000Z", "one")
+                    .revision("f" + i, "r2", "2017-05-02T10:00:00.000Z", "two");
+            ids.add("f" + i);
+        }
+        drive.dropBatch(1, 2);
+
+        List<String> pages = new ArrayList<>();
+        DriveBatcher batcher = new DriveBatcher(drive.service(),
+                new RequestScheduler(1000, 4, 5, 1, 1, (millis) -> { }));
+        batcher.listRevisions(ids, Quickstart.REVISION_FIELDS, new DriveBatcher.Callback<DriveBatcher.RevisionPage>() {
+            @Override
+            public void onSuccess(DriveBatcher.RevisionPage page) {
+                pages.add(page.getFileId() + ":" + page.getRevisions().size());
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError error) {
+                fail(error.getMessage());
+            }
+        });
+        batcher.flush();
+
+        assertEquals(Arrays.asList("f0:2", "f1:2", "f2:2", "f3:2", "f4:2"), pages);
+        assertEquals(2, drive.batches());
+
+        // Ошибка обработчика прерывает выполнение без повтора пакета
+        batcher.listRevisions(ids, Quickstart.REVISION_FIELDS, new DriveBatcher.Callback<DriveBatcher.RevisionPage>() {
+            @Override
+            public void onSuccess(DriveBatcher.RevisionPage page) throws IOException {
+                throw new AccessDeniedException(page.getFileId());
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError error) {
+                fail(error.getMessage());
+            }
+        });
+        assertThrows(AccessDeniedException.class, batcher::flush);
+        assertEquals(3, drive.batches());
+    }
+
+    @Test
+    void batchesMutations() throws IOException {
+        FakeDrive drive = new FakeDrive();
+        for (int i = 0; i < 150; i++) drive.file("f" + i, "note.txt", "root");
+        drive.file("keep", "other.txt", "root");
+        Drive service = drive.service();
+
+        Quickstart.deleteFilesWithName(service, "note.txt");
+
+        assertNull(drive.getFile("f0"));
+        assertNull(drive.getFile("f149"));
+        assertNotNull(drive.getFile("keep"));
+        assertEquals(2, drive.batches());
+    }
+}
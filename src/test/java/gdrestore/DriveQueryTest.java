@@ -0,0 +1,81 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.File;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DriveQueryTest {
+
+    @Test
+    void escapesValues() throws IOException {
+        FakeDrive drive = new FakeDrive()
+                .file("f1", "it's a\\b.doc", "root")
+                .file("f2", "its a b.doc", "root")
+                .folder("d1", "it's a\\b.doc", "root");
+        DriveQuery query = new DriveQuery().files().nameIs("it's a\\b.doc");
+        assertEquals("mimeType != '" + MetadataCache.FOLDER_MIME_TYPE + "' and name = 'it\\'s a\\\\b.doc'",
+                query.build());
+
+        List<File> files = Quickstart.getAllFiles(drive.service(), query, Quickstart.FILES_FIELDS);
+        assertEquals(1, files.size());
+        assertEquals("f1", files.get(0).getId());
+        assertNull(new DriveQuery().build());
+    }
+
+    @Test
+    void filtersCandidatesOnServer() throws IOException {
+        FakeDrive drive = new FakeDrive();
+        for (int i = 0; i < 500; i++) drive.file("f" + i, "file" + i + ".doc", "root");
+        drive.file("e1", "report.doc.CTB-Locker", "root")
+                .file("e2", "old.doc.CTB-Locker", "root")
+                .file("e3", "deleted.doc.CTB-Locker", "root")
+                .modified("e1", "2016-05-01T00:00:00.000Z")
+                .modified("e2", "2016-01-01T00:00:00.000Z")
+                .modified("e3", "2016-05-01T00:00:00.000Z")
+                .trash("e3");
+
+        List<File> candidates = Quickstart.findEncryptedFiles(drive.service(),
+                Collections.singletonList(LockerRule.CTB_LOCKER));
+        assertEquals(3, candidates.size());
+        // Вместо полного перечня передаются только кандидаты
+        assertEquals(3, drive.listed());
+
+        List<File> recent = Quickstart.getAllFiles(drive.service(), new DriveQuery().files()
+                .nameContains("CTB-Locker").trashed(false)
+                .modifiedAfter(LocalDateTime.of(2016, 3, 1, 0, 0)), Quickstart.FILES_FIELDS);
+        assertEquals(1, recent.size());
+        assertEquals("e1", recent.get(0).getId());
+    }
+
+    @Test
+    void listsParentPartitionsInParallel() throws IOException {
+        FakeDrive drive = new FakeDrive();
+        List<String> parents = new ArrayList<>();
+        for (int d = 0; d < 10; d++) {
+            drive.folder("d" + d, "dir" + d, "root");
+            parents.add("d" + d);
+            for (int i = 0; i < 30; i++) drive.file("f" + d + "_" + i, "file" + i, "d" + d);
+        }
+        // Файл в двух папках из разных групп возвращается один раз
+        drive.file("shared", "shared", "d0", "d9");
+        drive.file("other", "other", "root");
+
+        List<DriveQuery> queries = new DriveQuery().files().partitionByParents(parents, 3);
+        assertEquals(4, queries.size());
+        assertTrue(queries.get(0).build().endsWith("and ('d0' in parents or 'd1' in parents or 'd2' in parents)"));
+
+        List<File> files = Quickstart.getAllFiles(drive.service(), queries, Quickstart.FILES_FIELDS);
+        assertEquals(301, files.size());
+        assertEquals(1, files.stream().filter(f -> f.getId().equals("shared")).count());
+        assertTrue(files.stream().noneMatch(f -> f.getId().equals("other")));
+        assertEquals(Arrays.asList("d0", "d9"), drive.getFile("shared").getParents());
+    }
+}
@@ -0,0 +1,66 @@
+package gdrestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExporterTest extends TestFiles {
+
+    private static final String DOCUMENT = ExportFormat.NATIVE_PREFIX + "document";
+    private static final String DOCX = ExportFormat.defaults().get(DOCUMENT).getMimeType();
+
+    private static RestoreReport restore(FakeDrive drive, Path root, ContentStore content) throws Exception {
+        RestoreEngine engine = new RestoreEngine(drive.service(), Quickstart.SCHEDULER, 2, 2, 2);
+        engine.setContentStore(content);
+        engine.setExporter(new Exporter(drive.service(), Quickstart.SCHEDULER), 1);
+        return engine.restore(Quickstart.getFiles(drive.service()).iterator(), drive.createTree(root),
+                LocalDateTime.of(2017, 5, 12, 0, 0));
+    }
+
+    @Test
+    void exportsNativeRevisions() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .folder("d1", "docs", "root")
+                .document("g1", "Plan", DOCUMENT, "d1")
+                .exportRevision("g1", "r1", "2017-05-01T10:00:00.000Z", DOCX, "plan-v1")
+                .exportRevision("g1", "r2", "2017-05-13T10:00:00.000Z", DOCX, "plan-encrypted")
+                .document("g2", "Survey", ExportFormat.NATIVE_PREFIX + "form", "d1")
+                .file("f1", "a.txt", "d1")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "a-good");
+        Path root = tempDir("restore");
+
+        RestoreReport report = restore(drive, root, null);
+
+        assertEquals(2, report.getDownloaded());
+        assertEquals("plan-v1", read(root.resolve("docs/Plan.docx")));
+        assertEquals("a-good", read(root.resolve("docs/a.txt")));
+        assertEquals(1, report.getFailures().size());
+        assertEquals("g2", report.getFailures().get(0).getFileId());
+        assertTrue(report.getFailures().get(0).getMessage().startsWith("No export format"));
+        assertEquals(1, drive.exports());
+    }
+
+    @Test
+    void reusesExportedRevisions() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .document("g1", "Plan.docx", DOCUMENT, "root")
+                .exportRevision("g1", "r1", "2017-05-01T10:00:00.000Z", DOCX, "plan-v1");
+        Path store = tempDir("content");
+        try (ContentStore content = ContentStore.open(store, true)) {
+            assertEquals(1, restore(drive, tempDir("restore"), content).getDownloaded());
+        }
+        assertEquals(1, drive.exports());
+
+        Path second = tempDir("restore");
+        try (ContentStore content = ContentStore.open(store, true)) {
+            RestoreReport report = restore(drive, second, content);
+            assertEquals(1, report.getReused());
+            assertTrue(report.getFailures().isEmpty());
+        }
+        assertEquals(1, drive.exports());
+        assertEquals("plan-v1", read(second.resolve("Plan.docx")));
+    }
+}
@@ -0,0 +1,674 @@
+package gdrestore;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.DateTime;
+import com.google.api.client.util.IOUtils;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.Revision;
+import com.google.api.services.drive.model.RevisionList;
+import com.google.api.services.drive.model.StartPageToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Локальная замена GoogleDrive поверх MockHttpTransport: хранит папки, файлы и ревизии в памяти и отвечает
+ * на запросы Drive API v3 (включая пакетные запросы) так же как настоящий сервис.
+ */
+class FakeDrive extends MockHttpTransport {
+
+    static final String FOLDER = "application/vnd.google-apps.folder";
+
+    private static final JsonFactory JSON = JacksonFactory.getDefaultInstance();
+    private static final String BOUNDARY = "batch_response";
+
+    private final List<File> files = new CopyOnWriteArrayList<>();
+    private final Map<String, List<Revision>> revisions = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+    /** Журнал изменений для Changes API: идентификаторы измененных файлов, pageToken - позиция в журнале. */
+    private final List<String> changes = new CopyOnWriteArrayList<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger batches = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile int failureStatus;
+    private final AtomicInteger drops = new AtomicInteger();
+    private volatile int dropAfter;
+    private final AtomicInteger rangeIgnores = new AtomicInteger();
+    private final AtomicInteger batchDrops = new AtomicInteger();
+    private volatile int batchDropAfter;
+    private final AtomicLong mediaBytes = new AtomicLong();
+    private final AtomicInteger listed = new AtomicInteger();
+    private final AtomicInteger exports = new AtomicInteger();
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile double errorRate;
+    private volatile int errorStatus;
+
+    FakeDrive() {
+        files.add(new File().setId("root").setName("My Drive").setMimeType(FOLDER));
+    }
+
+    Drive service() {
+        return new Drive.Builder(this, JSON, null).setApplicationName("FakeDrive").build();
+    }
+
+    /**
+     * Создает в каталоге root дерево каталогов диска.
+     * @return индекс каталогов с корнем root
+     */
+    DirectoryIndex createTree(Path root) throws IOException {
+        Directory rootDir = new Directory();
+        rootDir.setPath(root.toString() + '/');
+        rootDir.setFile(Quickstart.getRoot(service()));
+        List<Directory> dirs = new ArrayList<>();
+        Quickstart.generateDirectoryTree(rootDir, Quickstart.getDirectories(service()), dirs);
+        Quickstart.createDirsInRoot(dirs);
+        return new DirectoryIndex(rootDir, dirs);
+    }
+
+    FakeDrive folder(String id, String name, String parent) {
+        files.add(new File().setId(id).setName(name).setMimeType(FOLDER)
+                .setParents(Collections.singletonList(parent)));
+        changes.add(id);
+        return this;
+    }
+
+    FakeDrive file(String id, String name, String... parents) {
+        files.add(new File().setId(id).setName(name).setMimeType("application/octet-stream")
+                .setParents(Arrays.asList(parents)));
+        changes.add(id);
+        return this;
+    }
+
+    FakeDrive revision(String fileId, String revisionId, String modifiedTime, String content) {
+        return revision(fileId, revisionId, modifiedTime, fileId, content);
+    }
+
+    FakeDrive revision(String fileId, String revisionId, String modifiedTime, String originalFilename,
+                       String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return revision(fileId, revisionId, DateTime.parseRfc3339(modifiedTime), originalFilename, bytes,
+                Checksums.hex(Checksums.md5().digest(bytes)));
+    }
+
+    private FakeDrive revision(String fileId, String revisionId, DateTime modifiedTime, String originalFilename,
+                               byte[] bytes, String md5) {
+        revisions.computeIfAbsent(fileId, k -> new CopyOnWriteArrayList<>())
+                .add(new Revision().setId(revisionId).setModifiedTime(modifiedTime)
+                        .setOriginalFilename(originalFilename).setMd5Checksum(md5).setSize((long) bytes.length));
+        contents.put(fileId + "/" + revisionId, bytes);
+        return this;
+    }
+
+    /**
+     * Синтетический диск для нагрузочных тестов: folders папок (родитель каждой - случайная ранее созданная
+     * папка), files файлов в случайных папках, у каждого файла revisions ревизий по contentSize байт с
+     * интервалом в сутки начиная с 2017-01-01. Ревизии одного файла разделяют содержимое, чтобы диск
+     * из десятков тысяч файлов помещался в памяти.
+     */
+    static FakeDrive synthetic(int folders, int files, int revisions, int contentSize, long seed) {
+        Random random = new Random(seed);
+        FakeDrive drive = new FakeDrive();
+        for (int i = 0; i < folders; i++) {
+            String parent = i == 0 || random.nextInt(8) == 0 ? "root" : "d" + random.nextInt(i);
+            drive.folder("d" + i, "dir" + i, parent);
+        }
+        long start = DateTime.parseRfc3339("2017-01-01T00:00:00.000Z").getValue();
+        for (int i = 0; i < files; i++) {
+            String id = "f" + i;
+            drive.file(id, "file" + i + ".bin", folders == 0 ? "root" : "d" + random.nextInt(folders));
+            byte[] content = new byte[contentSize];
+            random.nextBytes(content);
+            String md5 = Checksums.hex(Checksums.md5().digest(content));
+            for (int r = 0; r < revisions; r++) {
+                drive.revision(id, "r" + r, new DateTime(start + r * 24L * 3600 * 1000), id, content, md5);
+            }
+        }
+        return drive;
+    }
+
+    /**
+     * Профиль задержки: ответ на каждый HTTP запрос (пакет - один запрос) задерживается на latencyMillis и
+     * случайные [0, jitterMillis) мс.
+     */
+    FakeDrive latency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * Профиль ошибок: каждый запрос (в том числе часть пакета) с вероятностью rate завершается ошибкой status.
+     */
+    FakeDrive errorRate(double rate, int status) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+        return this;
+    }
+
+    /**
+     * Файл Google Документов типа mimeType: не имеет содержимого, ревизии выгружаются (см. {@link #exportRevision}).
+     */
+    FakeDrive document(String id, String name, String mimeType, String... parents) {
+        files.add(new File().setId(id).setName(name).setMimeType(mimeType).setParents(Arrays.asList(parents)));
+        changes.add(id);
+        return this;
+    }
+
+    /**
+     * Ревизия файла Google Документов, которая выгружается в формат exportMimeType с содержимым content.
+     * Ссылка на выгрузку передается в exportLinks ревизии.
+     */
+    FakeDrive exportRevision(String fileId, String revisionId, String modifiedTime, String exportMimeType,
+                             String content) {
+        Map<String, String> links = new HashMap<>();
+        links.put(exportMimeType, "https://docs.google.com/export?id=" + fileId + "&revision=" + revisionId
+                + "&mimeType=" + exportMimeType);
+        revisions.computeIfAbsent(fileId, k -> new CopyOnWriteArrayList<>())
+                .add(new Revision().setId(revisionId).setModifiedTime(DateTime.parseRfc3339(modifiedTime))
+                        .set("exportLinks", links));
+        contents.put(fileId + "/" + revisionId + "/" + exportMimeType, content.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /** @return количество выполненных выгрузок Google Документов */
+    int exports() {
+        return exports.get();
+    }
+
+    /**
+     * Подменяет содержимое ревизии не меняя ее md5Checksum (поврежденная загрузка).
+     */
+    FakeDrive corrupt(String fileId, String revisionId, String content) {
+        contents.put(fileId + "/" + revisionId, content.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /**
+     * Следующие count запросов (в том числе запросы внутри пакетов) завершатся ошибкой status.
+     */
+    FakeDrive failNext(int count, int status) {
+        failureStatus = status;
+        failures.set(count);
+        return this;
+    }
+
+    /**
+     * Следующие count загрузок содержимого оборвутся после передачи afterBytes байт.
+     */
+    FakeDrive dropConnection(int count, int afterBytes) {
+        dropAfter = afterBytes;
+        drops.set(count);
+        return this;
+    }
+
+    /**
+     * Следующие count загрузок содержимого вернут весь файл (200) без учета заголовка Range.
+     */
+    FakeDrive ignoreRange(int count) {
+        rangeIgnores.set(count);
+        return this;
+    }
+
+    /**
+     * Следующие count пакетных ответов оборвутся после передачи afterParts частей.
+     */
+    FakeDrive dropBatch(int count, int afterParts) {
+        batchDropAfter = afterParts;
+        batchDrops.set(count);
+        return this;
+    }
+
+    /** Устанавливает время изменения файла. */
+    FakeDrive modified(String id, String modifiedTime) {
+        getFile(id).setModifiedTime(DateTime.parseRfc3339(modifiedTime));
+        changes.add(id);
+        return this;
+    }
+
+    /** Перемещает файл в корзину. */
+    FakeDrive trash(String id) {
+        getFile(id).setTrashed(true);
+        changes.add(id);
+        return this;
+    }
+
+    /** @return количество файлов переданных в ответах files().list */
+    int listed() {
+        return listed.get();
+    }
+
+    /** @return количество переданных байт содержимого файлов */
+    long mediaBytes() {
+        return mediaBytes.get();
+    }
+
+    File getFile(String id) {
+        for (File f : files) {
+            if (f.getId().equals(id)) return f;
+        }
+        return null;
+    }
+
+    List<Revision> getRevisions(String fileId) {
+        return revisions.getOrDefault(fileId, Collections.emptyList());
+    }
+
+    /** @return количество HTTP запросов полученных сервисом (пакет считается одним запросом) */
+    int requests() {
+        return requests.get();
+    }
+
+    /** @return количество полученных пакетных запросов */
+    int batches() {
+        return batches.get();
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                requests.incrementAndGet();
+                delay();
+                GenericUrl u = new GenericUrl(url);
+                if (u.getRawPath().startsWith("/batch")) {
+                    batches.incrementAndGet();
+                    return batch(getContentType(), getContentAsString());
+                }
+                return handle(method, u, getContentAsString(), getFirstHeaderValue("Range"));
+            }
+        };
+    }
+
+    private void delay() throws IOException {
+        long millis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis) : 0);
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+
+    private LowLevelHttpResponse handle(String method, GenericUrl url, String body, String range)
+            throws IOException {
+        if (failures.getAndUpdate((n) -> n > 0 ? n - 1 : 0) > 0) {
+            return error(failureStatus, failureStatus == 403 ? "userRateLimitExceeded" : "rateLimitExceeded");
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            return error(errorStatus, errorStatus == 403 ? "userRateLimitExceeded"
+                    : errorStatus == 429 ? "rateLimitExceeded" : "backendError");
+        }
+        List<String> path = url.getPathParts();
+        if (path.contains("changes")) return json(changes(url));
+        if (path.contains("export")) return export(url, path);
+        // path: "", "drive", "v3", "files", {fileId}, "revisions", {revisionId}
+        int files = path.indexOf("files");
+        if (files < 0) return error(404, "notFound");
+        String fileId = path.size() > files + 1 ? path.get(files + 1) : null;
+        boolean revs = path.size() > files + 2 && "revisions".equals(path.get(files + 2));
+        String revisionId = path.size() > files + 3 ? path.get(files + 3) : null;
+
+        if (fileId == null) return json(listFiles(url));
+        File file = getFile(fileId);
+        if (file == null) return error(404, "notFound");
+        if (!revs) {
+            switch (method) {
+                case "DELETE":
+                    this.files.remove(file);
+                    changes.add(fileId);
+                    return new MockLowLevelHttpResponse().setStatusCode(204);
+                case "PATCH":
+                    File update = JSON.fromString(body, File.class);
+                    if (update.getName() != null) file.setName(update.getName());
+                    changes.add(fileId);
+                    return json(file);
+                default:
+                    return json(file);
+            }
+        }
+        List<Revision> fileRevisions = getRevisions(fileId);
+        if (revisionId == null) {
+            Object size = url.getFirst("pageSize");
+            Object token = url.getFirst("pageToken");
+            int offset = token == null ? 0 : Integer.parseInt(token.toString());
+            int end = Math.min(fileRevisions.size(), offset + (size == null ? 200 : Integer.parseInt(size.toString())));
+            RevisionList list = new RevisionList().setRevisions(new ArrayList<>(fileRevisions.subList(offset, end)));
+            if (end < fileRevisions.size()) list.setNextPageToken(String.valueOf(end));
+            return json(list);
+        }
+        Revision revision = null;
+        for (Revision r : fileRevisions) {
+            if (r.getId().equals(revisionId)) revision = r;
+        }
+        if (revision == null) return error(404, "notFound");
+        if ("DELETE".equals(method)) {
+            fileRevisions.remove(revision);
+            return new MockLowLevelHttpResponse().setStatusCode(204);
+        }
+        if (!"media".equals(url.getFirst("alt"))) return json(revision);
+        return media(contents.get(fileId + "/" + revisionId), range);
+    }
+
+    /**
+     * Выгрузка Google Документа: по ссылке из exportLinks ревизии (параметры id, revision, mimeType) или
+     * files().export (последняя ревизия файла).
+     */
+    private LowLevelHttpResponse export(GenericUrl url, List<String> path) throws IOException {
+        String fileId = path.contains("files") ? path.get(path.indexOf("files") + 1) : (String) url.getFirst("id");
+        String revisionId = (String) url.getFirst("revision");
+        if (revisionId == null) {
+            List<Revision> fileRevisions = getRevisions(fileId);
+            if (fileRevisions.isEmpty()) return error(404, "notFound");
+            revisionId = fileRevisions.get(fileRevisions.size() - 1).getId();
+        }
+        byte[] content = contents.get(fileId + "/" + revisionId + "/" + url.getFirst("mimeType"));
+        if (content == null) return error(400, "badRequest");
+        exports.incrementAndGet();
+        return media(content, null);
+    }
+
+    /**
+     * Ответ с содержимым файла, с поддержкой заголовка Range и обрывов соединения (см. {@link #dropConnection}).
+     */
+    private LowLevelHttpResponse media(byte[] content, String range) {
+        int from = 0;
+        int to = content.length - 1;
+        MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setContentType("application/octet-stream");
+        if (range != null && rangeIgnores.getAndUpdate((n) -> n > 0 ? n - 1 : 0) == 0) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            from = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) to = Math.min(to, Integer.parseInt(bounds[1]));
+            if (from > to) return error(416, "requestedRangeNotSatisfiable");
+            response.setStatusCode(206).addHeader("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+        }
+        int length = to - from + 1;
+        boolean drop = drops.getAndUpdate((n) -> n > 0 ? n - 1 : 0) > 0;
+        int served = drop ? Math.min(length, dropAfter) : length;
+        mediaBytes.addAndGet(served);
+        InputStream in = new ByteArrayInputStream(content, from, served);
+        if (drop) {
+            in = new SequenceInputStream(in, new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new SocketException("Connection reset");
+                }
+            });
+        }
+        return response.setContent(in).setContentLength(length);
+    }
+
+    private FileList listFiles(GenericUrl url) {
+        String q = (String) url.getFirst("q");
+        Object size = url.getFirst("pageSize");
+        Object token = url.getFirst("pageToken");
+        int pageSize = size == null ? 100 : Integer.parseInt(size.toString());
+        int offset = token == null ? 0 : Integer.parseInt(token.toString());
+
+        List<File> matched = new ArrayList<>();
+        for (File f : this.files) {
+            if ("root".equals(f.getId())) continue;
+            if (q == null || matches(f, q)) matched.add(f);
+        }
+        int end = Math.min(matched.size(), offset + pageSize);
+        listed.addAndGet(end - offset);
+        FileList result = new FileList().setFiles(new ArrayList<>(matched.subList(offset, end)));
+        if (end < matched.size()) result.setNextPageToken(String.valueOf(end));
+        return result;
+    }
+
+    /**
+     * Changes API: startPageToken - текущая длина журнала, changes().list - изменения с позиции pageToken
+     * с текущим состоянием файлов.
+     */
+    private Object changes(GenericUrl url) {
+        if (url.getRawPath().endsWith("startPageToken")) {
+            return new StartPageToken().setStartPageToken(String.valueOf(changes.size()));
+        }
+        int offset = Integer.parseInt(url.getFirst("pageToken").toString());
+        Object size = url.getFirst("pageSize");
+        int end = Math.min(changes.size(), offset + (size == null ? 100 : Integer.parseInt(size.toString())));
+        List<Change> result = new ArrayList<>();
+        for (String id : changes.subList(offset, end)) {
+            File file = getFile(id);
+            result.add(new Change().setFileId(id).setRemoved(file == null).setFile(file));
+        }
+        ChangeList list = new ChangeList().setChanges(result);
+        if (end < changes.size()) {
+            list.setNextPageToken(String.valueOf(end));
+        } else {
+            list.setNewStartPageToken(String.valueOf(end));
+        }
+        return list;
+    }
+
+    /**
+     * Проверка условий q: поддерживаются операторы and, or, not, скобки, сравнения name, mimeType,
+     * modifiedTime и trashed (=, !=, &lt;, &gt;), name contains и 'id' in parents. Значения в одинарных
+     * кавычках с экранированием обратной косой чертой.
+     */
+    static boolean matches(File f, String q) {
+        Query query = new Query(q, f);
+        boolean result = query.or();
+        if (query.pos < q.length()) throw new IllegalArgumentException("Invalid query: " + q);
+        return result;
+    }
+
+    private static class Query {
+        private final String q;
+        private final File f;
+        private int pos;
+
+        private Query(String q, File f) {
+            this.q = q;
+            this.f = f;
+        }
+
+        private boolean or() {
+            boolean result = and();
+            while (word("or")) result |= and();
+            return result;
+        }
+
+        private boolean and() {
+            boolean result = unary();
+            while (word("and")) result &= unary();
+            return result;
+        }
+
+        private boolean unary() {
+            if (word("not")) return !unary();
+            if (symbol("(")) {
+                boolean result = or();
+                expect(")");
+                return result;
+            }
+            if (peek() == '\'') {
+                String id = string();
+                if (!word("in") || !word("parents")) throw new IllegalArgumentException("Invalid query: " + q);
+                return f.getParents() != null && f.getParents().contains(id);
+            }
+            String field = name();
+            if (word("contains")) {
+                String text = string();
+                return "name".equals(field) && f.getName() != null && f.getName().contains(text);
+            }
+            String op = operator();
+            String value = peek() == '\'' ? string() : name();
+            int cmp;
+            switch (field) {
+                case "name":
+                    cmp = String.valueOf(f.getName()).compareTo(value);
+                    break;
+                case "mimeType":
+                    cmp = String.valueOf(f.getMimeType()).compareTo(value);
+                    break;
+                case "trashed":
+                    cmp = Boolean.compare(Boolean.TRUE.equals(f.getTrashed()), Boolean.parseBoolean(value));
+                    break;
+                case "modifiedTime":
+                    if (f.getModifiedTime() == null) return false;
+                    cmp = Long.compare(f.getModifiedTime().getValue(), DateTime.parseRfc3339(value).getValue());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported field " + field + " in " + q);
+            }
+            switch (op) {
+                case "=": return cmp == 0;
+                case "!=": return cmp != 0;
+                case "<": return cmp < 0;
+                case "<=": return cmp <= 0;
+                case ">": return cmp > 0;
+                default: return cmp >= 0;
+            }
+        }
+
+        private String string() {
+            skip();
+            expect("'");
+            StringBuilder result = new StringBuilder();
+            while (q.charAt(pos) != '\'') {
+                if (q.charAt(pos) == '\\') pos++;
+                result.append(q.charAt(pos++));
+            }
+            pos++;
+            return result.toString();
+        }
+
+        private String name() {
+            skip();
+            int start = pos;
+            while (pos < q.length() && Character.isLetterOrDigit(q.charAt(pos))) pos++;
+            if (start == pos) throw new IllegalArgumentException("Invalid query at " + pos + ": " + q);
+            return q.substring(start, pos);
+        }
+
+        private String operator() {
+            for (String op : new String[]{"!=", "<=", ">=", "=", "<", ">"}) {
+                if (symbol(op)) return op;
+            }
+            throw new IllegalArgumentException("Invalid query at " + pos + ": " + q);
+        }
+
+        private boolean word(String word) {
+            skip();
+            int end = pos + word.length();
+            if (!q.startsWith(word, pos) || end < q.length() && Character.isLetterOrDigit(q.charAt(end))) {
+                return false;
+            }
+            pos = end;
+            return true;
+        }
+
+        private boolean symbol(String symbol) {
+            skip();
+            if (!q.startsWith(symbol, pos)) return false;
+            pos += symbol.length();
+            return true;
+        }
+
+        private void expect(String symbol) {
+            if (!symbol(symbol)) throw new IllegalArgumentException("Expected " + symbol + " at " + pos + ": " + q);
+        }
+
+        private char peek() {
+            skip();
+            return pos < q.length() ? q.charAt(pos) : 0;
+        }
+
+        private void skip() {
+            while (pos < q.length() && q.charAt(pos) == ' ') pos++;
+        }
+    }
+
+    /**
+     * Разбирает пакетный запрос multipart/mixed, выполняет каждую его часть и собирает пакетный ответ.
+     */
+    private LowLevelHttpResponse batch(String contentType, String content) throws IOException {
+        String boundary = "--" + contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+        StringBuilder response = new StringBuilder();
+        boolean drop = batchDrops.getAndUpdate((n) -> n > 0 ? n - 1 : 0) > 0;
+        int id = 0;
+        for (String part : content.split(boundary)) {
+            if (drop && id == batchDropAfter) {
+                // Граница следующей части передана - предыдущая часть разбирается до обрыва соединения
+                response.append("--").append(BOUNDARY).append("\r\n");
+                InputStream in = new SequenceInputStream(
+                        new ByteArrayInputStream(response.toString().getBytes(StandardCharsets.UTF_8)),
+                        new InputStream() {
+                            @Override
+                            public int read() throws IOException {
+                                throw new SocketException("Connection reset");
+                            }
+                        });
+                return new MockLowLevelHttpResponse().setContentType("multipart/mixed; boundary=" + BOUNDARY)
+                        .setContent(in);
+            }
+            int headersEnd = part.indexOf("\r\n\r\n");
+            if (headersEnd < 0) continue;
+            String request = part.substring(headersEnd + 4);
+            String[] lines = request.split("\r\n", -1);
+            String[] requestLine = lines[0].split(" ");
+            int bodyStart = request.indexOf("\r\n\r\n");
+            String body = bodyStart < 0 ? "" : request.substring(bodyStart + 4).trim();
+
+            MockLowLevelHttpResponse r = (MockLowLevelHttpResponse) handle(requestLine[0],
+                    new GenericUrl(requestLine[1]), body, null);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (r.getContent() != null) IOUtils.copy(r.getContent(), out);
+            response.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: response-").append(++id).append("\r\n\r\n")
+                    .append("HTTP/1.1 ").append(r.getStatusCode()).append(" Status\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                    .append(new String(out.toByteArray(), StandardCharsets.UTF_8)).append("\r\n");
+        }
+        response.append("--").append(BOUNDARY).append("--\r\n");
+        return new MockLowLevelHttpResponse().setContentType("multipart/mixed; boundary=" + BOUNDARY)
+                .setContent(response.toString());
+    }
+
+    private static LowLevelHttpResponse json(Object body) throws IOException {
+        return new MockLowLevelHttpResponse().setContentType("application/json; charset=UTF-8")
+                .setContent(JSON.toString(body));
+    }
+
+    static LowLevelHttpResponse error(int status, String reason) {
+        return new MockLowLevelHttpResponse().setStatusCode(status)
+                .setContentType("application/json; charset=UTF-8")
+                .setContent("{\"error\":{\"code\":" + status + ",\"message\":\"" + reason + "\","
+                        + "\"errors\":[{\"domain\":\"usageLimits\",\"reason\":\"" + reason + "\"}]}}");
+    }
+}
@@ -0,0 +1,40 @@
+package gdrestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileListingTest {
+
+    @Test
+    void streamsAllPages() {
+        FakeDrive drive = new FakeDrive();
+        for (int i = 0; i < 2500; i++) drive.file("f" + i, "file" + i, "root");
+        drive.folder("d1", "dir", "root");
+
+        FileListing listing = Quickstart.listFiles(drive.service());
+        Iterator<com.google.api.services.drive.model.File> files = listing;
+        assertTrue(files.hasNext());
+        assertEquals("f0", files.next().getId());
+        assertEquals(2499, listing.stream().count());
+        assertEquals(3, listing.getPages());
+        assertFalse(listing.hasNext());
+    }
+
+    @Test
+    void keepsFailingAfterPageError() {
+        FakeDrive drive = new FakeDrive();
+        for (int i = 0; i < 1500; i++) drive.file("f" + i, "file" + i, "root");
+        FileListing listing = new FileListing(drive.service(), new RequestScheduler(1000, 8, 1, 0, 0,
+                (millis) -> { }), Quickstart.FILES_FILTER, Quickstart.FILES_FIELDS);
+
+        drive.failNext(1, 500);
+        assertThrows(UncheckedIOException.class, listing::hasNext);
+        // Перечень не начинается заново с первой страницы
+        assertThrows(UncheckedIOException.class, listing::hasNext);
+        assertEquals(0, listing.getPages());
+    }
+}
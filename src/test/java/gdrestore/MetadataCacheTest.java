@@ -0,0 +1,62 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.File;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetadataCacheTest extends TestFiles {
+
+    private static List<String> names(List<File> files) {
+        List<String> result = new ArrayList<>();
+        for (File f : files) result.add(f.getName());
+        return result;
+    }
+
+    @Test
+    void appliesChangesAfterFullListing() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .folder("d1", "docs", "root")
+                .file("f1", "a.txt", "d1")
+                .file("f2", "b.txt", "d1");
+        RequestScheduler scheduler = new RequestScheduler(1000, 4, 5, 1, 1, (millis) -> { });
+        Path file = tempDir("metadata").resolve(MetadataCache.FILE_NAME);
+
+        MetadataCache cache = MetadataCache.load(file);
+        assertEquals(-1, cache.sync(drive.service(), scheduler));
+        cache.save(file);
+        assertEquals("root", cache.getRoot().getId());
+        assertEquals(Collections.singletonList("docs"), names(cache.getDirectories()));
+        assertEquals(2, cache.getFiles().size());
+
+        // Изменения после снимка: новый файл, удаление и переименование
+        drive.file("f3", "c.txt", "d1");
+        drive.service().files().delete("f1").execute();
+        drive.service().files().update("f2", new File().setName("b2.txt")).execute();
+        int before = drive.requests();
+
+        MetadataCache reloaded = MetadataCache.load(file);
+        assertEquals(3, reloaded.sync(drive.service(), scheduler));
+        assertEquals(1, drive.requests() - before);
+        List<String> files = names(reloaded.getFiles());
+        assertEquals(2, files.size());
+        assertTrue(files.contains("b2.txt"));
+        assertTrue(files.contains("c.txt"));
+        assertEquals("d1", reloaded.getFiles().get(0).getParents().get(0));
+    }
+
+    @Test
+    void corruptedSnapshotRequiresFullListing() throws Exception {
+        Path file = tempDir("metadata").resolve(MetadataCache.FILE_NAME);
+        Files.write(file, new byte[]{1, 2, 3});
+        MetadataCache cache = MetadataCache.load(file);
+        assertNull(cache.getPageToken());
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,95 @@
+package gdrestore;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetadataStoreTest extends TestFiles {
+
+    private static File folder(String id, String name, String... parents) {
+        return new File().setId(id).setName(name).setMimeType(MetadataCache.FOLDER_MIME_TYPE)
+                .setParents(Arrays.asList(parents));
+    }
+
+    @Test
+    void storesColumnsInMappedFiles() throws Exception {
+        Path dir = tempDir("store");
+        try (MetadataStore store = MetadataStore.mapped(dir)) {
+            // Родитель d1 известен раньше, чем получен сам
+            store.put(new File().setId("f1").setName("отчет.txt").setMimeType("text/plain")
+                    .setParents(Arrays.asList("d1", "d2")).setSize(42L)
+                    .setMd5Checksum("0123456789abcdef0123456789abcdef")
+                    .setModifiedTime(new DateTime(1494583200000L)));
+            assertEquals(1, store.size());
+            store.put(folder("d1", "docs", "root"));
+            for (int i = 0; i < 5000; i++) store.put(new File().setId("x" + i).setName("x").setParents(null));
+
+            File f = store.toFile(store.indexOf("f1"));
+            assertEquals("отчет.txt", f.getName());
+            assertEquals("text/plain", f.getMimeType());
+            assertEquals(Arrays.asList("d1", "d2"), f.getParents());
+            assertEquals(42L, (long) f.getSize());
+            assertEquals("0123456789abcdef0123456789abcdef", f.getMd5Checksum());
+            assertEquals(1494583200000L, f.getModifiedTime().getValue());
+            assertTrue(store.isFolder(store.indexOf("d1")));
+            assertFalse(store.isPresent(store.indexOf("d2")));
+            assertEquals(5002, store.size());
+
+            assertTrue(store.remove("x7"));
+            assertFalse(store.remove("x7"));
+            assertEquals(MetadataStore.NONE, store.indexOf("unknown"));
+            assertEquals(5001, store.size());
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(0, files.count(), "Column files must be removed");
+        }
+    }
+
+    @Test
+    void derivesSamePathsAsTreeBuilder() {
+        Random random = new Random(7);
+        List<File> dirs = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String parent = i == 0 || random.nextInt(8) == 0 ? "root" : "d" + random.nextInt(i);
+            dirs.add(folder("d" + i, "dir" + i, parent));
+        }
+        dirs.add(folder("m1", "multi", "d1500", "root"));
+        dirs.add(folder("o1", "orphan", "missing"));
+        dirs.add(folder("c1", "cycle1", "c2"));
+        dirs.add(folder("c2", "cycle2", "c1"));
+        Collections.shuffle(dirs, random);
+
+        Directory root = new Directory();
+        root.setPath("/restore/");
+        root.setFile(new File().setId("root"));
+        List<Directory> expected = new ArrayList<>();
+        Quickstart.generateDirectoryTree(root, dirs, expected);
+
+        MetadataStore store = MetadataStore.offHeap();
+        for (File d : dirs) store.put(d);
+        store.put(new File().setId("f1").setName("a.txt").setParents(Collections.singletonList("d5")));
+        store.buildTree(store.indexOf("root"));
+        DirectoryIndex index = new DirectoryIndex("/restore/", "root", store);
+
+        assertEquals(expected.size(), index.size());
+        for (Directory d : expected) assertEquals(d.getPath(), index.getPath(d.getFile().getId()));
+        assertEquals(1, store.getOrphans());
+        assertEquals(1, store.getCycles());
+        assertEquals("/restore/" + DirectoryTreeBuilder.ORPHANED_DIR + "orphan/", index.getPath("o1"));
+        assertEquals("/restore/multi/", index.getPath("m1"));
+        assertNull(index.getPath("f1"));
+        assertEquals(Collections.singletonList(index.getPath("d5")),
+                index.resolve(store.toFile(store.indexOf("f1"))));
+    }
+}
@@ -1,3 +1,5 @@
+package gdrestore;
+
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
@@ -12,7 +14,7 @@ import static org.junit.jupiter.api.Assertions.*;
  */
 class QuickstartTest {
     @Test
-    void createDirsTo() {
+    void createDirsTo() throws Exception {
 
         Directory dir1 = new Directory();
         dir1.setPath(Quickstart.ROOT_PATH+"/parent/dir1");
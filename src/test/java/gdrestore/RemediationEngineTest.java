@@ -0,0 +1,74 @@
+package gdrestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RemediationEngineTest extends TestFiles {
+
+    @Test
+    void prunesEncryptedRevisionsAndRenamesFiles() throws Exception {
+        FakeDrive drive = new FakeDrive();
+        for (int i = 0; i < 150; i++) {
+            drive.file("f" + i, "doc" + i + ".txt.CTB-Locker", "root")
+                    .revision("f" + i, "r1", "2017-05-01T10:00:00.000Z", "doc" + i + ".txt", "good")
+                    .revision("f" + i, "r2", "2017-05-13T10:00:00.000Z", "doc" + i + ".txt.CTB-Locker", "bad");
+        }
+        drive.file("only", "only.txt.CTB-Locker", "root")
+                .revision("only", "r1", "2017-05-13T10:00:00.000Z", "only.txt.CTB-Locker", "bad");
+        drive.file("clean", "clean.txt", "root")
+                .revision("clean", "r1", "2017-05-01T10:00:00.000Z", "clean.txt", "good");
+        Path reportFile = tempDir("remediation").resolve("report.tsv");
+
+        RemediationReport report;
+        int found;
+        try (RemediationReport r = RemediationReport.open(reportFile)) {
+            found = new RemediationEngine(drive.service(), Quickstart.SCHEDULER,
+                    Collections.singletonList(LockerRule.CTB_LOCKER), 4, 10)
+                    .remediate(Quickstart.getFiles(drive.service()).iterator(), r);
+            report = r;
+        }
+
+        assertEquals(151, found);
+        assertEquals(150, report.count(RemediationReport.Outcome.RESTORED));
+        assertEquals(1, report.count(RemediationReport.Outcome.NOT_RESTORED));
+        assertEquals(0, report.count(RemediationReport.Outcome.FAILED));
+        assertEquals("doc7.txt", drive.getFile("f7").getName());
+        assertEquals(1, drive.getRevisions("f7").size());
+        assertEquals("r1", drive.getRevisions("f7").get(0).getId());
+        assertEquals("only.txt.CTB-Locker", drive.getFile("only").getName());
+        assertEquals(1, drive.getRevisions("only").size());
+        // Заголовок и строка на каждый файл
+        List<String> lines = Files.readAllLines(reportFile, StandardCharsets.UTF_8);
+        assertEquals(152, lines.size());
+    }
+
+    @Test
+    void loadsRulesForOtherFamilies() throws Exception {
+        Path rules = tempFile("rules", ".properties");
+        Files.write(rules, Arrays.asList("Locky.pattern = \\\\.locky$", "Locky.replacement = .docx"),
+                StandardCharsets.UTF_8);
+        List<LockerRule> loaded = LockerRule.load(rules);
+        assertEquals(1, loaded.size());
+
+        FakeDrive drive = new FakeDrive()
+                .file("f1", "report.locky", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "report.docx", "good")
+                .revision("f1", "r2", "2017-05-13T10:00:00.000Z", "report.locky", "bad")
+                .file("f2", "notes.txt.CTB-Locker", "root");
+        RemediationReport report = new RemediationReport();
+        assertEquals(1, new RemediationEngine(drive.service(), Quickstart.SCHEDULER, loaded, 2)
+                .remediate(Quickstart.getFiles(drive.service()).iterator(), report));
+
+        assertEquals(1, report.count(RemediationReport.Outcome.RESTORED));
+        assertEquals("report.docx", drive.getFile("f1").getName());
+        assertEquals("Locky", report.getEntries().get(0).getRule());
+    }
+}
@@ -0,0 +1,81 @@
+package gdrestore;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.drive.Drive;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.file.AccessDeniedException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestSchedulerTest {
+
+    @Test
+    void retriesRateLimitedRequestsAndBacksOff() throws Exception {
+        FakeDrive drive = new FakeDrive().failNext(3, 429);
+        Drive service = drive.service();
+        AtomicLong slept = new AtomicLong();
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 5, 100, 1000, slept::addAndGet);
+
+        assertEquals("root", scheduler.execute(service.files().get("root")).getId());
+        assertEquals(4, drive.requests());
+        assertEquals(3, scheduler.getRetries());
+        assertEquals(3, scheduler.getThrottles());
+        assertEquals(4, scheduler.getConcurrencyLimit());
+        assertTrue(scheduler.getRate() < 1000);
+        // 50..100 + 100..200 + 200..400 мс
+        assertTrue(slept.get() >= 350 && slept.get() <= 700, "slept " + slept.get());
+
+        for (int i = 0; i < 100; i++) scheduler.execute(service.files().get("root"));
+        assertEquals(8, scheduler.getConcurrencyLimit());
+    }
+
+    @Test
+    void givesUpAfterMaxAttempts() {
+        FakeDrive drive = new FakeDrive().failNext(10, 403);
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 1, 1, (millis) -> { });
+
+        GoogleJsonResponseException e = assertThrows(GoogleJsonResponseException.class,
+                () -> scheduler.execute(drive.service().files().get("root")));
+        assertEquals(403, e.getStatusCode());
+        assertEquals(3, drive.requests());
+    }
+
+    @Test
+    void doesNotRetryPermanentErrors() {
+        FakeDrive drive = new FakeDrive();
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 1, 1, (millis) -> { });
+
+        assertThrows(GoogleJsonResponseException.class,
+                () -> scheduler.execute(drive.service().files().get("missing")));
+        assertEquals(1, drive.requests());
+        assertEquals(0, scheduler.getThrottles());
+    }
+
+    @Test
+    void retriesOnlyTransportErrors() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 1, 1, (millis) -> { });
+        AtomicInteger calls = new AtomicInteger();
+
+        assertEquals("ok", scheduler.call(1, () -> {
+            if (calls.incrementAndGet() == 1) throw new SocketException("Connection reset");
+            return "ok";
+        }));
+        assertEquals(2, calls.get());
+
+        calls.set(0);
+        assertThrows(AccessDeniedException.class, () -> scheduler.call(1, () -> {
+            calls.incrementAndGet();
+            throw new AccessDeniedException("/restore/file.part");
+        }));
+        assertThrows(IOException.class, () -> scheduler.call(1, () -> {
+            calls.incrementAndGet();
+            throw new IOException("Checksum mismatch");
+        }));
+        assertEquals(2, calls.get());
+    }
+}
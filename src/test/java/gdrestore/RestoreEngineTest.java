@@ -0,0 +1,180 @@
+package gdrestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RestoreEngineTest extends TestFiles {
+
+    @Test
+    void restoresRevisionsBeforeDate() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .folder("d1", "docs", "root")
+                .folder("d2", "old", "d1")
+                .file("f1", "a.txt", "d1")
+                .file("f2", "b.txt", "d2")
+                .file("f3", "c.txt", "d2")
+                .file("f4", "shared.txt", "d1", "d2", "gone")
+                .file("f5", "lost.txt", "gone")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "a-good")
+                .revision("f1", "r2", "2017-05-13T10:00:00.000Z", "a-encrypted")
+                .revision("f2", "r1", "2017-04-01T10:00:00.000Z", "b-good")
+                .revision("f3", "r1", "2017-05-20T10:00:00.000Z", "c-new")
+                .revision("f4", "r1", "2017-05-01T10:00:00.000Z", "shared")
+                .revision("f5", "r1", "2017-05-01T10:00:00.000Z", "lost");
+        Path root = tempDir("restore");
+
+        DirectoryIndex index = drive.createTree(root);
+
+        RestoreReport report = new RestoreEngine(drive.service(), Quickstart.SCHEDULER, 4, 4, 2)
+                .restore(Quickstart.getFiles(drive.service()).iterator(), index, LocalDateTime.of(2017, 5, 12, 0, 0));
+
+        assertEquals(4, report.getDownloaded());
+        assertEquals("a-good", read(root.resolve("docs/a.txt")));
+        assertEquals("b-good", read(root.resolve("docs/old/b.txt")));
+        assertFalse(Files.exists(root.resolve("docs/old/c.txt")));
+        assertEquals(1, report.getFailures().size());
+        assertEquals("f3", report.getFailures().get(0).getFileId());
+        assertEquals("shared", read(root.resolve("docs/shared.txt")));
+        assertEquals("shared", read(root.resolve("docs/old/shared.txt")));
+        assertEquals("lost", read(root.resolve("lost.txt")));
+        assertEquals(1, report.getWarnings().size());
+
+        // Повторный запуск с журналом пропускает уже загруженные файлы без запросов ревизий
+        Path journalFile = root.resolve(RestoreJournal.FILE_NAME);
+        LocalDateTime toDate = LocalDateTime.of(2017, 5, 12, 0, 0);
+        try (RestoreJournal journal = RestoreJournal.open(journalFile, toDate)) {
+            new RestoreEngine(drive.service(), Quickstart.SCHEDULER, 2)
+                    .restore(Quickstart.getFiles(drive.service()).iterator(), index, toDate, journal);
+        }
+        int before = drive.requests();
+        RestoreReport second;
+        try (RestoreJournal journal = RestoreJournal.open(journalFile, toDate)) {
+            second = new RestoreEngine(drive.service(), Quickstart.SCHEDULER, 2)
+                    .restore(Quickstart.getFiles(drive.service()).iterator(), index, toDate, journal);
+        }
+        assertEquals(4, second.getSkipped());
+        assertEquals(0, second.getDownloaded());
+        // Один запрос списка файлов и один пакет ревизий для не восстановленного f3
+        assertEquals(2, drive.requests() - before);
+    }
+
+    @Test
+    void resumesStartedDownloadAndVerifiesChecksum() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .file("f1", "a.txt", "root")
+                .file("f2", "b.txt", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "a-good")
+                .revision("f2", "r1", "2017-05-01T10:00:00.000Z", "b-good")
+                .corrupt("f2", "r1", "b-broken");
+        Path root = tempDir("restore");
+        DirectoryIndex index = drive.createTree(root);
+        LocalDateTime toDate = LocalDateTime.of(2017, 5, 12, 0, 0);
+        Path journalFile = root.resolve(RestoreJournal.FILE_NAME);
+
+        // Прерванный запуск: загрузка f1 начата, на диске остался недописанный файл
+        try (RestoreJournal journal = RestoreJournal.open(journalFile, toDate)) {
+            journal.started("f1", "r1", 6, null, root.resolve("a.txt").toString());
+        }
+        Files.write(root.resolve("a.txt" + RestoreEngine.PART_SUFFIX), "a-".getBytes(StandardCharsets.UTF_8));
+
+        RestoreReport report;
+        try (RestoreJournal journal = RestoreJournal.open(journalFile, toDate)) {
+            report = new RestoreEngine(drive.service(), Quickstart.SCHEDULER, 2)
+                    .restore(Quickstart.getFiles(drive.service()).iterator(), index, toDate, journal);
+            assertEquals(RestoreJournal.State.DONE, journal.get("f1").getState());
+            assertEquals(RestoreJournal.State.STARTED, journal.get("f2").getState());
+        }
+        assertEquals(1, report.getDownloaded());
+        assertEquals("a-good", read(root.resolve("a.txt")));
+        assertFalse(Files.exists(root.resolve("a.txt" + RestoreEngine.PART_SUFFIX)));
+        // Содержимое не совпало с md5Checksum - файл не создается
+        assertEquals(1, report.getFailures().size());
+        assertEquals("f2", report.getFailures().get(0).getFileId());
+        assertFalse(Files.exists(root.resolve("b.txt")));
+        assertFalse(Files.exists(root.resolve("b.txt" + RestoreEngine.PART_SUFFIX)));
+    }
+
+    @Test
+    void givesCollidingFilesUniqueNamesAndKeepsExistingFiles() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .file("f1", "a.txt", "root")
+                .file("f2", "a.txt", "root")
+                .file("f3", "a.txt", "gone")
+                .file("f4", "kept.txt", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "one")
+                .revision("f2", "r1", "2017-05-01T10:00:00.000Z", "two")
+                .revision("f3", "r1", "2017-05-01T10:00:00.000Z", "three")
+                .revision("f4", "r1", "2017-05-01T10:00:00.000Z", "restored");
+        Path root = tempDir("restore");
+        Files.write(root.resolve("kept.txt"), "local".getBytes(StandardCharsets.UTF_8));
+        DirectoryIndex index = drive.createTree(root);
+        LocalDateTime toDate = LocalDateTime.of(2017, 5, 12, 0, 0);
+        Path journalFile = root.resolve(RestoreJournal.FILE_NAME);
+
+        RestoreReport report;
+        try (RestoreJournal journal = RestoreJournal.open(journalFile, toDate)) {
+            report = new RestoreEngine(drive.service(), Quickstart.SCHEDULER, 4, 4, 2)
+                    .restore(Quickstart.getFiles(drive.service()).iterator(), index, toDate, journal);
+        }
+        assertEquals(3, report.getDownloaded(), report.getFailures().toString());
+        List<String> contents = new ArrayList<>();
+        for (String id : new String[] {"f1", "f2", "f3"}) {
+            Path plain = root.resolve("a.txt");
+            Path unique = root.resolve("a (" + id + ").txt");
+            assertTrue(Files.exists(plain) || Files.exists(unique));
+            if (Files.exists(unique)) contents.add(read(unique));
+        }
+        contents.add(read(root.resolve("a.txt")));
+        contents.sort(null);
+        assertEquals(Arrays.asList("one", "three", "two"), contents);
+        // Файл, который восстановление не создавало, не перезаписывается
+        assertEquals("local", read(root.resolve("kept.txt")));
+        assertEquals(1, report.getSkipped());
+
+        // Повторный запуск находит файлы по путям из журнала
+        try (RestoreJournal journal = RestoreJournal.open(journalFile, toDate)) {
+            report = new RestoreEngine(drive.service(), Quickstart.SCHEDULER, 4, 4, 2)
+                    .restore(Quickstart.getFiles(drive.service()).iterator(), index, toDate, journal);
+        }
+        assertEquals(0, report.getDownloaded());
+        assertEquals(4, report.getSkipped());
+    }
+
+    @Test
+    void failsEachFileWithoutAnswerWhenBatchFails() throws Exception {
+        FakeDrive drive = new FakeDrive();
+        for (int i = 0; i < 3; i++) {
+            drive.file("f" + i, i + ".txt", "root").revision("f" + i, "r1", "2017-05-01T10:00:00.000Z", "c" + i);
+        }
+        Path root = tempDir("restore");
+        // Повтор пакета после обрыва невозможен: ошибка выходит из flush
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 1, 1, (millis) -> {
+            throw new IllegalStateException("No retries");
+        });
+        RestoreMetrics metrics = new RestoreMetrics();
+        RestoreEngine engine = new RestoreEngine(drive.service(), scheduler, 1, 1, 1);
+        engine.setMetrics(metrics, "user");
+
+        drive.dropBatch(1, 0);
+        RestoreReport report = engine.restore(Quickstart.getFiles(drive.service()).iterator(),
+                drive.createTree(root), LocalDateTime.of(2017, 5, 12, 0, 0));
+
+        // Файлы без ответа отмечаются неудачей каждый по отдельности
+        assertFalse(report.getFailures().isEmpty());
+        assertEquals(3, report.getDownloaded() + report.getFailures().size(), report.getFailures().toString());
+        for (RestoreReport.Failure failure : report.getFailures()) {
+            assertNotNull(failure.getFileId());
+            assertEquals("lookup", failure.getStage());
+        }
+        assertEquals(report.getFailures().size(), metrics.getFilesFailed());
+    }
+}
@@ -0,0 +1,53 @@
+package gdrestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RestoreJournalTest extends TestFiles {
+
+    private static final LocalDateTime CUTOFF = LocalDateTime.of(2017, 5, 12, 0, 0);
+
+    @Test
+    void reloadsLastEntryPerFile() throws Exception {
+        Path file = tempDir("journal").resolve(RestoreJournal.FILE_NAME);
+        try (RestoreJournal journal = RestoreJournal.open(file, CUTOFF)) {
+            journal.started("f1", "r1", 5, "abc", "/restore/a.txt");
+            journal.completed("f1", "r1", 5, "abc", "/restore/a.txt");
+            journal.started("f2", "r7", -1, null, "/restore/b.txt");
+        }
+        // Строка оборванная при сбое
+        Files.write(file, "DONE\tf2\tr7".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (RestoreJournal journal = RestoreJournal.open(file, CUTOFF)) {
+            assertEquals(RestoreJournal.State.DONE, journal.get("f1").getState());
+            assertEquals(5, journal.get("f1").getBytes());
+            assertEquals("abc", journal.get("f1").getMd5());
+            assertEquals("/restore/a.txt", journal.get("f1").getPath());
+            assertEquals(RestoreJournal.State.STARTED, journal.get("f2").getState());
+            assertEquals("r7", journal.get("f2").getRevisionId());
+            assertNull(journal.get("f2").getMd5());
+            assertNull(journal.get("f3"));
+        }
+    }
+
+    @Test
+    void startsOverForAnotherCutoff() throws Exception {
+        Path file = tempDir("journal").resolve(RestoreJournal.FILE_NAME);
+        try (RestoreJournal journal = RestoreJournal.open(file, CUTOFF)) {
+            journal.completed("f1", "r1", 5, "abc", "/restore/a.txt");
+        }
+        try (RestoreJournal journal = RestoreJournal.open(file, CUTOFF.plusDays(1))) {
+            assertNull(journal.get("f1"));
+        }
+        try (RestoreJournal journal = RestoreJournal.open(file, CUTOFF)) {
+            assertNull(journal.get("f1"));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package gdrestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RestoreMetricsTest extends TestFiles {
+
+    @Test
+    void histogramEstimatesQuantilesByBucketBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(-1, histogram.quantileMillis(0.5));
+        for (int i = 0; i < 98; i++) histogram.record(3000000);
+        histogram.record(150000000);
+        histogram.record(120000000000L);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(5, histogram.quantileMillis(0.5));
+        assertEquals(200, histogram.quantileMillis(0.99));
+        assertEquals(Long.MAX_VALUE, histogram.quantileMillis(1));
+        assertEquals(1, histogram.bucket(LatencyHistogram.BOUNDS_MILLIS.length));
+
+        // Границы включительно: ровно 5 мс - в корзине le=5, чуть больше - в следующей
+        LatencyHistogram bounds = new LatencyHistogram();
+        bounds.record(5000000);
+        bounds.record(5000001);
+        assertEquals(1, bounds.bucket(2));
+        assertEquals(1, bounds.bucket(3));
+    }
+
+    @Test
+    void estimatesRemainingBytesFromPlan() {
+        RestoreMetrics metrics = new RestoreMetrics();
+        assertEquals(-1, metrics.getEtaSeconds());
+        metrics.plan(4, 1000);
+        metrics.bytes(300);
+        metrics.downloaded(300);
+        metrics.skipped(100);
+        metrics.failed(100);
+
+        assertEquals(4, metrics.getPlannedFiles());
+        assertEquals(500, metrics.getRemainingBytes());
+        assertTrue(metrics.getEtaSeconds() >= 0);
+        metrics.reused(600);
+        assertEquals(0, metrics.getRemainingBytes());
+    }
+
+    @Test
+    void namesEndpointsByRequestClass() throws Exception {
+        FakeDrive drive = new FakeDrive();
+        assertEquals("files.list", RequestScheduler.endpoint(drive.service().files().list()));
+        assertEquals("revisions.get", RequestScheduler.endpoint(drive.service().revisions().get("f", "r")));
+    }
+
+    @Test
+    void collectsRestoreProgress() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .file("f1", "a.txt", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "content")
+                .file("f2", "b.txt", "root");
+        RestoreMetrics metrics = new RestoreMetrics();
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 0, 0, (millis) -> { });
+        scheduler.setMetrics(metrics);
+        Path root = tempDir("metrics");
+        RestoreOrchestrator orchestrator = new RestoreOrchestrator(1, 2, new BandwidthLimiter(0));
+        orchestrator.setMetrics(metrics);
+
+        Map<String, RestoreReport> reports = orchestrator.run(Collections.singletonList(
+                new RestoreJob("user", drive.service(), scheduler, root.toString(),
+                        LocalDateTime.of(2017, 5, 12, 0, 0))));
+
+        assertEquals(1, reports.get("user").getDownloaded());
+        assertEquals(1, metrics.getFilesDownloaded());
+        assertEquals(1, metrics.getFilesFailed());
+        assertEquals(2, metrics.getPlannedFiles());
+        assertEquals("content".length(), metrics.getBytesDownloaded());
+        assertEquals(scheduler.getRequests(), metrics.getRequests());
+        assertEquals(1, metrics.getLatency(ChunkedDownloader.MEDIA).getCount());
+        assertNotNull(metrics.getLatency(DriveBatcher.BATCH));
+        assertTrue(metrics.getQueueDepths().isEmpty());
+
+        Path file = root.resolve("metrics.prom");
+        metrics.writePrometheus(file);
+        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        assertTrue(text.contains("gdrestore_files_total{outcome=\"downloaded\"} 1\n"));
+        assertTrue(text.contains("gdrestore_request_seconds_count{endpoint=\"media\"} 1\n"));
+        assertTrue(text.contains("gdrestore_request_seconds_bucket{endpoint=\"media\",le=\"+Inf\"} 1\n"));
+        assertTrue(metrics.toLogLine().startsWith("metrics bytes=7 "));
+    }
+}
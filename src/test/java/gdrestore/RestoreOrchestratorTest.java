@@ -0,0 +1,187 @@
+package gdrestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RestoreOrchestratorTest extends TestFiles {
+
+    private static RequestScheduler scheduler() {
+        return new RequestScheduler(1000, 8, 3, 0, 0, (millis) -> { });
+    }
+
+    @Test
+    void restoresAccountsIntoOwnRootsAtOwnDates() throws Exception {
+        FakeDrive alice = new FakeDrive()
+                .folder("d1", "docs", "root")
+                .file("f1", "a.txt", "d1")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "alice-may-1")
+                .revision("f1", "r2", "2017-05-10T10:00:00.000Z", "alice-may-10");
+        FakeDrive bob = new FakeDrive()
+                .file("f1", "b.txt", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "bob-may-1")
+                .revision("f1", "r2", "2017-05-10T10:00:00.000Z", "bob-may-10");
+        FakeDrive broken = new FakeDrive().failNext(100, 404);
+        Path root = tempDir("orchestrator");
+
+        RestoreOrchestrator orchestrator = new RestoreOrchestrator(2, 2, new BandwidthLimiter(0));
+        Map<String, RestoreReport> reports = orchestrator.run(Arrays.asList(
+                new RestoreJob("alice", alice.service(), scheduler(), root.resolve("alice").toString(),
+                        LocalDateTime.of(2017, 5, 12, 0, 0)),
+                new RestoreJob("broken", broken.service(), scheduler(), root.resolve("broken").toString(),
+                        LocalDateTime.of(2017, 5, 12, 0, 0)),
+                new RestoreJob("bob", bob.service(), scheduler(), root.resolve("bob").toString(),
+                        LocalDateTime.of(2017, 5, 5, 0, 0))));
+
+        assertEquals(Arrays.asList("alice", "broken", "bob"), Arrays.asList(reports.keySet().toArray()));
+        assertEquals(1, reports.get("alice").getDownloaded());
+        assertEquals(1, reports.get("bob").getDownloaded());
+        assertEquals("alice-may-10", read(root.resolve("alice/docs/a.txt")));
+        assertEquals("bob-may-1", read(root.resolve("bob/b.txt")));
+        assertEquals(1, reports.get("broken").getFailures().size());
+        assertEquals("job", reports.get("broken").getFailures().get(0).getStage());
+        assertTrue(Files.exists(root.resolve("alice/" + MetadataCache.FILE_NAME)));
+    }
+
+    @Test
+    void keepsContentIndexInJobRootAndCopiesOnlyDuplicates() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .file("f1", "a.txt", "root")
+                .file("f2", "b.txt", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "same")
+                .revision("f2", "r1", "2017-05-01T10:00:00.000Z", "same");
+        Path root = tempDir("orchestrator");
+
+        RestoreOrchestrator orchestrator = new RestoreOrchestrator(1, 1, new BandwidthLimiter(0));
+        orchestrator.setJobContentStores(false);
+        RestoreReport report = orchestrator.run(Arrays.asList(new RestoreJob("user", drive.service(), scheduler(),
+                root.toString(), LocalDateTime.of(2017, 5, 12, 0, 0)))).get("user");
+
+        assertEquals(1, report.getDownloaded(), report.getFailures().toString());
+        assertEquals(1, report.getReused());
+        assertTrue(Files.exists(root.resolve(ContentStore.FILE_NAME)));
+        try (Stream<Path> files = Files.list(root)) {
+            // Содержимое не копируется в хранилище: на диске только два восстановленных файла
+            assertEquals(2, files.filter(p -> !p.getFileName().toString().startsWith(".gdrestore")).count());
+        }
+        // Копии, а не ссылки: изменение одного файла не меняет другие
+        Files.write(root.resolve("a.txt"), "edited".getBytes(StandardCharsets.UTF_8));
+        assertEquals("same", read(root.resolve("b.txt")));
+    }
+
+    @Test
+    void rejectsDuplicateJobNames() {
+        FakeDrive drive = new FakeDrive();
+        RestoreJob job = new RestoreJob("user", drive.service(), scheduler(), "/tmp/a", LocalDateTime.now());
+        assertThrows(IllegalArgumentException.class, () -> new RestoreOrchestrator(1, 1, new BandwidthLimiter(0))
+                .run(Arrays.asList(job, job)));
+    }
+
+    @Test
+    void sharesBandwidthFairlyBetweenLanes() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter(2 * 1024 * 1024);
+        BandwidthLimiter.Lane big = limiter.lane("big");
+        BandwidthLimiter.Lane small = limiter.lane("small");
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + 700_000_000L;
+        Runnable bigWorker = () -> {
+            try {
+                start.await();
+                while (System.nanoTime() < deadline) big.acquire(16 * 1024);
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        Runnable smallWorker = () -> {
+            try {
+                start.await();
+                while (System.nanoTime() < deadline) small.acquire(16 * 1024);
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < 8; i++) threads[i] = new Thread(bigWorker);
+        for (int i = 8; i < 10; i++) threads[i] = new Thread(smallWorker);
+        for (Thread t : threads) t.start();
+        start.countDown();
+        for (Thread t : threads) t.join();
+
+        // Полоса с двумя потоками получает столько же, сколько полоса с восемью потоками
+        double ratio = (double) small.getBytes() / big.getBytes();
+        assertTrue(ratio > 0.7 && ratio < 1.3, "small " + small.getBytes() + ", big " + big.getBytes());
+        assertTrue(small.getBytes() + big.getBytes() < 2 * 1024 * 1024, "Budget exceeded");
+    }
+
+    @Test
+    void largeDriveDoesNotDelayOtherJobs() throws Exception {
+        FakeDrive large = new FakeDrive().latency(5, 0);
+        for (int i = 0; i < 100; i++) {
+            large.file("f" + i, "big" + i + ".txt", "root").revision("f" + i, "r1", "2017-05-01T10:00:00.000Z", "big");
+        }
+        Path root = tempDir("orchestrator");
+        List<RestoreJob> jobs = new ArrayList<>();
+        jobs.add(new RestoreJob("large", large.service(), scheduler(), root.resolve("large").toString(),
+                LocalDateTime.of(2017, 5, 12, 0, 0)));
+        for (int j = 0; j < 3; j++) {
+            FakeDrive small = new FakeDrive()
+                    .file("f1", "a.txt", "root").revision("f1", "r1", "2017-05-01T10:00:00.000Z", "small");
+            jobs.add(new RestoreJob("small" + j, small.service(), scheduler(), root.resolve("small" + j).toString(),
+                    LocalDateTime.of(2017, 5, 12, 0, 0)));
+        }
+        // Мест загрузки меньше чем заданий: по 2 файла одновременно на все диски
+        RestoreOrchestrator orchestrator = new RestoreOrchestrator(1, 2, new BandwidthLimiter(0));
+        AtomicReference<Map<String, RestoreReport>> reports = new AtomicReference<>();
+        Thread runner = new Thread(() -> {
+            try {
+                reports.set(orchestrator.run(jobs));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        runner.start();
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!(Files.exists(root.resolve("small0/a.txt")) && Files.exists(root.resolve("small1/a.txt"))
+                && Files.exists(root.resolve("small2/a.txt")))) {
+            assertTrue(System.currentTimeMillis() < deadline, "Small drives are not restored");
+            Thread.sleep(1);
+        }
+        long largeBytes = large.mediaBytes();
+        runner.join();
+
+        assertTrue(largeBytes < 100 * "big".length(), "Small drives waited for the large one: " + largeBytes);
+        assertEquals(100, reports.get().get("large").getDownloaded());
+        for (int j = 0; j < 3; j++) assertEquals(1, reports.get().get("small" + j).getDownloaded());
+    }
+
+    @Test
+    void restoresSyntheticDriveWithTransientErrors() throws Exception {
+        FakeDrive drive = FakeDrive.synthetic(20, 200, 5, 64, 7).errorRate(0.05, 503);
+        Path root = tempDir("orchestrator");
+        RestoreJob job = new RestoreJob("user", drive.service(), new RequestScheduler(1000, 8, 10, 0, 0,
+                (millis) -> { }), root.toString(), LocalDateTime.of(2017, 1, 3, 12, 0));
+
+        RestoreReport report = new RestoreOrchestrator(1, 4, new BandwidthLimiter(0))
+                .restore(job, new BandwidthLimiter(0).lane("user"));
+
+        assertTrue(report.getFailures().isEmpty(), report.getFailures().toString());
+        assertEquals(200, report.getDownloaded());
+        try (Stream<Path> paths = Files.walk(root)) {
+            assertEquals(200, paths.filter(p -> p.toString().endsWith(".bin")).count());
+        }
+    }
+}
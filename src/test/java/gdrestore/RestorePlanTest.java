@@ -0,0 +1,120 @@
+package gdrestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RestorePlanTest extends TestFiles {
+
+    @Test
+    void writesAndStreamsPlan() throws Exception {
+        Path file = tempDir("plan").resolve(RestorePlan.FILE_NAME);
+        LocalDateTime date = LocalDateTime.of(2017, 5, 12, 0, 0);
+        try (RestorePlan.Writer plan = RestorePlan.create(file, date)) {
+            plan.add(new RestorePlan.Entry("f1", "a.txt", "text/plain", "r1", "md5", 10,
+                    Arrays.asList("/r/docs/", "/r/shared/")));
+            plan.add(new RestorePlan.Entry("f2", "a.txt", "text/plain", "r2", null, 5,
+                    Collections.singletonList("/r/docs/")));
+            plan.add(new RestorePlan.Entry("f3", "b.docx", ExportFormat.NATIVE_PREFIX + "document", "r3", null, -1,
+                    Collections.singletonList("/r/")));
+        }
+        assertFalse(Files.exists(file), "Plan must not be published without commit");
+
+        try (RestorePlan.Writer plan = RestorePlan.create(file, date)) {
+            plan.add(new RestorePlan.Entry("f1", "a.txt", "text/plain", "r1", "md5", 10,
+                    Arrays.asList("/r/docs/", "/r/shared/")));
+            plan.add(new RestorePlan.Entry("f2", "a.txt", "text/plain", "r2", null, 5,
+                    Collections.singletonList("/r/docs/")));
+            plan.commit();
+        }
+
+        List<RestorePlan.Entry> entries = new ArrayList<>();
+        try (RestorePlan.Reader plan = RestorePlan.open(file)) {
+            assertEquals(date, plan.getToDate());
+            plan.forEachRemaining(entries::add);
+            assertEquals(2, plan.getSummary().getFiles());
+        }
+        assertEquals(Arrays.asList("/r/docs/", "/r/shared/"), entries.get(0).getDirs());
+        assertEquals("md5", entries.get(0).getMd5());
+        assertFalse(entries.get(0).isCollision());
+        assertNull(entries.get(1).getMd5());
+        assertTrue(entries.get(1).isCollision());
+        assertEquals("a (f2).txt", entries.get(1).getName());
+
+        RestorePlan.Summary summary = RestorePlan.summary(file);
+        assertEquals(15, summary.getBytes());
+        assertEquals(25, summary.getDiskBytes());
+        assertEquals(1, summary.getCollisions());
+    }
+
+    @Test
+    void executesPlanWithoutListing() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .folder("d1", "docs", "root")
+                .file("f1", "a.txt", "d1")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "may-1")
+                .revision("f1", "r2", "2017-05-20T10:00:00.000Z", "encrypted")
+                .file("f2", "big.bin", "root")
+                .revision("f2", "r1", "2017-05-01T10:00:00.000Z", "a much bigger file")
+                .document("g1", "notes", ExportFormat.NATIVE_PREFIX + "document", "d1")
+                .exportRevision("g1", "r1", "2017-05-01T10:00:00.000Z",
+                        ExportFormat.defaults().get(ExportFormat.NATIVE_PREFIX + "document").getMimeType(), "doc");
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 0, 0, (millis) -> { });
+        Path root = tempDir("plan");
+        RestoreJob job = new RestoreJob("user", drive.service(), scheduler, root.toString(),
+                LocalDateTime.of(2017, 5, 12, 0, 0));
+        RestoreOrchestrator orchestrator = new RestoreOrchestrator(1, 2, new BandwidthLimiter(0));
+
+        RestoreReport planned = orchestrator.plan(job);
+        assertTrue(planned.getFailures().isEmpty(), planned.getFailures().toString());
+        assertEquals(0, drive.mediaBytes());
+        assertFalse(Files.exists(root.resolve("docs")));
+        RestorePlan.Summary summary = RestorePlan.summary(root.resolve(RestorePlan.FILE_NAME));
+        assertEquals(3, summary.getFiles());
+        assertEquals("may-1".length() + "a much bigger file".length(), summary.getBytes());
+
+        int listed = drive.listed();
+        int requests = drive.requests();
+        RestoreReport report = orchestrator.restore(job, new BandwidthLimiter(0).lane("user"));
+
+        assertEquals(3, report.getDownloaded(), report.getFailures().toString());
+        assertEquals(listed, drive.listed());
+        assertEquals(4, drive.requests() - requests,
+                "Only the change token check and content requests are expected");
+        assertEquals("may-1", read(root.resolve("docs/a.txt")));
+        assertEquals("a much bigger file", read(root.resolve("big.bin")));
+        assertEquals("doc", read(root.resolve("docs/notes.docx")));
+    }
+
+    @Test
+    void replansWhenDriveChangedAfterPlan() throws Exception {
+        FakeDrive drive = new FakeDrive()
+                .file("f1", "a.txt", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "may-1");
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 0, 0, (millis) -> { });
+        Path root = tempDir("plan");
+        RestoreJob job = new RestoreJob("user", drive.service(), scheduler, root.toString(),
+                LocalDateTime.of(2017, 5, 12, 0, 0));
+        RestoreOrchestrator orchestrator = new RestoreOrchestrator(1, 2, new BandwidthLimiter(0));
+        orchestrator.plan(job);
+
+        drive.file("f2", "a.txt", "root")
+                .revision("f2", "r1", "2017-05-02T10:00:00.000Z", "late");
+        RestoreReport report = orchestrator.restore(job, new BandwidthLimiter(0).lane("user"));
+
+        assertEquals(2, report.getDownloaded(), report.getFailures().toString());
+        assertEquals("may-1", read(root.resolve("a.txt")));
+        assertEquals("late", read(root.resolve("a (f2).txt")));
+        assertFalse(Files.exists(root.resolve(RestorePlan.FILE_NAME)), "Stale plan must be removed");
+        assertEquals(1, report.getWarnings().size());
+        assertEquals("plan", report.getWarnings().get(0).getStage());
+    }
+}
@@ -0,0 +1,59 @@
+package gdrestore;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.Revision;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RevisionResolverTest extends TestFiles {
+
+    private static final LocalDateTime CUTOFF = LocalDateTime.of(2017, 5, 12, 0, 0);
+
+    @Test
+    void selectsLatestRevisionBeforeCutoff() {
+        Revision a = new Revision().setId("a").setModifiedTime(DateTime.parseRfc3339("2017-05-11T23:59:59.999Z"));
+        Revision b = new Revision().setId("b").setModifiedTime(DateTime.parseRfc3339("2017-05-12T00:00:00.000Z"));
+        Revision c = new Revision().setId("c").setModifiedTime(DateTime.parseRfc3339("2017-05-01T10:00:00.000Z"));
+        long cutoff = RevisionResolver.toEpochMillis(CUTOFF);
+        assertEquals("a", RevisionResolver.select(Arrays.asList(c, b, a), cutoff).getId());
+        assertNull(RevisionResolver.select(Arrays.asList(b), cutoff));
+        assertNull(RevisionResolver.select(null, cutoff));
+    }
+
+    @Test
+    void pagesThroughAllRevisionsAndCachesChoice() throws Exception {
+        FakeDrive drive = new FakeDrive().file("f1", "a.txt", "root").file("f2", "b.txt", "root");
+        for (int i = 0; i < 2500; i++) {
+            drive.revision("f1", "r" + i, new DateTime(RevisionResolver.toEpochMillis(CUTOFF) - 2500 + i)
+                    .toStringRfc3339(), "v" + i);
+        }
+        drive.revision("f2", "r1", "2017-05-20T10:00:00.000Z", "new");
+        RequestScheduler scheduler = new RequestScheduler(1000, 4, 5, 1, 1, (millis) -> { });
+        Path file = tempDir("revisions").resolve(RevisionResolver.FILE_NAME);
+
+        try (RevisionResolver resolver = RevisionResolver.open(drive.service(), scheduler, file)) {
+            assertEquals("r2499", resolver.resolve("f1", CUTOFF).getId());
+            assertEquals(3, drive.requests());
+            assertNull(resolver.resolve("f2", CUTOFF));
+            assertEquals(4, drive.requests());
+            resolver.resolve("f1", CUTOFF);
+            assertEquals(4, drive.requests());
+        }
+
+        // Повторный запуск использует сохраненный выбор без запросов
+        try (RevisionResolver resolver = RevisionResolver.open(drive.service(), scheduler, file)) {
+            Revision rev = resolver.resolve("f1", CUTOFF);
+            assertEquals("r2499", rev.getId());
+            assertNotNull(rev.getMd5Checksum());
+            assertTrue(resolver.isCached("f2", CUTOFF));
+            assertNull(resolver.resolve("f2", CUTOFF));
+            assertFalse(resolver.isCached("f1", CUTOFF.plusDays(1)));
+            assertEquals(4, drive.requests());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package gdrestore;
+
+import com.google.api.services.drive.model.File;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubtreeCrawlerTest extends TestFiles {
+
+    private static FakeDrive drive() {
+        FakeDrive drive = new FakeDrive()
+                .folder("p", "Projects", "root")
+                .folder("a", "Alpha", "p")
+                .folder("b", "Beta", "p")
+                .folder("b2", "Specs", "b")
+                .folder("x", "Archive", "root")
+                .file("f1", "old.txt", "a").modified("f1", "2017-05-01T10:00:00.000Z")
+                .file("f2", "new.txt", "a").modified("f2", "2017-05-10T10:00:00.000Z")
+                .file("f3", "plan.txt", "b").modified("f3", "2017-05-02T10:00:00.000Z")
+                .file("f4", "spec.txt", "b2").modified("f4", "2017-05-03T10:00:00.000Z")
+                .file("f5", "top.txt", "p").modified("f5", "2017-05-11T10:00:00.000Z");
+        for (int i = 0; i < 50; i++) drive.file("old" + i, "archive" + i + ".txt", "x");
+        return drive;
+    }
+
+    private static List<String> names(Iterator<File> files) {
+        List<String> result = new ArrayList<>();
+        files.forEachRemaining(f -> result.add(f.getName()));
+        return result;
+    }
+
+    @Test
+    void crawlsOnlySubtreeInPriorityOrder() throws Exception {
+        FakeDrive drive = drive();
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 0, 0, (millis) -> { });
+        RestoreScope scope = new RestoreScope().path("/Projects/").path("Missing/Folder")
+                .order(RestoreScope.Order.RECENT).prioritize(Collections.singletonList("Projects/Beta"));
+
+        SubtreeCrawler.Result result = new SubtreeCrawler(drive.service(), scheduler, 4).crawl(scope, "/r/")
+                .await();
+
+        // Сначала приоритетная папка, внутри групп - измененные последними
+        assertEquals(Arrays.asList("spec.txt", "plan.txt", "top.txt", "new.txt", "old.txt"), names(result.files()));
+        assertEquals("/r/Projects/Beta/Specs/", result.getDirectories().getPath("b2"));
+        assertNull(result.getDirectories().getPath("x"));
+        assertEquals(Collections.singletonList("Missing/Folder"), result.getMissing());
+        assertEquals(3, result.getLevels());
+        assertTrue(drive.listed() < 20, "Archive must not be listed: " + drive.listed());
+    }
+
+    @Test
+    void returnsFilesOfFirstLevelBeforeCrawlEnds() throws Exception {
+        FakeDrive drive = new FakeDrive().folder("d0", "Deep", "root");
+        for (int i = 1; i < 6; i++) {
+            drive.folder("d" + i, "Level" + i, "d" + (i - 1)).file("f" + i, i + ".txt", "d" + i);
+        }
+        drive.file("f0", "0.txt", "d0").latency(100, 0);
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 0, 0, (millis) -> { });
+
+        SubtreeCrawler.Result result = new SubtreeCrawler(drive.service(), scheduler, 4)
+                .crawl(new RestoreScope().path("Deep"), "/r/");
+
+        assertEquals("0.txt", result.files().next().getName());
+        assertTrue(result.getLevels() < 6, "Levels crawled: " + result.getLevels());
+        assertEquals(Arrays.asList("1.txt", "2.txt", "3.txt", "4.txt", "5.txt"), names(result.files()));
+        assertEquals(6, result.await().getLevels());
+    }
+
+    @Test
+    void placesFoldersUnderParentClosestToRootAndSeparatesSamePaths() throws Exception {
+        FakeDrive drive = drive()
+                .folder("s", "Shared", "b2")
+                .folder("b3", "Beta", "p")
+                .file("f6", "copy.txt", "b3");
+        drive.getFile("s").setParents(Arrays.asList("b2", "x"));
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 0, 0, (millis) -> { });
+
+        RestoreScope byId = new RestoreScope().folder("s");
+        assertEquals("/r/Archive/Shared/", new SubtreeCrawler(drive.service(), scheduler, 4).crawl(byId, "/r/")
+                .await().getDirectories().getPath("s"));
+
+        RestoreScope byPath = new RestoreScope().path("Projects/Beta/Specs").folder("x");
+        SubtreeCrawler.Result result = new SubtreeCrawler(drive.service(), scheduler, 4).crawl(byPath, "/r/")
+                .await();
+        assertEquals("/r/Archive/Shared/", result.getDirectories().getPath("s"));
+
+        result = new SubtreeCrawler(drive.service(), scheduler, 4).crawl(new RestoreScope().path("Projects/Beta"),
+                "/r/").await();
+        assertEquals("/r/Projects/Beta/", result.getDirectories().getPath("b"));
+        assertEquals("/r/Projects/Beta (b3)/", result.getDirectories().getPath("b3"));
+        assertEquals(3, result.size());
+    }
+
+    @Test
+    void restoresFolderByIdAtItsDrivePath() throws Exception {
+        FakeDrive drive = drive()
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "old")
+                .revision("f2", "r1", "2017-05-10T10:00:00.000Z", "new")
+                .revision("f2", "r2", "2017-05-20T10:00:00.000Z", "encrypted");
+        Path root = tempDir("subtree");
+        RestoreJob job = new RestoreJob("user", drive.service(), new RequestScheduler(1000, 8, 3, 0, 0,
+                (millis) -> { }), root.toString(), LocalDateTime.of(2017, 5, 12, 0, 0))
+                .setScope(new RestoreScope().folder("a").order(RestoreScope.Order.SMALLEST));
+
+        RestoreReport report = new RestoreOrchestrator(1, 2, new BandwidthLimiter(0))
+                .restore(job, new BandwidthLimiter(0).lane("user"));
+
+        assertEquals(2, report.getDownloaded(), report.getFailures().toString());
+        assertEquals("old", read(root.resolve("Projects/Alpha/old.txt")));
+        assertEquals("new", read(root.resolve("Projects/Alpha/new.txt")));
+        assertFalse(Files.exists(root.resolve("Archive")));
+        assertFalse(Files.exists(root.resolve(MetadataCache.FILE_NAME)), "Whole drive must not be listed");
+    }
+}
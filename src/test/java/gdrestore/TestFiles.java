@@ -0,0 +1,53 @@
+package gdrestore;
+
+import org.junit.jupiter.api.AfterEach;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Основа тестов, работающих с файлами: временные каталоги и файлы теста удаляются вместе с содержимым
+ * после каждого теста.
+ */
+abstract class TestFiles {
+
+    private final List<Path> created = new ArrayList<>();
+
+    /** @return новый временный каталог, удаляемый после теста */
+    Path tempDir(String prefix) throws IOException {
+        Path dir = Files.createTempDirectory(prefix);
+        created.add(dir);
+        return dir;
+    }
+
+    /** @return новый временный файл, удаляемый после теста */
+    Path tempFile(String prefix, String suffix) throws IOException {
+        Path file = Files.createTempFile(prefix, suffix);
+        created.add(file);
+        return file;
+    }
+
+    @AfterEach
+    void deleteTempFiles() throws IOException {
+        for (Path path : created) {
+            if (!Files.exists(path)) continue;
+            try (Stream<Path> tree = Files.walk(path)) {
+                for (Path p : (Iterable<Path>) tree.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+        created.clear();
+    }
+
+    /** @return содержимое файла path в UTF-8 */
+    static String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+}
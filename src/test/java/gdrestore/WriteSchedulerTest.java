@@ -0,0 +1,65 @@
+package gdrestore;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteSchedulerTest extends TestFiles {
+
+    @Test
+    void writesInBlocks() throws Exception {
+        Path file = tempDir("writes").resolve("a.bin");
+        byte[] content = "restored content written in blocks".getBytes(StandardCharsets.UTF_8);
+        WriteScheduler writes = new WriteScheduler(1, 0, 0, 8);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            OutputStream out = writes.open(channel);
+            for (byte b : content) out.write(b);
+            // Записаны только полные блоки, остаток - в буфере
+            assertEquals(content.length / 8 * 8, Files.size(file));
+            out.close();
+            assertEquals(content.length, channel.position());
+        }
+        assertArrayEquals(content, Files.readAllBytes(file));
+    }
+
+    @Test
+    void downloadsSmallFilesIntoMemory() throws Exception {
+        FakeDrive drive = new FakeDrive().file("f1", "small.txt", "root")
+                .revision("f1", "r1", "2017-05-01T10:00:00.000Z", "small file content");
+        Path part = tempDir("writes").resolve("small.txt.part");
+        RequestScheduler scheduler = new RequestScheduler(1000, 8, 3, 0, 0, (millis) -> { });
+        ChunkedDownloader downloader = new ChunkedDownloader(drive.service(), scheduler);
+        downloader.setWriteScheduler(new WriteScheduler(2, 0, 1024));
+
+        // Оборванная загрузка малого файла начинается заново, на диск попадает только файл целиком
+        drive.dropConnection(1, 5);
+        downloader.download(drive.service().revisions().get("f1", "r1"), 18, part);
+
+        assertEquals("small file content", new String(Files.readAllBytes(part), StandardCharsets.UTF_8));
+        assertEquals(5 + 18, drive.mediaBytes());
+    }
+
+    @Test
+    void createsDirectoriesInParallel() throws Exception {
+        Path root = tempDir("writes");
+        List<Path> dirs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            dirs.add(root.resolve("shared/d" + i));
+            dirs.add(root.resolve("shared/d" + i + "/nested"));
+        }
+
+        new WriteScheduler(4, 0, 0).createDirectories(dirs);
+
+        for (Path dir : dirs) assertTrue(Files.isDirectory(dir), dir.toString());
+    }
+}